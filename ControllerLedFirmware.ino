@@ -12,6 +12,7 @@
  */
 #include <EEPROM.h>
 #include <avr/wdt.h>
+#include <util/crc16.h>
 
 /*
  * This table remaps linear input values (the numbers we’d like to use; e.g. 127 = half brightness) 
@@ -47,6 +48,14 @@ const uint8_t PROGMEM gammaCorrection[] = {
 };
 // Defines the PWM enabled pins for each LED.
 const int LED[4] = {3, 5, 6, 9};
+// Sent when the controller is ready for an animation (and when asked with a '?'),
+// followed by the version of the upload protocol it speaks.
+const char READY_BANNER[] = "CLA READY 4";
+// The baud rate the controller starts at, and the faster ones the animator can switch to.
+const unsigned long DEFAULT_BAUD_RATE = 9600;
+const unsigned long FAST_BAUD_RATES[4] = {115200, 250000, 500000, 1000000};
+// The most animation bytes in each chunk of a chunked upload.
+const byte CHUNK_SIZE = 32;
 // How many times the animation will be updated per second in microseconds.
 // (default 12500 (80 times a second))
 const int UPDATES_PER_SECOND_US = 12500;  
@@ -62,6 +71,8 @@ byte numOfSectionsInTimeline[4];
 unsigned int sections[400];
 // Buffer to store the most recently uploaded animation.
 byte bytesReceived[806];
+// Which chunks of a chunked upload have been received (one bit each).
+byte chunksReceived[(sizeof(bytesReceived)+CHUNK_SIZE*8-1)/(CHUNK_SIZE*8)];
 // Stores the position in the sections array where 
 // the current timeline's sections start.
 // (e.g. if the first timeline contains 4 sections, 
@@ -76,10 +87,13 @@ int curTime = 0;
  */
 void setup() {
     MCUSR = 0;
-    Serial.begin(9600);
+    Serial.begin(DEFAULT_BAUD_RATE);
 
     // Load the stored animation.
     loadAnimation();
+
+    // Tell the animator we're ready, so it doesn't have to wait a fixed time.
+    Serial.println(READY_BANNER);
 }
 
 /*
@@ -120,11 +134,57 @@ void loadAnimation() {
 }
 
 /*
- * Accepts, validates and sotres an uploaded animation into EEPROM.
+ * Answers the animator's ready check, or accepts, validates and sotres an uploaded animation into EEPROM.
  */
 void getAnimation() {
+    byte command = serialRead(3000);
+    // The animator is asking if we're ready.
+    if(command == '?') {
+        Serial.println(READY_BANNER);
+        return;
+    }
+    // The animator wants to switch to a faster baud rate (sent as 4 bytes, most significant first).
+    if(command == 'B') {
+        unsigned long rate = 0;
+        for(byte i = 0; i < 4; i++)
+            rate = (rate << 8) | serialRead(1000);
+        if(!isFastBaudRate(rate)) {
+            Serial.write('N');
+            return;
+        }
+        Serial.write('K');
+        // Finish sending the 'K' before switching.
+        Serial.flush();
+        Serial.begin(rate);
+        // The animator checks it can still hear us with a '?'. If it doesn't
+        // arrive (or arrives garbled), the link can't carry the rate, so go back.
+        if(serialRead(1000) == '?')
+            Serial.println(READY_BANNER);
+        else
+            Serial.begin(DEFAULT_BAUD_RATE);
+        return;
+    }
+    // The animator wants to know which animation we have (so it doesn't upload the same one again).
+    // Answered with 'H', the stored animation's length (2 bytes) and its CRC-32 (4 bytes).
+    if(command == 'H') {
+        unsigned int animSize = storedAnimationSize();
+        unsigned long crc = storedAnimationCrc(animSize);
+        Serial.write('H');
+        Serial.write(animSize >> 8);
+        Serial.write(animSize & 0xFF);
+        for(int shift = 24; shift >= 0; shift -= 8)
+            Serial.write((crc >> shift) & 0xFF);
+        return;
+    }
+    // A chunked upload.
+    if(command == 'U') {
+        if(!getChunkedAnimation())
+            // The upload failed, go back to the default baud rate (like below).
+            Serial.begin(DEFAULT_BAUD_RATE);
+        return;
+    }
     // Only accept data if an 'R' is sent first.
-    if(serialRead(3000) == 'R') {
+    if(command == 'R') {
         // Get size of receved data.
         byte animSize = serialRead(3000);
         // Store the receved data in the buffer.
@@ -146,19 +206,155 @@ void getAnimation() {
                 EEPROM.update(i, bytesReceived[i]);
             reset();
         }
+        // The upload failed, which might have been because of the baud rate,
+        // so go back to the default one (the animator tries again at that).
+        Serial.begin(DEFAULT_BAUD_RATE);
+    }
+}
+
+/*
+ * Accepts a chunked upload (protocol version 3), saving it to EEPROM and
+ * resetting if all of it arrived.
+ *
+ * After the 'U' comes the animation's length (2 bytes), which is answered
+ * with 'S' (or 'F' if it doesn't fit). Then the animator sends chunks:
+ * 'D', the chunk's number, its length, its bytes and a CRC-16 of all of
+ * those but the 'D' (2 bytes). Each chunk is answered with 'A' and its number
+ * if the CRC matched, or 'X' and its number if it didn't (the animator sends
+ * it again). The animator doesn't wait for each answer before sending the next
+ * chunk, so chunks that were already received are just answered again.
+ * Finally 'C' and the CRC-16 of the whole animation is answered with 'K'
+ * (the animation is saved) or 'F' (it doesn't match, the 'C' itself might
+ * have been garbled so the animator can send it again).
+ *
+ * Returns false if the upload failed.
+ */
+bool getChunkedAnimation() {
+    unsigned int animSize = serialRead(1000) << 8;
+    animSize |= serialRead(1000);
+    if(animSize == 0 || animSize > sizeof(bytesReceived)) {
+        Serial.write('F');
+        return false;
+    }
+    memset(chunksReceived, 0, sizeof(chunksReceived));
+    Serial.write('S');
+
+    while(true) {
+        int frame = waitForByte(5000);
+        if(frame < 0) {
+            // The animator gave up.
+            return false;
+        } else if(frame == 'D') {
+            byte chunk = serialRead(200);
+            byte len = serialRead(200);
+            unsigned int start = chunk*CHUNK_SIZE;
+            // A garbled header, skip it (the animator sends the chunk again when it isn't answered).
+            if(len == 0 || len > CHUNK_SIZE || start+len > animSize)
+                continue;
+            bool received = bitRead(chunksReceived[chunk/8], chunk%8);
+            uint16_t crc = _crc_xmodem_update(_crc_xmodem_update(0xFFFF, chunk), len);
+            for(byte i = 0; i < len; i++) {
+                byte b = serialRead(200);
+                crc = _crc_xmodem_update(crc, b);
+                // Don't overwrite a chunk that was already received (this copy might be garbled).
+                if(!received)
+                    bytesReceived[start+i] = b;
+            }
+            uint16_t sentCrc = serialRead(200) << 8;
+            sentCrc |= serialRead(200);
+            if(received || crc == sentCrc) {
+                bitSet(chunksReceived[chunk/8], chunk%8);
+                Serial.write('A');
+            } else {
+                Serial.write('X');
+            }
+            Serial.write(chunk);
+        } else if(frame == 'C') {
+            uint16_t sentCrc = serialRead(200) << 8;
+            sentCrc |= serialRead(200);
+            // The animator only finishes once every chunk has been answered,
+            // so if they haven't all been received this was noise.
+            bool complete = true;
+            for(unsigned int c = 0; c*CHUNK_SIZE < animSize; c++)
+                complete = complete && bitRead(chunksReceived[c/8], c%8);
+            if(!complete)
+                continue;
+            // The whole animation has to match.
+            uint16_t crc = 0xFFFF;
+            for(unsigned int i = 0; i < animSize; i++)
+                crc = _crc_xmodem_update(crc, bytesReceived[i]);
+            if(crc != sentCrc) {
+                Serial.write('F');
+                continue;
+            }
+            Serial.write('K');
+            Serial.flush();
+            for(unsigned int i = 0; i < animSize; i++)
+                EEPROM.update(i, bytesReceived[i]);
+            reset();
+        }
+        // Anything else is noise between chunks.
+    }
+}
+
+/*
+ * Returns the length of the animation stored in EEPROM, worked out from its
+ * header the same way loadAnimation() reads it (0 if there isn't a valid one).
+ */
+unsigned int storedAnimationSize() {
+    byte timelines = EEPROM.read(0);
+    if(timelines < 1 || timelines > 4)
+        return 0;
+    unsigned int animSize = timelines+2;
+    for(byte b = 0; b < timelines; b++)
+        animSize += 2*EEPROM.read(1+b);
+    return (animSize <= sizeof(bytesReceived)) ? animSize : 0;
+}
+
+/*
+ * Returns the CRC-32 (the same one as java.util.zip.CRC32) of the
+ * first animSize bytes of EEPROM.
+ */
+unsigned long storedAnimationCrc(unsigned int animSize) {
+    unsigned long crc = 0xFFFFFFFF;
+    for(unsigned int i = 0; i < animSize; i++) {
+        crc ^= EEPROM.read(i);
+        for(byte bit = 0; bit < 8; bit++)
+            crc = (crc >> 1) ^ (0xEDB88320 & -(crc & 1));
+    }
+    return ~crc;
+}
+
+/*
+ * Returns true if the baud rate is one the animator can switch to.
+ */
+bool isFastBaudRate(unsigned long rate) {
+    for(byte i = 0; i < 4; i++) {
+        if(FAST_BAUD_RATES[i] == rate)
+            return true;
     }
+    return false;
 }
 
 /*
  * Read serial data (1 byte) with a timeout.
  */
 byte serialRead(unsigned int timeout) {
+    int b = waitForByte(timeout);
+    // If there isn't at least 1 byte serial data when the timeout expires,
+    // return the error code (255).
+    return (b < 0) ? 255 : b;
+}
+
+/*
+ * Read serial data (1 byte) with a timeout, returning -1 if the timeout expires
+ * (unlike serialRead, a timeout can't be mistaken for a 255).
+ */
+int waitForByte(unsigned int timeout) {
     unsigned long startTime = millis();
     while(Serial.available() < 1) {
         if((millis() - startTime) > timeout)
-            // If there isn't at least 1 byte serial data when the timeout expires,
-            // return the error code (255).
-            return 255;
+            return -1;
      }
      // If there is at least 1 byte serial data before the timeout expires,
      // return it.
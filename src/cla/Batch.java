@@ -0,0 +1,380 @@
+package cla;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.stream.Stream;
+import cla.util.Animation;
+import cla.util.AnimationCodec;
+import cla.util.AnimationPack;
+import cla.util.AtomicFile;
+import cla.util.ControllerLimits;
+import cla.util.SectionStore;
+
+/**
+ * This is the command line entry point, used to check and convert whole
+ * libraries of animations without opening the main window.
+ *
+ * Usage: Batch (validate | convert | stats | pack) [options] file-or-directory...
+ *   validate         checks that every animation can be uploaded to the controller.
+ *   convert          re-encodes every animation (--to 1 or --to 2, default 2)
+ *                    into the --out directory (or over the original with --in-place).
+ *   stats            prints the size and contents of every animation.
+ *   pack             re-encodes every animation (--to, as above) into the --out pack file.
+ *   -j threads       how many files are worked on at once (default: one per CPU).
+ *
+ * Directories are searched (including sub directories) for .cla files, and the
+ * animations in any .clapack files given are worked on as if they were files. The files
+ * are worked on in parallel, but the results are always printed in the same order
+ * (sorted by path), so the output can be compared between runs. How long it took
+ * is printed to stderr. The version 1 format is only for the controller, so converting
+ * (or packing) to it fails for animations that don't fit the controller (see validate).
+ *
+ * Doesn't use AWT, so it can be run on a server without a display.
+ *
+ * @author Duncan Cowan
+ *
+ */
+public class Batch {
+	// How many files each fork-join task works on before it stops splitting.
+	private static final int FILES_PER_TASK = 4;
+
+	// The options.
+	private String command;
+	private int threads = Runtime.getRuntime().availableProcessors();
+	private int toVersion = AnimationCodec.VERSION;
+	private Path outDir;
+	private boolean inPlace;
+
+	// The files to work on and the result of each (in the same order).
+	private final List<Path> roots = new ArrayList<Path>();
+	private final List<Item> items = new ArrayList<Item>();
+	private Result[] results;
+
+	/**
+	 * An animation to work on, either a file or an animation in a pack.
+	 */
+	private static class Item {
+		// The name printed for the animation.
+		final String name;
+		// Where the animation is, relative to the directory (or pack) it was found in.
+		final Path relativePath;
+		// The file, or the pack and the animation's index in it.
+		final Path file;
+		final AnimationPack pack;
+		final int entry;
+
+		Item(Path file, Path relativePath) {
+			this.name = file.toString();
+			this.relativePath = relativePath;
+			this.file = file;
+			this.pack = null;
+			this.entry = -1;
+		}
+
+		Item(Path packFile, AnimationPack pack, int entry) throws IOException {
+			this.name = packFile + "!" + pack.getName(entry);
+			this.relativePath = Paths.get(pack.getName(entry));
+			this.file = null;
+			this.pack = pack;
+			this.entry = entry;
+		}
+
+		/**
+		 * Returns the animation's bytes.
+		 */
+		ByteBuffer read() throws IOException {
+			if(pack == null)
+				return ByteBuffer.wrap(Files.readAllBytes(file));
+			ByteBuffer bytes = pack.getBytes(entry);
+			if(!Arrays.equals(AnimationPack.hash(bytes), pack.getHash(entry)))
+				throw new IOException("doesn't match its hash in the pack");
+			return bytes;
+		}
+	}
+
+	/**
+	 * The result of working on a single file.
+	 */
+	private static class Result {
+		// The line printed for the file.
+		String line;
+		boolean failed;
+		// The bytes to put in the pack (pack command only).
+		ByteBuffer encoded;
+		long bytes;
+		int sections;
+		int version;
+		// The size of the file in each format (-1 if it can't be encoded in that format).
+		int v1Size = -1, v2Size = -1;
+	}
+
+	/**
+	 * The entry point of the command line tool.
+	 *
+	 * @param args the command, options and files (see the class comment).
+	 */
+	public static void main(String[] args) {
+		System.setProperty("java.awt.headless", "true");
+		Batch batch = new Batch();
+		if(!batch.parseArgs(args)) {
+			System.err.println("Usage: Batch (validate | convert | stats | pack) [-j threads] [--to 1|2] [--out dir | --in-place] file-or-directory...");
+			System.exit(2);
+		}
+		System.exit(batch.run() ? 0 : 1);
+	}
+
+	/**
+	 * Reads the command, options and files from the arguments.
+	 *
+	 * @return false if the arguments are wrong.
+	 */
+	private boolean parseArgs(String[] args) {
+		if(args.length < 2)
+			return false;
+		command = args[0];
+		if(!command.equals("validate") && !command.equals("convert") && !command.equals("stats") && !command.equals("pack"))
+			return false;
+		try {
+			for(int i = 1; i < args.length; i++) {
+				if(args[i].equals("-j"))
+					threads = Integer.parseInt(args[++i]);
+				else if(args[i].equals("--to"))
+					toVersion = Integer.parseInt(args[++i]);
+				else if(args[i].equals("--out"))
+					outDir = Paths.get(args[++i]);
+				else if(args[i].equals("--in-place"))
+					inPlace = true;
+				else
+					roots.add(Paths.get(args[i]));
+			}
+		} catch(NumberFormatException | ArrayIndexOutOfBoundsException e) {
+			return false;
+		}
+		if(threads < 1 || (toVersion != 1 && toVersion != AnimationCodec.VERSION) || roots.isEmpty())
+			return false;
+		// Converting and packing need somewhere to put the files.
+		if(command.equals("pack"))
+			return outDir != null && !inPlace;
+		return !command.equals("convert") || (outDir != null) != inPlace;
+	}
+
+	/**
+	 * Finds the files, works on them in parallel and prints the results.
+	 *
+	 * @return true if every file was worked on without any problems.
+	 */
+	private boolean run() {
+		long startTime = System.nanoTime();
+		for(Path root : roots) {
+			List<Path> found = new ArrayList<Path>();
+			try {
+				if(root.getFileName().toString().endsWith(".clapack")) {
+					// Only the pack's index is read here, the animations are read by the tasks.
+					AnimationPack pack = AnimationPack.open(root);
+					for(int i = 0; i < pack.size(); i++)
+						items.add(new Item(root, pack, i));
+					continue;
+				}
+				if(Files.isDirectory(root)) {
+					try(Stream<Path> walk = Files.walk(root)) {
+						walk.filter(p -> Files.isRegularFile(p) && p.getFileName().toString().endsWith(".cla")).forEach(found::add);
+					}
+				} else {
+					found.add(root);
+				}
+			} catch(IOException | UncheckedIOException e) {
+				System.err.println("Couldn't search " + root + ": " + e.getMessage());
+				return false;
+			}
+			// Sort so the output is the same no matter what order the file system lists them in.
+			Collections.sort(found);
+			for(Path p : found)
+				items.add(new Item(p, Files.isDirectory(root) ? root.relativize(p) : p.getFileName()));
+		}
+
+		results = new Result[items.size()];
+		ForkJoinPool pool = new ForkJoinPool(threads);
+		pool.invoke(new Task(0, items.size()));
+		pool.shutdown();
+		if(command.equals("pack") && !writePack())
+			return false;
+		long elapsed = System.nanoTime()-startTime;
+
+		// Print the results (in order) and add them up.
+		int failed = 0, sections = 0;
+		long bytes = 0, v1Bytes = 0, v2Bytes = 0;
+		int[] versions = new int[256];
+		for(Result r : results) {
+			System.out.println(r.line);
+			failed += r.failed ? 1 : 0;
+			bytes += r.bytes;
+			sections += r.sections;
+			v1Bytes += Math.max(r.v1Size, 0);
+			v2Bytes += Math.max(r.v2Size, 0);
+			versions[r.version]++;
+		}
+		if(command.equals("stats")) {
+			System.out.println(String.format(Locale.ROOT, "total: %d files (%d v1, %d v2), %d sections, %d bytes as v1, %d bytes as v2",
+					results.length, versions[1], versions[2], sections, v1Bytes, v2Bytes));
+		}
+		System.out.println(String.format(Locale.ROOT, "%d files, %d failed", results.length, failed));
+
+		// The timing changes between runs, so it isn't part of the output.
+		double seconds = elapsed/1e9;
+		System.err.println(String.format(Locale.ROOT, "%d files (%d bytes, %d sections) in %.3f s: %.0f files/s, %.2f MB/s, %d threads",
+				results.length, bytes, sections, seconds, results.length/seconds, bytes/seconds/1e6, threads));
+		return failed == 0;
+	}
+
+	/**
+	 * Works on the files from (inclusive) to to (exclusive), splitting
+	 * them between two tasks if there are more than FILES_PER_TASK.
+	 */
+	@SuppressWarnings("serial")
+	private class Task extends RecursiveAction {
+		private final int from, to;
+
+		Task(int from, int to) {
+			this.from = from;
+			this.to = to;
+		}
+
+		protected void compute() {
+			if(to-from <= FILES_PER_TASK) {
+				for(int i = from; i < to; i++)
+					results[i] = process(items.get(i));
+				return;
+			}
+			int mid = (from+to) >>> 1;
+			invokeAll(new Task(from, mid), new Task(mid, to));
+		}
+	}
+
+	/**
+	 * Writes the animations that were packed without any problems into the pack file.
+	 *
+	 * @return true if the pack was written.
+	 */
+	private boolean writePack() {
+		Map<String, ByteBuffer> animations = new HashMap<String, ByteBuffer>();
+		for(int i = 0; i < results.length; i++) {
+			if(results[i].failed)
+				continue;
+			// Always use / in names, so packs are the same on every OS.
+			String name = items.get(i).relativePath.toString().replace(File.separatorChar, '/');
+			if(animations.containsKey(name)) {
+				results[i].failed = true;
+				results[i].line = "FAIL " + items.get(i).name + ": there's already an animation called " + name;
+				continue;
+			}
+			animations.put(name, results[i].encoded);
+		}
+		try {
+			AnimationPack.write(outDir, animations);
+		} catch(IOException e) {
+			System.err.println("Couldn't write " + outDir + ": " + e.getMessage());
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Runs the command on a single animation.
+	 *
+	 * @param item the animation.
+	 * @return the result.
+	 */
+	private Result process(Item item) {
+		Result r = new Result();
+		String name = item.name;
+		try {
+			ByteBuffer bytes = item.read();
+			r.bytes = bytes.remaining();
+			r.version = AnimationCodec.getVersion(bytes);
+			Animation animation = AnimationCodec.decode(bytes);
+			r.sections = countSections(animation.getSections());
+			r.v2Size = AnimationCodec.encode(animation).remaining();
+			try {
+				r.v1Size = AnimationCodec.encodeV1(animation).remaining();
+			} catch(IOException e) {
+				// Too big for the version 1 format.
+			}
+
+			if(command.equals("validate")) {
+				List<String> problems = ControllerLimits.check(animation);
+				r.failed = !problems.isEmpty();
+				r.line = (r.failed ? "FAIL " : "OK   ") + name + (r.failed ? ": " + String.join("; ", problems) :
+						String.format(Locale.ROOT, " (v%d, %d sections, %d bytes)", r.version, r.sections, r.v1Size));
+			} else if(command.equals("pack")) {
+				if(!fitsVersion(name, animation, r))
+					return r;
+				r.encoded = (toVersion == 1) ? AnimationCodec.encodeV1(animation) : AnimationCodec.encode(animation);
+				r.line = String.format(Locale.ROOT, "OK   %s (v%d %d bytes -> v%d %d bytes)", name, r.version, r.bytes, toVersion, r.encoded.remaining());
+			} else if(command.equals("convert")) {
+				if(inPlace && item.file == null)
+					throw new IOException("animations in a pack can't be converted in place");
+				if(!fitsVersion(name, animation, r))
+					return r;
+				ByteBuffer encoded = (toVersion == 1) ? AnimationCodec.encodeV1(animation) : AnimationCodec.encode(animation);
+				Path out = inPlace ? item.file : outDir.resolve(item.relativePath);
+				if(out.getParent() != null)
+					Files.createDirectories(out.getParent());
+				int size = encoded.remaining();
+				AtomicFile.write(out, encoded);
+				r.line = String.format(Locale.ROOT, "OK   %s -> %s (v%d %d bytes -> v%d %d bytes)", name, out, r.version, r.bytes, toVersion, size);
+			} else {
+				r.line = String.format(Locale.ROOT, "%s: v%d, %d LEDs, %d divisions, %d updates/s, %d sections, ends at %.2f s, %s bytes as v1, %d bytes as v2",
+						name, r.version, animation.getSettings().getNumOfTimelines(), animation.getSettings().getNumOfDivisions(),
+						animation.getSettings().getTicksPerSecond(), r.sections,
+						animation.getEndTime()/(double)animation.getSettings().getDivisionsPerSecond(),
+						(r.v1Size < 0) ? "-" : Integer.toString(r.v1Size), r.v2Size);
+			}
+		} catch(IOException e) {
+			r.failed = true;
+			r.line = "FAIL " + name + ": " + e.getMessage();
+		}
+		return r;
+	}
+
+	/**
+	 * Checks that the animation can be encoded in the version being converted to
+	 * (the version 1 format is only for the controller, so it has to fit the controller),
+	 * failing the result with the problems if it can't.
+	 *
+	 * @return true if the animation can be encoded.
+	 */
+	private boolean fitsVersion(String name, Animation animation, Result r) {
+		if(toVersion != 1)
+			return true;
+		List<String> problems = ControllerLimits.check(animation);
+		if(problems.isEmpty())
+			return true;
+		r.failed = true;
+		r.line = "FAIL " + name + ": " + String.join("; ", problems);
+		return false;
+	}
+
+	/**
+	 * Returns the number of sections in every timeline.
+	 */
+	private static int countSections(SectionStore sections) {
+		int count = 0;
+		for(int tl = 0; tl < sections.getNumOfTimelines(); tl++)
+			count += sections.size(tl);
+		return count;
+	}
+}
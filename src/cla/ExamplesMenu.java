@@ -0,0 +1,293 @@
+package cla;
+
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import javax.swing.JMenu;
+import javax.swing.JMenuItem;
+import javax.swing.SwingUtilities;
+import javax.swing.event.ChangeEvent;
+import javax.swing.event.ChangeListener;
+import cla.util.Animation;
+import cla.util.AnimationPack;
+import cla.util.FileManager;
+
+/**
+ * This class defines the Examples menu (in the File menu).
+ *
+ * The examples are the files (and the animations in any .clapack packs)
+ * in a folder called 'examples' in the same directory as the .jar executable.
+ *
+ * Nothing is read while the window is being made: the folder is listed in
+ * the background and the menu is filled in (and shown) once that's done.
+ * The folder is then watched, so examples that are added or removed show
+ * up in the menu straight away. An example is decoded in the background
+ * the first time it's hovered over and then kept, so clicking it doesn't
+ * have to wait for the file (unless the file changes).
+ *
+ * @author Duncan Cowan
+ *
+ */
+@SuppressWarnings("serial")
+public class ExamplesMenu extends JMenu {
+	// Decodes examples (in the background, one at a time).
+	private static final ExecutorService decoder = Executors.newSingleThreadExecutor(new ThreadFactory() {
+		public Thread newThread(Runnable r) {
+			Thread t = new Thread(r, "Example decoder");
+			t.setDaemon(true);
+			return t;
+		}
+	});
+
+	// How long the folder has to go without changing before it's listed again.
+	private static final long SETTLE_MILLIS = 250;
+
+	// The decoded examples (or the ones being decoded), by Example.key.
+	private final ConcurrentHashMap<String, Future<Animation>> decoded = new ConcurrentHashMap<String, Future<Animation>>();
+	private final ActionListener exampleListener = new ExampleListener();
+
+	/**
+	 * Constructor.
+	 *
+	 * The menu is hidden until the examples folder has been listed.
+	 */
+	public ExamplesMenu() {
+		super("Examples");
+		this.setVisible(false);
+
+		Thread watcher = new Thread(new Runnable() {
+			public void run() {
+				watchExamples();
+			}
+		}, "Examples watcher");
+		watcher.setDaemon(true);
+		watcher.start();
+	}
+
+	/**
+	 * Lists the examples folder and then keeps the menu up to date with it
+	 * until the folder is removed (runs on the watcher thread).
+	 */
+	private void watchExamples() {
+		Path dir;
+		try {
+			String examplesPath = MenuBar.class.getProtectionDomain().getCodeSource().getLocation().toURI().getPath();
+			examplesPath = examplesPath.substring(0, examplesPath.lastIndexOf(File.separator))+"/examples/";
+			System.out.println(examplesPath);
+			dir = Paths.get(examplesPath);
+		} catch(Exception e) {
+			e.printStackTrace();
+			return;
+		}
+		if(!Files.isDirectory(dir))
+			return;
+
+		try(WatchService watcher = FileSystems.getDefault().newWatchService()) {
+			// Register before listing, so nothing added in between is missed.
+			dir.register(watcher, StandardWatchEventKinds.ENTRY_CREATE,
+					StandardWatchEventKinds.ENTRY_DELETE, StandardWatchEventKinds.ENTRY_MODIFY);
+			showExamples(listExamples(dir));
+			while(true) {
+				WatchKey key = watcher.take();
+				// Wait for the changes to stop (e.g. a file still being copied) before listing again.
+				do {
+					for(WatchEvent<?> event : key.pollEvents()) {
+						// Forget the decoded animations of anything that changed.
+						if(event.kind() == StandardWatchEventKinds.OVERFLOW)
+							decoded.clear();
+						else
+							forget(dir.resolve((Path)event.context()).toString());
+					}
+					// The folder was removed.
+					if(!key.reset()) {
+						showExamples(new ArrayList<Example>());
+						return;
+					}
+				} while((key = watcher.poll(SETTLE_MILLIS, TimeUnit.MILLISECONDS)) != null);
+				showExamples(listExamples(dir));
+			}
+		} catch(IOException e) {
+			e.printStackTrace();
+		} catch(InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Returns every example in the folder, sorted by file name (the animations in a pack by their name).
+	 */
+	private List<Example> listExamples(Path dir) throws IOException {
+		List<Path> files = new ArrayList<Path>();
+		try(DirectoryStream<Path> stream = Files.newDirectoryStream(dir)) {
+			for(Path p : stream) {
+				if(Files.isRegularFile(p))
+					files.add(p);
+			}
+		}
+		Collections.sort(files, new Comparator<Path>() {
+			public int compare(Path a, Path b) {
+				return a.getFileName().toString().compareTo(b.getFileName().toString());
+			}
+		});
+
+		List<Example> examples = new ArrayList<Example>();
+		for(Path p : files) {
+			if(!p.getFileName().toString().endsWith(".clapack")) {
+				examples.add(new Example(p));
+				continue;
+			}
+			// Only the pack's index is read here.
+			try {
+				AnimationPack pack = AnimationPack.open(p);
+				for(int i = 0; i < pack.size(); i++)
+					examples.add(new Example(p, pack, i));
+			} catch(IOException e) {
+				e.printStackTrace();
+			}
+		}
+		return examples;
+	}
+
+	/**
+	 * Replaces the menu's items with the specified examples (on the event dispatch thread).
+	 */
+	private void showExamples(final List<Example> examples) {
+		SwingUtilities.invokeLater(new Runnable() {
+			public void run() {
+				ExamplesMenu.this.removeAll();
+				// Each pack gets a sub menu of its animations.
+				JMenu packMenu = null;
+				for(final Example e : examples) {
+					JMenuItem exampleMenuItem = new JMenuItem(e.name);
+					exampleMenuItem.addActionListener(exampleListener);
+					exampleMenuItem.putClientProperty(Example.class, e);
+					// Start decoding the example as soon as it's hovered over.
+					exampleMenuItem.addChangeListener(new ChangeListener() {
+						public void stateChanged(ChangeEvent ce) {
+							if(((JMenuItem)ce.getSource()).isArmed())
+								decode(e);
+						}
+					});
+					if(e.pack == null) {
+						ExamplesMenu.this.add(exampleMenuItem);
+						continue;
+					}
+					if(packMenu == null || !packMenu.getClientProperty(Path.class).equals(e.file)) {
+						String packName = e.file.getFileName().toString();
+						packMenu = new JMenu(packName.substring(0, packName.length()-".clapack".length()));
+						packMenu.putClientProperty(Path.class, e.file);
+						ExamplesMenu.this.add(packMenu);
+					}
+					packMenu.add(exampleMenuItem);
+				}
+				ExamplesMenu.this.setVisible(!examples.isEmpty());
+			}
+		});
+	}
+
+	/**
+	 * Returns the decoded example, starting to decode it (in the background) if it hasn't been already.
+	 */
+	private Future<Animation> decode(final Example example) {
+		Future<Animation> animation = decoded.get(example.key);
+		if(animation == null) {
+			FutureTask<Animation> task = new FutureTask<Animation>(new Callable<Animation>() {
+				public Animation call() throws IOException {
+					return example.decode();
+				}
+			});
+			animation = decoded.putIfAbsent(example.key, task);
+			if(animation == null) {
+				animation = task;
+				decoder.execute(task);
+			}
+		}
+		return animation;
+	}
+
+	/**
+	 * Forgets the decoded animations of the specified file (or all the animations in it if it's a pack).
+	 */
+	private void forget(String file) {
+		for(String key : decoded.keySet()) {
+			if(key.equals(file) || key.startsWith(file + "!"))
+				decoded.remove(key);
+		}
+	}
+
+	/**
+	 * An example: a file, or an animation in a pack.
+	 */
+	private static class Example {
+		// The name shown in the menu.
+		final String name;
+		// Where the decoded animation is kept (the file, plus "!" and the name for an animation in a pack).
+		final String key;
+		final Path file;
+		final AnimationPack pack;
+		final int entry;
+
+		Example(Path file) {
+			this.name = file.getFileName().toString();
+			this.key = file.toString();
+			this.file = file;
+			this.pack = null;
+			this.entry = -1;
+		}
+
+		Example(Path file, AnimationPack pack, int entry) throws IOException {
+			this.name = pack.getName(entry);
+			this.key = file + "!" + name;
+			this.file = file;
+			this.pack = pack;
+			this.entry = entry;
+		}
+
+		Animation decode() throws IOException {
+			return (pack == null) ? FileManager.readAnimation(file) : pack.decode(entry);
+		}
+	}
+
+	/**
+	 * Loads the example that was clicked.
+	 */
+	private class ExampleListener implements ActionListener {
+		public void actionPerformed(ActionEvent e) {
+			Example example = (Example)((JMenuItem)e.getSource()).getClientProperty(Example.class);
+			try {
+				// Usually already decoded (when it was hovered over).
+				FileManager.load(decode(example).get());
+				FileManager.closeFile();
+			} catch(ExecutionException ex) {
+				// Try again next time (the file might be fixed by then).
+				decoded.remove(example.key);
+				ex.getCause().printStackTrace();
+			} catch(InterruptedException ex) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+}
@@ -7,16 +7,25 @@ import java.awt.Graphics;
 import java.awt.Toolkit;
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
+import java.awt.event.InputEvent;
 import java.awt.event.KeyEvent;
 import java.io.File;
 import java.net.URI;
+import java.util.List;
 import javax.swing.JMenu;
 import javax.swing.JMenuBar;
 import javax.swing.JMenuItem;
 import javax.swing.JOptionPane;
 import javax.swing.KeyStroke;
+import javax.swing.event.MenuEvent;
+import javax.swing.event.MenuListener;
 import cla.dialog.FileDialogs;
+import cla.dialog.SettingsDialogs;
+import cla.dialog.FleetUploadDialog;
 import cla.dialog.UploadDialog;
+import cla.util.Animation;
+import cla.util.Autosave;
+import cla.util.ControllerLimits;
 import cla.util.FileManager;
 
 /**
@@ -39,21 +48,6 @@ public class MenuBar extends JMenuBar {
 	 * Creates each menu and its items then, adds each menu to the menu bar.
 	 */
 	public MenuBar() {
-		/*
-		 *  Attempts to load the example files which should be in a folder
-		 *  called 'examples' in the same directory as the .jar executable.
-		 */
-		File[] examples = null;
-		try {
-			String examplesPath = MenuBar.class.getProtectionDomain().getCodeSource().getLocation().toURI().getPath();
-			examplesPath = examplesPath.substring(0, examplesPath.lastIndexOf(File.separator))+"/examples/";
-			examples = (new File(examplesPath)).listFiles();
-			System.out.println(examplesPath);
-		} catch (Exception e) {
-			examples = null;
-			e.printStackTrace();
-		}
-		
 		// Remove the boarder from the menu bar.
 		this.setBorderPainted(false);
 		
@@ -67,30 +61,44 @@ public class MenuBar extends JMenuBar {
 
 		// New menu item.
 		JMenuItem newMenuItem = new JMenuItem("New");
-		newMenuItem.setAccelerator(KeyStroke.getKeyStroke(KeyEvent.VK_N, Toolkit.getDefaultToolkit().getMenuShortcutKeyMask()));
+		newMenuItem.setAccelerator(KeyStroke.getKeyStroke(KeyEvent.VK_N, Toolkit.getDefaultToolkit().getMenuShortcutKeyMaskEx()));
 		newMenuItem.setActionCommand("New");
 		newMenuItem.addActionListener(menuItemListener);
 		fileMenu.add(newMenuItem);
 		// Open menu item.
 		JMenuItem openMenuItem = new JMenuItem("Open...");
-		openMenuItem.setAccelerator(KeyStroke.getKeyStroke(KeyEvent.VK_O, Toolkit.getDefaultToolkit().getMenuShortcutKeyMask()));
+		openMenuItem.setAccelerator(KeyStroke.getKeyStroke(KeyEvent.VK_O, Toolkit.getDefaultToolkit().getMenuShortcutKeyMaskEx()));
 		openMenuItem.setActionCommand("Open");
 		openMenuItem.addActionListener(menuItemListener);
 		fileMenu.add(openMenuItem);
-		// If the examples were loaded, make the Examples menu item.
-		if(examples != null) {
-			JMenu examplesMenu = new JMenu("Examples");
-			for(File e : examples) {
-				JMenuItem exampleMenuItem = new JMenuItem(e.getName());
-				exampleMenuItem.setActionCommand("example~"+e.getAbsolutePath());
-				exampleMenuItem.addActionListener(menuItemListener);
-				examplesMenu.add(exampleMenuItem);
+		// Open Recent menu (filled in each time it's opened).
+		final JMenu recentMenu = new JMenu("Open Recent");
+		final ActionListener recentListener = new RecentFileListener();
+		recentMenu.addMenuListener(new MenuListener() {
+			public void menuSelected(MenuEvent e) {
+				recentMenu.removeAll();
+				for(File f : FileManager.getRecentFiles()) {
+					JMenuItem recentMenuItem = new JMenuItem(f.getName());
+					recentMenuItem.setToolTipText(f.getPath());
+					recentMenuItem.setActionCommand(f.getPath());
+					recentMenuItem.addActionListener(recentListener);
+					recentMenu.add(recentMenuItem);
+				}
+				if(recentMenu.getItemCount() == 0) {
+					JMenuItem noneMenuItem = new JMenuItem("No Recent Files");
+					noneMenuItem.setEnabled(false);
+					recentMenu.add(noneMenuItem);
+				}
 			}
-			fileMenu.add(examplesMenu);
-		}
+			public void menuDeselected(MenuEvent e) {}
+			public void menuCanceled(MenuEvent e) {}
+		});
+		fileMenu.add(recentMenu);
+		// Examples menu (filled in the background).
+		fileMenu.add(new ExamplesMenu());
 		// Save menu item.
 		JMenuItem saveMenuItem = new JMenuItem("Save");
-		saveMenuItem.setAccelerator(KeyStroke.getKeyStroke(KeyEvent.VK_S, Toolkit.getDefaultToolkit().getMenuShortcutKeyMask()));
+		saveMenuItem.setAccelerator(KeyStroke.getKeyStroke(KeyEvent.VK_S, Toolkit.getDefaultToolkit().getMenuShortcutKeyMaskEx()));
 		saveMenuItem.setActionCommand("Save");
 		saveMenuItem.addActionListener(menuItemListener);
 		fileMenu.add(saveMenuItem);
@@ -115,13 +123,13 @@ public class MenuBar extends JMenuBar {
 
 		// Toggle LED Numbers menu item.
 		toggleLedNumbersMenuItem = new JMenuItem("Show LED Numbers");
-		toggleLedNumbersMenuItem.setAccelerator(KeyStroke.getKeyStroke(KeyEvent.VK_L, Toolkit.getDefaultToolkit().getMenuShortcutKeyMask()));
+		toggleLedNumbersMenuItem.setAccelerator(KeyStroke.getKeyStroke(KeyEvent.VK_L, Toolkit.getDefaultToolkit().getMenuShortcutKeyMaskEx()));
 		toggleLedNumbersMenuItem.setActionCommand("ToggleLedNumbers");
 		toggleLedNumbersMenuItem.addActionListener(menuItemListener);
 		viewMenu.add(toggleLedNumbersMenuItem);
 		// Toggle Fullscreen menu item.
 		toggleFullscreenMenuItem = new JMenuItem("Fullscreen");
-		toggleFullscreenMenuItem.setAccelerator(KeyStroke.getKeyStroke(KeyEvent.VK_F, Toolkit.getDefaultToolkit().getMenuShortcutKeyMask()));
+		toggleFullscreenMenuItem.setAccelerator(KeyStroke.getKeyStroke(KeyEvent.VK_F, Toolkit.getDefaultToolkit().getMenuShortcutKeyMaskEx()));
 		toggleFullscreenMenuItem.setActionCommand("ToggleFullscreen");
 		toggleFullscreenMenuItem.addActionListener(menuItemListener);
 		viewMenu.add(toggleFullscreenMenuItem);
@@ -139,13 +147,24 @@ public class MenuBar extends JMenuBar {
 		playMenuItem.setActionCommand("Play");
 		playMenuItem.addActionListener(menuItemListener);
 		toolsMenu.add(playMenuItem);
+		// Project Settings menu item
+		JMenuItem projectSettingsMenuItem = new JMenuItem("Project Settings...");
+		projectSettingsMenuItem.setActionCommand("ProjectSettings");
+		projectSettingsMenuItem.addActionListener(menuItemListener);
+		toolsMenu.add(projectSettingsMenuItem);
 		toolsMenu.addSeparator();
 		// Upload menu item
 		JMenuItem uploadMenuItem = new JMenuItem("Upload");
-		uploadMenuItem.setAccelerator(KeyStroke.getKeyStroke(KeyEvent.VK_U, Toolkit.getDefaultToolkit().getMenuShortcutKeyMask()));
+		uploadMenuItem.setAccelerator(KeyStroke.getKeyStroke(KeyEvent.VK_U, Toolkit.getDefaultToolkit().getMenuShortcutKeyMaskEx()));
 		uploadMenuItem.setActionCommand("Upload");
 		uploadMenuItem.addActionListener(menuItemListener);
 		toolsMenu.add(uploadMenuItem);
+		// Upload to several controllers menu item
+		JMenuItem fleetUploadMenuItem = new JMenuItem("Upload To Several");
+		fleetUploadMenuItem.setAccelerator(KeyStroke.getKeyStroke(KeyEvent.VK_U, Toolkit.getDefaultToolkit().getMenuShortcutKeyMaskEx() | InputEvent.SHIFT_DOWN_MASK));
+		fleetUploadMenuItem.setActionCommand("FleetUpload");
+		fleetUploadMenuItem.addActionListener(menuItemListener);
+		toolsMenu.add(fleetUploadMenuItem);
 
 		this.add(toolsMenu);
 
@@ -163,6 +182,24 @@ public class MenuBar extends JMenuBar {
 		this.add(helpMenu);
 	}
 
+	/**
+	 * Handles recent file clicks (the action command is the file's path).
+	 */
+	private class RecentFileListener implements ActionListener {
+		public void actionPerformed(ActionEvent e) {
+			File f = new File(e.getActionCommand());
+			// It's already open.
+			if(FileManager.getOpenFile() != null && f.equals(FileManager.getOpenFile().getAbsoluteFile()))
+				return;
+			// Ask to save the current file.
+			if(FileDialogs.askToSaveDialog() != JOptionPane.CLOSED_OPTION) {
+				// Recent files are usually still cached, so this is instant.
+				FileManager.load(f);
+				toggleFullscreenMenuItem.setText(Screen.getInstance().isFullscreen() ? "Windowed" : "Fullscreen");
+			}
+		}
+	}
+
 	/**
 	 * Handles menu item clicks.
 	 */
@@ -170,13 +207,6 @@ public class MenuBar extends JMenuBar {
 		public void actionPerformed(ActionEvent e) {
 			System.out.println(e.getActionCommand());
 			
-			// If an example file was clicked, load it.
-			if(e.getActionCommand().contains("example")) {
-				FileManager.load(new File(e.getActionCommand().split("~")[1]));
-				FileManager.closeFile();
-				return;
-			}
-			
 			switch (e.getActionCommand()) {
 				// If the new menu item was clicked...
 				case "New":
@@ -235,10 +265,13 @@ public class MenuBar extends JMenuBar {
 				// If the exit menu item was clicked...
 				case "Exit":
 					// Ask to save the current file.
-					if(FileDialogs.askToSaveDialog() != JOptionPane.CLOSED_OPTION)
+					if(FileDialogs.askToSaveDialog() != JOptionPane.CLOSED_OPTION) {
 						// If the user didn't close the ask to save dialog, 
-						// close the program.
+						// close the program (once any saves have finished).
+						FileManager.waitForSaves();
+						Autosave.discard();
 						System.exit(0);
+					}
 					break;
 				// If the toggle led numbers menu item was clicked...
 				case "ToggleLedNumbers":
@@ -263,8 +296,27 @@ public class MenuBar extends JMenuBar {
 					// Toggle the current animation's play status.
 					Screen.getInstance().timeline.togglePlay();
 					break;
-				// If the upload menu item was clicked...
+				// If the project settings menu item was clicked...
+				case "ProjectSettings":
+					// Display the project settings dialog.
+					SettingsDialogs.projectSettingsDialog();
+					/* Update the toggle fullscreen menu item's text to
+					 * reflect the current state of the main window.
+					 * This has to be done because displaying any
+					 * dialog causes the main window to go into windowed mode.
+					 */
+					toggleFullscreenMenuItem.setText(Screen.getInstance().isFullscreen() ? "Windowed" : "Fullscreen");
+					break;
+				// If the upload (or upload to several) menu item was clicked...
 				case "Upload":
+				case "FleetUpload":
+					List<String> problems = ControllerLimits.check(new Animation(Screen.getInstance().timeline.getTimelines()));
+					if(!problems.isEmpty()) {
+						// The controller can't play animations that are bigger than its
+						// buffers (or have more LEDs, etc.), so don't try to upload them.
+						JOptionPane.showMessageDialog(Screen.getInstance().getFrame(), ControllerLimits.describe(problems));
+						break;
+					}
 					int val = -1;
 					if(FileManager.getOpenFile() == null)
 						// Display the save dialog if the current changes
@@ -273,7 +325,10 @@ public class MenuBar extends JMenuBar {
 					if(val != 0)
 						// Display the upload dialog if the changes
 						// were successfully saved.
-						new UploadDialog();
+						if(e.getActionCommand().equals("FleetUpload"))
+							new FleetUploadDialog();
+						else
+							new UploadDialog();
 					/* Update the toggle fullscreen menu item's text to
 					 * reflect the current state of the main window.
 					 * This has to be done because displaying any
@@ -14,6 +14,10 @@ import cla.dialog.FileDialogs;
 import cla.ui.Component;
 import cla.ui.Preview;
 import cla.ui.Timeline;
+import cla.util.AllocationCheck;
+import cla.util.Autosave;
+import cla.util.FileManager;
+import cla.util.FrameRateLimiter;
 
 /**
  * This is the main class (i.e where everything starts).
@@ -53,6 +57,12 @@ public class Screen extends JPanel {
 	 *       with a Java UI component.
 	 */
 	private ArrayList<Component> components = new ArrayList<Component>();
+	// Reused to get the area being repainted.
+	private final Rectangle clip = new Rectangle();
+	// Checks that drawing the components allocates no memory (part of each frame's allocation check).
+	private final AllocationCheck paintAllocationCheck = new AllocationCheck("paint");
+	// Lowers the preview's refresh rate when painting is slow.
+	public final FrameRateLimiter frameRateLimiter = new FrameRateLimiter();
 	public final Preview preview;
 	public final Timeline timeline;
 	
@@ -113,14 +123,23 @@ public class Screen extends JPanel {
 	
 	/**
 	 * Draws the custom UI components to the JPanel.
+	 * 
+	 * Components that are outside of the area being repainted are skipped.
 	 */
 	@Override
 	public void paintComponent(Graphics g) {
+		long paintStart = System.nanoTime();
 		super.paintComponent(g);
-		for(Component c : components) {
-			if(c.isVisible())
+		paintAllocationCheck.begin();
+		clip.setBounds(0, 0, getWidth(), getHeight());
+		g.getClipBounds(clip);
+		for(int i = 0; i < components.size(); i++) {
+			Component c = components.get(i);
+			if(c.isVisible() && clip.intersects(c.getPaintBounds()))
 				c.draw(g);
 		}
+		paintAllocationCheck.end();
+		frameRateLimiter.paintTook(System.nanoTime()-paintStart);
 	}
 	
 	/**
@@ -191,8 +210,12 @@ public class Screen extends JPanel {
 	    frame.setDefaultCloseOperation(JFrame.DO_NOTHING_ON_CLOSE);
 	    frame.addWindowListener(new WindowAdapter() {
 			public void windowClosing(WindowEvent e) {
-				if(FileDialogs.askToSaveDialog() != JOptionPane.CLOSED_OPTION)
+				if(FileDialogs.askToSaveDialog() != JOptionPane.CLOSED_OPTION) {
+					// Let any saves finish first.
+					FileManager.waitForSaves();
+					Autosave.discard();
 					System.exit(0);
+				}
 			}
 	    });
 	    
@@ -213,44 +236,42 @@ public class Screen extends JPanel {
 	    frame.setLocationRelativeTo(null);
 	    // Show the main window.
 	    frame.setVisible(true);
+	    // Offer to recover anything left by a crash, then start autosaving.
+	    Autosave.start();
 	}
 	
 	/**
 	 * This inner class is used to send mouse events 
 	 * to the top-level custom UI component(s).
 	 * 
-	 * Note: Mouse events also cause the custom UI components to be re-drawn.
+	 * Note: The custom UI components repaint whatever parts of
+	 *       themselves the mouse events changed.
 	 */
 	private class MouseHandler extends MouseAdapter {
 		public void mouseClicked(MouseEvent e) {
 			for(Component c : components)
         		c.mouseClicked(e);
-			repaint();
 		}
 	
 		public void mouseDragged(MouseEvent e) {
 			for(Component c : components)
         		c.mouseDragged(e);
-			repaint();
 		}
 
 		public void mousePressed(MouseEvent e) {
         	for(Component c : components)
         		c.mousePressed(e);
-        	repaint();
         }
 
         public void mouseReleased(MouseEvent e) {
         	for(Component c : components)
         		c.mouseReleased(e);
-        	repaint();
         }
 
 		public void mouseWheelMoved(MouseWheelEvent e) {
 			for(Component c : components) {
 				c.mouseScroll(e);
 			}
-			repaint();
 		}
 	}
 }
@@ -0,0 +1,282 @@
+package cla.dialog;
+
+import java.awt.Color;
+import java.awt.Dimension;
+import java.awt.Graphics;
+import java.awt.Rectangle;
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
+import java.awt.event.WindowAdapter;
+import java.awt.event.WindowEvent;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import javax.swing.JButton;
+import javax.swing.JCheckBox;
+import javax.swing.JLabel;
+import javax.swing.JDialog;
+import javax.swing.JOptionPane;
+import javax.swing.JPanel;
+import javax.swing.JProgressBar;
+import javax.swing.JScrollPane;
+import javax.swing.JTextArea;
+import javax.swing.SwingConstants;
+import javax.swing.SwingUtilities;
+import cla.Screen;
+import cla.util.FileManager;
+import cla.util.FleetUpload;
+
+/**
+ * This class is used to upload the current animation to several controllers at once,
+ * showing how each controller's upload is going and a summary once they've all finished.
+ *
+ * @author Duncan Cowan
+ *
+ */
+@SuppressWarnings("serial")
+public class FleetUploadDialog extends JDialog {
+	// Get the OS name.
+	private final String osName = System.getProperty("os.name");
+	// If the OS is a Mac, set the y offset to 20, for all other OSs set y offset to 0.
+	private final int OSYOffset = (osName.equals("Mac OS X") || osName.equals("Darwin")) ? 20 : 0;
+	// Set size of dialog.
+	private final Dimension size = new Dimension(500, 400);
+	// The height of each controller's row.
+	private static final int ROW_HEIGHT = 24;
+
+	// Stores the found controllers.
+	private String[] connectedControllers = new String[]{};
+	// Each controller's progress bar and status, by port name.
+	private final Map<String, JProgressBar> progressBars = new HashMap<String, JProgressBar>();
+	private final Map<String, JLabel> statusLabels = new HashMap<String, JLabel>();
+	private FleetUpload upload;
+
+	/**
+	 * Constructor.
+	 *
+	 * Creates the fleet upload dialog and starts searching for controllers.
+	 */
+	public FleetUploadDialog() {
+		super(Screen.getInstance().getFrame(), "Upload To Several Controllers", true);
+
+		if(Screen.getInstance().isFullscreen())
+			// Set the main window's state to windowed if it's fullscreen.
+			Screen.getInstance().toggleFullscreen();
+
+		// Set the dialog's location to the center of the main window.
+		Rectangle mainWindowBounds = Screen.getInstance().getFrame().getBounds();
+		this.setLocation(mainWindowBounds.x+(mainWindowBounds.width/2)-(size.width/2),
+						 mainWindowBounds.y+(mainWindowBounds.height/2)-(size.height/2));
+		// Set the dialog's size and make it non-resizeable.
+		this.setPreferredSize(size);
+		this.setResizable(false);
+		// Set custom content pane.
+		this.setContentPane(new MainPanel());
+		// Don't start any more uploads once the dialog is closed (the ones that have started finish).
+		this.addWindowListener(new WindowAdapter() {
+			public void windowClosed(WindowEvent e) {
+				if(upload != null)
+					upload.cancel();
+			}
+		});
+
+		messageUI("Looking For Controllers...");
+
+		// Search for controllers in new thread.
+		(new Thread() {
+			public void run() {
+				final String[] found = UploadDialog.findControllers();
+				SwingUtilities.invokeLater(new Runnable() {
+					public void run() {
+						connectedControllers = found;
+						getContentPane().removeAll();
+						if(connectedControllers.length < 1)
+							messageUI("NO CONTROLLERS FOUND");
+						else
+							selectControllersUI();
+						getContentPane().revalidate();
+						getContentPane().repaint();
+					}
+				});
+			}
+		}).start();
+
+		this.pack();
+		// Show the fleet upload dialog.
+		this.setVisible(true);
+	}
+
+	/**
+	 * Puts a list of the found controllers (all ticked) into the content pane,
+	 * with a button to upload to the ticked ones.
+	 */
+	private void selectControllersUI() {
+		JLabel label = new JLabel("Select the controllers to upload to:", SwingConstants.CENTER);
+		label.setForeground(Color.WHITE);
+		label.setBounds(12, 12, size.width-24, 15);
+		getContentPane().add(label);
+
+		// A check box for each controller.
+		JPanel list = new ListPanel(connectedControllers.length);
+		final List<JCheckBox> checkBoxes = new ArrayList<JCheckBox>();
+		for(int i = 0; i < connectedControllers.length; i++) {
+			JCheckBox checkBox = new JCheckBox("Controller " + (i+1) + " (" + connectedControllers[i] + ")", true);
+			checkBox.setBackground(Color.BLACK);
+			checkBox.setForeground(Color.WHITE);
+			checkBox.setBounds(4, i*ROW_HEIGHT, size.width-60, ROW_HEIGHT);
+			checkBoxes.add(checkBox);
+			list.add(checkBox);
+		}
+		getContentPane().add(scrollPane(list));
+
+		// Upload button.
+		JButton btnUpload = new JButton("Upload");
+		btnUpload.setBounds(12, size.height-12-25-OSYOffset, size.width-24, 25);
+		btnUpload.setBackground(Color.BLACK);
+		btnUpload.setForeground(Color.white);
+		btnUpload.addActionListener(new ActionListener() {
+			public void actionPerformed(ActionEvent e) {
+				List<String> ports = new ArrayList<String>();
+				for(int i = 0; i < checkBoxes.size(); i++) {
+					if(checkBoxes.get(i).isSelected())
+						ports.add(connectedControllers[i]);
+				}
+				if(ports.isEmpty())
+					return;
+				getContentPane().removeAll();
+				try {
+					uploadUI(FileManager.encodeForController(), ports);
+				} catch(IOException ex) {
+					// Tell the user why (e.g. the animation doesn't fit on the controller).
+					messageUI("UPLOAD FAILED");
+					JOptionPane.showMessageDialog(FleetUploadDialog.this, ex.getMessage());
+				}
+				getContentPane().revalidate();
+				getContentPane().repaint();
+			}
+		});
+		getContentPane().add(btnUpload);
+	}
+
+	/**
+	 * Starts uploading to the controllers, and puts a progress bar and status for each
+	 * of them into the content pane (followed by a summary once they've all finished).
+	 */
+	private void uploadUI(byte[] bytes, List<String> ports) {
+		JLabel label = new JLabel("Uploading to " + ports.size() + " controllers...", SwingConstants.CENTER);
+		label.setForeground(Color.WHITE);
+		label.setBounds(12, 12, size.width-24, 15);
+		getContentPane().add(label);
+
+		JPanel list = new ListPanel(ports.size());
+		for(int i = 0; i < ports.size(); i++) {
+			String port = ports.get(i);
+			JLabel name = new JLabel(port);
+			name.setForeground(Color.WHITE);
+			name.setBounds(4, i*ROW_HEIGHT, 140, ROW_HEIGHT);
+			list.add(name);
+			JProgressBar progressBar = new JProgressBar(0, 100);
+			progressBar.setBounds(148, i*ROW_HEIGHT+5, 100, ROW_HEIGHT-10);
+			list.add(progressBar);
+			progressBars.put(port, progressBar);
+			JLabel status = new JLabel("Waiting");
+			status.setForeground(Color.WHITE);
+			status.setBounds(256, i*ROW_HEIGHT, size.width-316, ROW_HEIGHT);
+			list.add(status);
+			statusLabels.put(port, status);
+		}
+		getContentPane().add(scrollPane(list));
+
+		// The summary (shown once every controller has finished).
+		final JTextArea summary = new JTextArea();
+		summary.setEditable(false);
+		summary.setBackground(Color.BLACK);
+		summary.setForeground(Color.WHITE);
+		final JScrollPane summaryPane = new JScrollPane(summary);
+		summaryPane.setBounds(12, size.height-12-60-OSYOffset, size.width-24, 60);
+		summaryPane.setVisible(false);
+		getContentPane().add(summaryPane);
+
+		upload = new FleetUpload(bytes, ports, new FleetUpload.Listener() {
+			public void deviceChanged(final FleetUpload.Device device) {
+				SwingUtilities.invokeLater(new Runnable() {
+					public void run() {
+						progressBars.get(device.getPort()).setValue(device.getProgress());
+						JLabel status = statusLabels.get(device.getPort());
+						status.setText(device.getStatus());
+						status.setToolTipText(device.getStatus());
+						if(device.isDone())
+							status.setForeground(device.isUploaded() ? Color.GREEN : Color.RED);
+					}
+				});
+			}
+
+			public void finished(final FleetUpload upload) {
+				SwingUtilities.invokeLater(new Runnable() {
+					public void run() {
+						label.setText(upload.getFailed().isEmpty() ? "UPLOAD COMPLETE" : "UPLOAD FAILED ON " + upload.getFailed().size() + " CONTROLLERS");
+						summary.setText(upload.getSummary());
+						summaryPane.setVisible(true);
+						getContentPane().revalidate();
+						getContentPane().repaint();
+					}
+				});
+			}
+		});
+		upload.start();
+	}
+
+	/**
+	 * Puts a message into the content pane.
+	 *
+	 * @param msg the message to display.
+	 */
+	private void messageUI(String msg) {
+		JLabel label = new JLabel(msg, SwingConstants.CENTER);
+		label.setForeground(Color.WHITE);
+		label.setBounds(0, 0, size.width, size.height-OSYOffset);
+		getContentPane().add(label);
+	}
+
+	/**
+	 * Returns a scroll pane (between the title and the bottom row) showing the list.
+	 */
+	private JScrollPane scrollPane(JPanel list) {
+		JScrollPane scrollPane = new JScrollPane(list);
+		scrollPane.setBounds(12, 35, size.width-24, size.height-35-12-72-OSYOffset);
+		scrollPane.getViewport().setBackground(Color.BLACK);
+		return scrollPane;
+	}
+
+	/**
+	 * A list of rows (absolutely positioned, ROW_HEIGHT apart).
+	 */
+	private class ListPanel extends JPanel {
+		public ListPanel(int rows) {
+			this.setBackground(Color.black);
+			this.setLayout(null);
+			this.setPreferredSize(new Dimension(size.width-48, rows*ROW_HEIGHT));
+		}
+	}
+
+	/**
+	 * Custom content pane.
+	 */
+	private class MainPanel extends JPanel {
+		public MainPanel() {
+			// Set the background to black and use
+			// absolute positioning for the components.
+			this.setBackground(Color.black);
+			this.setLayout(null);
+		}
+
+		protected void paintComponent(Graphics g) {
+			super.paintComponent(g);
+			// Add a white boarder around the edge of the content pane.
+			g.setColor(Color.white);
+			g.drawRect(0, -1, this.getWidth()-1, this.getHeight());
+		}
+	}
+}
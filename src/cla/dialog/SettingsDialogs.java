@@ -0,0 +1,67 @@
+package cla.dialog;
+
+import java.awt.GridLayout;
+import javax.swing.JLabel;
+import javax.swing.JOptionPane;
+import javax.swing.JPanel;
+import javax.swing.JSpinner;
+import javax.swing.SpinnerNumberModel;
+import cla.Screen;
+import cla.util.AnimationCompiler;
+import cla.util.AnimationSettings;
+import cla.util.FileManager;
+
+/**
+ * This class is used to display dialogs that relate to the project's settings.
+ *
+ * @author Duncan Cowan
+ *
+ */
+public abstract class SettingsDialogs {
+
+	/**
+	 * Displays a dialog giving the user the ability to change the number of LEDs,
+	 * time divisions and updates per second of the current animation.
+	 */
+	public static void projectSettingsDialog() {
+		if(Screen.getInstance().isFullscreen())
+			// Set the main window's state to windowed if it's fullscreen.
+			Screen.getInstance().toggleFullscreen();
+
+		AnimationSettings current = Screen.getInstance().timeline.getTimelines().getSettings();
+		// A spinner for each setting, starting at the current settings.
+		JSpinner leds = new JSpinner(new SpinnerNumberModel(current.getNumOfTimelines(), 1, AnimationSettings.MAX_TIMELINES, 1));
+		JSpinner divisions = new JSpinner(new SpinnerNumberModel(current.getNumOfDivisions(), 1, AnimationSettings.MAX_DIVISIONS, 1));
+		JSpinner ticksPerSecond = new JSpinner(new SpinnerNumberModel(current.getTicksPerSecond(),
+				AnimationCompiler.TICKS_PER_DIVISION, AnimationSettings.MAX_TICKS_PER_SECOND, AnimationCompiler.TICKS_PER_DIVISION));
+
+		JPanel panel = new JPanel(new GridLayout(0, 2, 8, 4));
+		panel.add(new JLabel("LEDs:"));
+		panel.add(leds);
+		panel.add(new JLabel("Time divisions:"));
+		panel.add(divisions);
+		panel.add(new JLabel("Updates per second:"));
+		panel.add(ticksPerSecond);
+		panel.add(new JLabel("The controller plays up to 4 LEDs,"));
+		panel.add(new JLabel("127 divisions at 80 updates per second."));
+
+		// Show the dialog.
+		int returnVal = JOptionPane.showConfirmDialog(Screen.getInstance().getFrame(), panel, "Project Settings", JOptionPane.OK_CANCEL_OPTION, JOptionPane.PLAIN_MESSAGE);
+		if(returnVal != JOptionPane.OK_OPTION)
+			return;
+
+		AnimationSettings settings;
+		try {
+			settings = new AnimationSettings((Integer)leds.getValue(), (Integer)divisions.getValue(), (Integer)ticksPerSecond.getValue());
+		} catch(IllegalArgumentException e) {
+			// If a setting is out of range, tell the user why.
+			JOptionPane.showMessageDialog(Screen.getInstance().getFrame(), e.getMessage(), "Project Settings", JOptionPane.ERROR_MESSAGE);
+			return;
+		}
+		if(!settings.equals(current)) {
+			// Apply the settings (keeping the sections that still fit).
+			Screen.getInstance().timeline.setSettings(settings);
+			FileManager.isFileSaved(false);
+		}
+	}
+}
@@ -7,6 +7,7 @@ import java.awt.Graphics;
 import java.awt.Rectangle;
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
+import java.util.Arrays;
 import java.util.regex.Pattern;
 import javax.swing.JButton;
 import javax.swing.JComboBox;
@@ -16,6 +17,7 @@ import javax.swing.JPanel;
 import javax.swing.SwingConstants;
 import cla.Screen;
 import cla.util.FileManager;
+import cla.util.SimulatedController;
 import jssc.SerialPortList;
 
 /**
@@ -98,6 +100,15 @@ public class UploadDialog extends JDialog {
 	 *  to the computer based on the OS.
 	 */
 	private synchronized void getControllers() {
+		connectedControllers = findControllers();
+	}
+
+	/**
+	 * Returns the available controllers (COM port names) that are connected
+	 *  to the computer based on the OS, followed by any simulated controllers.
+	 */
+	static String[] findControllers() {
+		String osName = System.getProperty("os.name");
 		Pattern regexp = null;
 		if(osName.equals("Linux")) {
 			regexp = Pattern.compile("rfcomm[0-9]{1,3}");
@@ -108,8 +119,11 @@ public class UploadDialog extends JDialog {
 		} else if(osName.equals("Mac OS X") || osName.equals("Darwin")) {
 			regexp = Pattern.compile("tty\\..+-Dev[A-Z]");
 		}
-		// Set the array of connected controllers (COM port names).
-		connectedControllers = SerialPortList.getPortNames(regexp);
+		String[] ports = SerialPortList.getPortNames(regexp);
+		String[] simulated = SimulatedController.getNames();
+		String[] controllers = Arrays.copyOf(ports, ports.length+simulated.length);
+		System.arraycopy(simulated, 0, controllers, ports.length, simulated.length);
+		return controllers;
 	}
 
 	/**
@@ -1,9 +1,11 @@
 package cla.ui;
 
 import java.awt.Graphics;
+import java.awt.Rectangle;
 import java.awt.event.MouseEvent;
 import java.awt.event.MouseWheelEvent;
 import java.util.ArrayList;
+import cla.Screen;
 
 /**
  * This is the base class for all custom UI components.
@@ -24,6 +26,9 @@ public abstract class Component {
 	private Component parent;
 	// List of components in this component.
 	private ArrayList<Component> components = new ArrayList<Component>();
+	// The area this component (and the components in it) draws to.
+	// This is reused so working out the area doesn't create a new rectangle.
+	private final Rectangle paintBounds = new Rectangle();
 	
 	/**
 	 * Constructor.
@@ -48,10 +53,56 @@ public abstract class Component {
 	 * Draws all components in this component (if they are visible).
 	 */
 	public void draw(Graphics g) {
-		for(Component c : components) {
-			if(c.visible)
-				c.draw(g);
+		for(int i = 0; i < components.size(); i++) {
+			if(components.get(i).visible)
+				components.get(i).draw(g);
+		}
+	}
+	
+	/**
+	 * Returns the area that this component and the components in it draw to.
+	 * 
+	 * Components that draw outside of their size and position should
+	 * override this to include the extra area.
+	 * 
+	 * Note: The returned rectangle is reused, so it will change the next time
+	 *       this is called.
+	 * 
+	 * @return the area this component draws to.
+	 */
+	public Rectangle getPaintBounds() {
+		paintBounds.setBounds(getX(), getY(), getWidth()+1, getHeight()+1);
+		for(int i = 0; i < components.size(); i++) {
+			if(components.get(i).visible)
+				paintBounds.add(components.get(i).getPaintBounds());
 		}
+		return paintBounds;
+	}
+	
+	/**
+	 * Repaints the area that this component and the components in it draw to.
+	 */
+	public void repaint() {
+		Rectangle r = getPaintBounds();
+		repaint(r.x, r.y, r.width, r.height);
+	}
+	
+	/**
+	 * Repaints the specified area.
+	 * 
+	 * The area is passed up to the top-level component, which asks the
+	 * Screen to repaint only that area (instead of the whole window).
+	 * 
+	 * @param x the x position of the area.
+	 * @param y the y position of the area.
+	 * @param width the width of the area.
+	 * @param height the height of the area.
+	 */
+	protected void repaint(int x, int y, int width, int height) {
+		if(parent != null)
+			parent.repaint(x, y, width, height);
+		else
+			Screen.getInstance().repaint(x, y, width, height);
 	}
 	
 	/**
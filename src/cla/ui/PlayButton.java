@@ -12,6 +12,9 @@ import java.awt.Graphics;
 public class PlayButton extends Button {
 	// State of play button.
 	private boolean clicked = false;
+	// Reused to hold the points of the play/stop symbol.
+	private final int[] xPoints = new int[4];
+	private final int[] yPoints = new int[4];
 	
 	/**
 	 * Constructor.
@@ -26,14 +29,16 @@ public class PlayButton extends Button {
 	 * Draws the play button.
 	 */
 	public void draw(Graphics g) {
-		int[] xPoints = {getX(), getX(), getX()+getWidth(), getX()+getWidth()};
-		int[] yPoints = {getY()+getHeight(), getY(), getY(), getY()+getHeight()};
+		xPoints[0] = getX(); xPoints[1] = getX(); xPoints[2] = getX()+getWidth(); xPoints[3] = getX()+getWidth();
+		yPoints[0] = getY()+getHeight(); yPoints[1] = getY(); yPoints[2] = getY(); yPoints[3] = getY()+getHeight();
 		// If the play button is not clicked, show the play symbol,
 		// otherwise show the stop symbol.
 		if(!clicked)
 			yPoints[2] = yPoints[3] = getY()+(getHeight()/2);
 		g.setColor(Color.WHITE);
-		g.drawPolygon(xPoints, yPoints, 4);
+		// Drawn as lines, because drawing a polygon creates new objects every frame.
+		for(int i = 0; i < 4; i++)
+			g.drawLine(xPoints[i], yPoints[i], xPoints[(i+1)%4], yPoints[(i+1)%4]);
 	}
 	
 	/*
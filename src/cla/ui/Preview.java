@@ -1,13 +1,16 @@
 package cla.ui;
 
 import java.awt.Color;
+import java.awt.FontMetrics;
 import java.awt.Graphics;
 import java.awt.Graphics2D;
 import java.awt.Image;
+import java.awt.Rectangle;
 import java.awt.RenderingHints;
 import java.awt.image.BufferedImage;
 import java.io.IOException;
 import javax.imageio.ImageIO;
+import javax.swing.ImageIcon;
 import cla.Screen;
 
 /**
@@ -15,6 +18,8 @@ import cla.Screen;
  * 
  * It contains an image of a controller and
  * four circles that represent the programmable LEDs.
+ * Projects with more than four LEDs are shown as a grid
+ * of LEDs instead (they don't fit on the controller).
  * 
  * TODO Move the play button from the timeline panel to this panel.
  * 
@@ -22,6 +27,16 @@ import cla.Screen;
  *
  */
 public class Preview extends Component {
+	// LED position offsets from the top LED's position,
+	// in multiples of the distance between LEDs.
+	private static final int[] LED_X_OFFSETS = {0, 1, 0, -1};
+	private static final int[] LED_Y_OFFSETS = {0, 1, 2, 1};
+	// The number of LEDs being shown.
+	private int numOfLeds;
+	// The number of columns in the grid of LEDs (when there are too many LEDs for the controller).
+	private int gridColumns;
+	// The LED numbers, so the strings don't have to be created every frame.
+	private String[] ledNumbers = new String[0];
 	// Stores the original, raw image of the controller.
 	private BufferedImage originalController;
 	// Stores the resized image of the controller.
@@ -29,6 +44,17 @@ public class Preview extends Component {
 	// Stores the height and width of the resized image.
 	private double imgW, imgH;
 	private boolean showLedNumbers = false;
+	// The LED colours the last time the LEDs were repainted.
+	private Color[] repaintedLedColors = new Color[0];
+	// Reused to hold an LED's position and size.
+	private final Rectangle ledBounds = new Rectangle();
+	// Cached image of the LED outlines, the LED numbers and the controller image,
+	// which is drawn over the LEDs (null if it needs to be redrawn).
+	private BufferedImage overlay;
+	private int overlayX, overlayY;
+	// The rows of an LED, spans[row] = {x offset, width}, so an LED can be
+	// filled with plain rectangles (filling an oval creates new objects every frame).
+	private int[][] ledSpans;
 
 	/**
 	 * Constructor.
@@ -47,44 +73,220 @@ public class Preview extends Component {
 		imgH = height - 80;
 		imgW = originalController.getWidth() * (imgH / (originalController.getHeight() * 1.0));
 
-		resizedController = originalController.getScaledInstance((int) Math.round(imgW), (int) Math.round(imgH), Image.SCALE_SMOOTH);
+		resizedController = resizeController();
 	}
 
 	/**
 	 * Draws the resized controller image and the programmable LEDs.
 	 */
 	public void draw(Graphics g) {
-		// Draw the resized image in the center of the preview panel.
-		int imgX = (int) Math.round(x + (width / 2) - (imgW / 2.0)) - 20;
-		int imgY = (int) Math.round(y + (height / 2) - (imgH / 2.0)) - 50;
-		
-		// Set LED's size relative to the height of the resized image.
-		int ledSize = (int) Math.round(imgH * 0.1026);
-		// Set the top LED's position relative to the height of the resized image.
-		// (The other LED positions will be based on the top LED.)
-		double topLedX = (imgX) + (imgW * 0.7485);
-		double topLedY = (imgY) + (imgH * 0.0874);
-		// LED position offsets form the top LED's position.
-		double[] ledXOffset = {0, (imgH * 0.1084), 0, -(imgH * 0.1084)};
-		double[] lesYOffset = {0, (imgH * 0.1084), (imgH * 0.1084) * 2, (imgH * 0.1084)};
+		Color[] ledColors = Timeline.previewLedColors.get();
+		if(ledColors.length != numOfLeds)
+			setNumOfLeds(ledColors.length);
+		if(overlay == null)
+			drawOverlay((Graphics2D) g);
 
 		// Draw LEDs
-		for(int i = 0; i < Timeline.NUM_OF_TIMELINES; i++) {
-			g.setColor(Timeline.previewLedColors[i]);
-			g.fillOval((int) Math.round(topLedX + ledXOffset[i]), (int) Math.round(topLedY + lesYOffset[i]), ledSize, ledSize);
-			g.setColor(Color.WHITE);
+		for(int i = 0; i < numOfLeds; i++) {
+			getLedBounds(i, ledBounds);
+			g.setColor(ledColors[i]);
+			for(int row = 0; row < ledSpans.length; row++) {
+				if(ledSpans[row][1] > 0)
+					g.fillRect(ledBounds.x + ledSpans[row][0], ledBounds.y + row, ledSpans[row][1], 1);
+			}
+		}
+
+		// Draw the LED outlines, LED numbers and the resized controller image.
+		g.drawImage(overlay, overlayX, overlayY, null);
+	}
+
+	/**
+	 * Draws the white outlines of the LEDs, the LED numbers (if they are visible)
+	 * and the resized controller image into the overlay image, and works out the
+	 * rows that make up an LED.
+	 * 
+	 * @param g the graphics object the overlay will be drawn onto.
+	 */
+	private void drawOverlay(Graphics2D g) {
+		FontMetrics fm = g.getFontMetrics();
+		// The overlay covers the controller image and the LED numbers above the LEDs.
+		Rectangle bounds = new Rectangle(getImageX(), getImageY(), (int) Math.round(imgW) + 1, (int) Math.round(imgH) + 1);
+		for(int i = 0; i < numOfLeds; i++) {
+			getLedBounds(i, ledBounds);
+			bounds.add(ledBounds.x - 1, ledBounds.y - fm.getHeight());
+			bounds.add(ledBounds.x + ledBounds.width + 2, ledBounds.y + ledBounds.height + 2);
+		}
+		overlayX = bounds.x;
+		overlayY = bounds.y;
+
+		overlay = new BufferedImage(bounds.width, bounds.height, BufferedImage.TYPE_INT_ARGB);
+		Graphics2D og = overlay.createGraphics();
+		og.setRenderingHints(g.getRenderingHints());
+		og.setFont(g.getFont());
+		// Draw using the same coordinates as the preview.
+		og.translate(-overlayX, -overlayY);
+		for(int i = 0; i < numOfLeds; i++) {
+			getLedBounds(i, ledBounds);
+			og.setColor(Color.WHITE);
 			// Only enable antialiasing for the white outline of the LEDs.
 			// This is done to make the LEDs look like they are a part of the controller image.
-			((Graphics2D) g).setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
-			g.drawOval((int) Math.round(topLedX + ledXOffset[i]), (int) Math.round(topLedY + lesYOffset[i]), ledSize, ledSize);
-			// Disable antialiasing after drawing the white outline of the LEDs to maximize performance.
-			((Graphics2D) g).setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_OFF);
+			og.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+			og.drawOval(ledBounds.x, ledBounds.y, ledBounds.width, ledBounds.height);
+			og.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_OFF);
 			if(this.showLedNumbers) 
-				g.drawString("" + (i + 1), (int) Math.round(topLedX + ledXOffset[i]) + (ledSize / 2) - (g.getFontMetrics().stringWidth("" + (i + 1)) / 2), (int) Math.round(topLedY + lesYOffset[i]) - (g.getFontMetrics().getHeight() / 3));
+				og.drawString(ledNumbers[i], ledBounds.x + (ledBounds.width / 2) - (fm.stringWidth(ledNumbers[i]) / 2), ledBounds.y - (fm.getHeight() / 3));
+		}
+		if(isControllerLayout())
+			og.drawImage(resizedController, getImageX(), getImageY(), null);
+		og.dispose();
+
+		// Fill an oval into a small image and read back its rows,
+		// so the LEDs cover exactly the same pixels as a filled oval.
+		getLedBounds(0, ledBounds);
+		int ledSize = ledBounds.width;
+		BufferedImage mask = new BufferedImage(ledSize + 1, ledSize + 1, BufferedImage.TYPE_INT_RGB);
+		Graphics2D mg = mask.createGraphics();
+		mg.setColor(Color.WHITE);
+		mg.fillOval(0, 0, ledSize, ledSize);
+		mg.dispose();
+		ledSpans = new int[ledSize + 1][2];
+		for(int row = 0; row <= ledSize; row++) {
+			int first = -1, last = -1;
+			for(int col = 0; col <= ledSize; col++) {
+				if((mask.getRGB(col, row) & 0xFFFFFF) != 0) {
+					if(first < 0)
+						first = col;
+					last = col;
+				}
+			}
+			ledSpans[row][0] = Math.max(first, 0);
+			ledSpans[row][1] = (first < 0) ? 0 : last - first + 1;
+		}
+	}
+
+	/**
+	 * Returns the area that the preview draws to, which includes
+	 * the controller image (it can be drawn outside of the preview panel).
+	 */
+	public Rectangle getPaintBounds() {
+		Rectangle r = super.getPaintBounds();
+		r.add(getImageX(), getImageY());
+		r.add(getImageX() + (int) Math.round(imgW) + 1, getImageY() + (int) Math.round(imgH) + 1);
+		return r;
+	}
+
+	/**
+	 * Repaints the LEDs whose colour has changed since they were last repainted.
+	 * 
+	 * This should be called whenever the preview LED colours change.
+	 */
+	public void repaintChangedLeds() {
+		Color[] ledColors = Timeline.previewLedColors.get();
+		if(ledColors.length != numOfLeds) {
+			// The number of LEDs changed, so every LED moves.
+			repaint();
+			return;
+		}
+		for(int i = 0; i < numOfLeds; i++) {
+			Color c = ledColors[i];
+			// The LED colours come from the timeline's palette,
+			// so a changed colour is always a different object.
+			if(c != repaintedLedColors[i]) {
+				repaintedLedColors[i] = c;
+				getLedBounds(i, ledBounds);
+				// Include the antialiased outline.
+				repaint(ledBounds.x-1, ledBounds.y-1, ledBounds.width+3, ledBounds.height+3);
+			}
+		}
+	}
+
+	/**
+	 * Works out the position and size of the specified LED.
+	 * 
+	 * @param led the LED.
+	 * @param r the rectangle to store the LED's position and size in.
+	 */
+	private void getLedBounds(int led, Rectangle r) {
+		if(!isControllerLayout()) {
+			getGridLedBounds(led, r);
+			return;
 		}
-		
-		// Draw the resized controller image.
-		g.drawImage(resizedController, imgX, imgY, null);
+		// Set LED's size relative to the height of the resized image.
+		int ledSize = (int) Math.round(imgH * 0.1026);
+		// Set the top LED's position relative to the height of the resized image.
+		// (The other LED positions will be based on the top LED.)
+		double topLedX = getImageX() + (imgW * 0.7485);
+		double topLedY = getImageY() + (imgH * 0.0874);
+		// The distance between LEDs.
+		double ledSpacing = imgH * 0.1084;
+		r.setBounds((int) Math.round(topLedX + ledSpacing * LED_X_OFFSETS[led]), (int) Math.round(topLedY + ledSpacing * LED_Y_OFFSETS[led]), ledSize, ledSize);
+	}
+
+	/**
+	 * Works out the position and size of the specified LED in the grid of LEDs,
+	 * which fills the area the controller image would be drawn in.
+	 * 
+	 * @param led the LED.
+	 * @param r the rectangle to store the LED's position and size in.
+	 */
+	private void getGridLedBounds(int led, Rectangle r) {
+		int rows = (numOfLeds + gridColumns - 1) / gridColumns;
+		double cellSize = Math.min(imgW / gridColumns, imgH / rows);
+		// The LEDs are never bigger than they are on the controller.
+		int ledSize = Math.max(2, (int) Math.round(Math.min(imgH * 0.1026, cellSize * 0.8)));
+		double gridX = getImageX() + (imgW - cellSize * gridColumns) / 2;
+		double gridY = getImageY() + (imgH - cellSize * rows) / 2;
+		r.setBounds((int) Math.round(gridX + cellSize * (led % gridColumns) + (cellSize - ledSize) / 2),
+				(int) Math.round(gridY + cellSize * (led / gridColumns) + (cellSize - ledSize) / 2), ledSize, ledSize);
+	}
+
+	/**
+	 * Checks if the LEDs are shown on the controller image (rather than in a grid).
+	 */
+	private boolean isControllerLayout() {
+		return numOfLeds <= LED_X_OFFSETS.length;
+	}
+
+	/**
+	 * Changes the number of LEDs being shown.
+	 * 
+	 * @param numOfLeds the number of LEDs.
+	 */
+	private void setNumOfLeds(int numOfLeds) {
+		this.numOfLeds = numOfLeds;
+		// Use roughly the same shape as the controller image for the grid.
+		gridColumns = Math.max(1, (int) Math.ceil(Math.sqrt(numOfLeds * imgW / imgH)));
+		repaintedLedColors = new Color[numOfLeds];
+		ledNumbers = new String[numOfLeds];
+		for(int i = 0; i < numOfLeds; i++)
+			ledNumbers[i] = Integer.toString(i + 1);
+		overlay = null;
+	}
+
+	/**
+	 * Resizes the controller image to the current image size.
+	 * 
+	 * The resized image is loaded straight away (the scaled image would
+	 * otherwise load in the background) so that it can be drawn into the overlay.
+	 * 
+	 * @return the resized image.
+	 */
+	private Image resizeController() {
+		return new ImageIcon(originalController.getScaledInstance((int) Math.round(imgW), (int) Math.round(imgH), Image.SCALE_SMOOTH)).getImage();
+	}
+
+	/**
+	 * Returns the x position of the resized image, which is drawn in the center of the preview panel.
+	 */
+	private int getImageX() {
+		return (int) Math.round(x + (width / 2) - (imgW / 2.0)) - 20;
+	}
+
+	/**
+	 * Returns the y position of the resized image, which is drawn in the center of the preview panel.
+	 */
+	private int getImageY() {
+		return (int) Math.round(y + (height / 2) - (imgH / 2.0)) - 50;
 	}
 
 	/**
@@ -96,7 +298,8 @@ public class Preview extends Component {
 		super.updateSizeAndPosition(xMod, yMod);
 		imgW *= yMod;
 		imgH *= yMod;
-		resizedController = originalController.getScaledInstance((int) Math.round(imgW), (int) Math.round(imgH), Image.SCALE_SMOOTH);
+		resizedController = resizeController();
+		overlay = null;
 	}
 
 	/**
@@ -104,6 +307,7 @@ public class Preview extends Component {
 	 */
 	public void toggleLedNumbers() {
 		this.showLedNumbers = !this.showLedNumbers;
+		overlay = null;
 		Screen.getInstance().repaint();
 	}
 
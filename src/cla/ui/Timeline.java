@@ -3,11 +3,21 @@ package cla.ui;
 import java.awt.*;
 import java.awt.event.MouseEvent;
 import java.awt.event.MouseWheelEvent;
-import java.util.ArrayList;
-import java.util.Collections;
+import java.awt.image.BufferedImage;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+import javax.swing.SwingUtilities;
 import cla.Screen;
+import cla.util.AllocationCheck;
+import cla.util.AnimationCompiler;
+import cla.util.AnimationSettings;
+import cla.util.AnimationSnapshot;
+import cla.util.Autosave;
 import cla.util.FileManager;
+import cla.util.PlaybackClock;
 import cla.util.Section;
+import cla.util.SectionIndex;
+import cla.util.SectionStore;
 
 /**
  * This class defines the timeline custom UI panel.
@@ -22,37 +32,81 @@ import cla.util.Section;
  *
  */
 public class Timeline extends Component {
-	// Set the number of timelines (tracks), 
-	// how many time divisions they have and the colours of the preview LEDs.
-	// TODO Put this information into a config file, should not hardcoded.
-	public static final int NUM_OF_TIMELINES = 4;
-	public static final int NUM_OF_DIVISIONS = 126;
-	protected static final Color[] LED_COLORS = {Color.orange, Color.red, Color.green, Color.blue};
+	// The colours of the preview LEDs (timelines past the last colour start from the first again).
+	protected static final Color[] LED_COLORS = createLedColors();
+	// Every LED colour at every brightness, palette[led][brightness], so that new
+	// colours don't have to be created every frame. The colours are opaque (the LED colour
+	// blended with black) because see-through colours are much slower to draw.
+	protected static final Color[][] palette = createPalette();
+	// The colours of the see-through backgrounds of the sections.
+	private static final Color[] SECTION_BACKGROUND_COLORS = createSectionBackgroundColors();
+	// The most timelines shown at once when a project is opened (the rest can be scrolled to).
+	private static final int MAX_VISIBLE_TIMELINES = 8;
+	// The closest the seconds labels can be to each other (in pixels).
+	private static final int MIN_SECONDS_LABEL_SPACING = 30;
+	// Every time division line is only drawn if the divisions are at least this wide (in pixels).
+	private static final int MIN_DIVISION_LINE_SPACING = 3;
+	// How many seconds can be between each seconds label.
+	private static final int[] SECONDS_LABEL_STEPS = {1, 2, 5, 10, 15, 30, 60, 120, 300, 600, 1800, 3600};
+	// Colours of the lines between timelines and time divisions.
+	private static final Color TIMELINE_LINE_COLOR = new Color(30, 30, 30);
+	private static final Color DIVISION_LINE_COLOR = new Color(255, 255, 255, 80);
 	/* TODO Make this part of the preview panel. */
-	protected static Color[] previewLedColors = new Color[NUM_OF_TIMELINES];
-
-	private ArrayList<ArrayList<Section>> timelines = new ArrayList<ArrayList<Section>>();
-	private ArrayList<Section> selectedTimeline;
-	private Section selectedSection;
-	private Thread preview;
+	// The colours the preview LEDs are showing (the front buffer of whichever thread last updated them).
+	protected static final AtomicReference<Color[]> previewLedColors = new AtomicReference<Color[]>();
+
+	private SectionStore timelines = new SectionStore(AnimationSettings.DEFAULT);
+	// An index of each timeline's sections, used for finding and colliding with sections.
+	private SectionIndex[] indexes;
+	// The animation the preview plays, replaced (never changed) on every edit.
+	private final AtomicReference<AnimationSnapshot> snapshot = new AtomicReference<AnimationSnapshot>();
+	// The preview LED colours written by the playback clock's thread and by the UI thread.
+	private final LedBuffer clockLeds = new LedBuffer();
+	private final LedBuffer editLeds = new LedBuffer();
+	private int selectedTimelineIndex;
+	// The index of the selected section in the selected timeline (-1 if none).
+	private int selectedSection = -1;
+	// Keeps time while previewing the animation.
+	private PlaybackClock clock;
 
 	private volatile boolean previewing = false;
 	private volatile int curTime = 0;
-	private volatile int endTime = 0;
+	// The time the scrubber was at and the pan when the timeline was last repainted
+	// (only used on the event dispatch thread).
+	private int repaintedTime = 0;
+	private int repaintedXPan = 0;
+	// True while a tick's repaint is waiting to run on the event dispatch thread.
+	private final AtomicBoolean tickRepaintPending = new AtomicBoolean();
+	private int endTime = 0;
 
 	private int yPan = 0;
 	private int yZoom = 0;
-	private int xPan = 0;
+	private volatile int xPan = 0;
 	private int xZoom = 1;
 
+	// Cached image of the timeline's grid, labels and sections, which only change when the
+	// timeline is edited, zoomed, panned or resized (so they don't need to be redrawn every frame).
+	private BufferedImage staticLayer;
+	// Set when a section changes, so the static layer gets redrawn.
+	private volatile boolean sectionsChanged = true;
+	// Reused to hold the points of the section being drawn.
+	private final int[] xPoints = new int[4];
+	private final int[] yPoints = new int[4];
+	// Checks that updating the preview allocates no memory (part of each frame's allocation check).
+	private final AllocationCheck previewAllocationCheck = new AllocationCheck("preview update");
+	// Where the static layer is drawn.
+	private int staticLayerX, staticLayerY;
+	// The zoom, pan, size and position the static layer was drawn with.
+	private int cachedXZoom, cachedXPan, cachedYZoom, cachedYPan;
+	private int cachedX, cachedY, cachedWidth, cachedHeight;
+
 	public Timeline(int id, Component parent, int x, int y, int height, int width) {
 		super(id, parent, x, y, height, width);
 
-		//Set preview leds to 'off' and add blank timelines
-		for(int i = 0; i < NUM_OF_TIMELINES; i++) {
-			previewLedColors[i] = Color.BLACK;
-			timelines.add(new ArrayList<Section>());
-		}
+		//Set preview leds to 'off'
+		editLeds.clear(timelines.getNumOfTimelines());
+		reindex();
+		recompile();
 
 		//Add buttons
 		this.add(new Button(0, this, "+", x, y+height+2, 12, 12));
@@ -68,29 +122,38 @@ public class Timeline extends Component {
 		this.add(new PlayButton(8, this, (Screen.WIDTH/2)-25, y-95, 50, 50));
 
 		//Led animation timer
-		preview = new Thread() {
-			public void run() {
-				long count = System.nanoTime() + 12600000;
-				while(true) {
-					if(previewing && (System.nanoTime()-count) >= 12500000) {
-						count = System.nanoTime();
-						if(curTime > endTime*10+1)
-							curTime = 0;
-						updatePreview(true);
-						curTime++;
-						Screen.getInstance().repaint();
-						try {Thread.sleep(10);} catch (InterruptedException e) {}
-					}
-					
-					if(!previewing)
-						//Thread.yield();
-						try {Thread.sleep(900000);} catch (InterruptedException e) {}
-				}
+		clock = new PlaybackClock(new PlaybackClock.Listener() {
+			public void tick(int tick, int skipped) {
+				curTime = tick;
+				previewAllocationCheck.begin();
+				updatePreview(true, clockLeds);
+				previewAllocationCheck.end();
+				AllocationCheck.frameEnded();
+				// Skip repainting this tick if painting is too slow to keep up.
+				if(!Screen.getInstance().frameRateLimiter.shouldRepaint(skipped, snapshot.get().getTickNanos()))
+					return;
+				// Work out what to repaint on the event dispatch thread (which paints the
+				// components), unless the last tick's repaint hasn't happened yet.
+				if(tickRepaintPending.compareAndSet(false, true))
+					SwingUtilities.invokeLater(tickRepaint);
 			}
-		};
-		preview.start();
+		});
 	}
 
+	// Repaints what changed in the last tick (run on the event dispatch thread).
+	private final Runnable tickRepaint = new Runnable() {
+		public void run() {
+			tickRepaintPending.set(false);
+			// Only repaint the whole timeline if it scrolled,
+			// otherwise just repaint the scrubber and the LEDs that changed.
+			if(xPan != repaintedXPan)
+				repaint();
+			else
+				repaintScrubber();
+			Screen.getInstance().preview.repaintChangedLeds();
+		}
+	};
+
 	public void updateSizeAndPosition(double xMod, double yMod) {
 		this.y *= yMod;
 		this.height *= yMod;
@@ -114,32 +177,39 @@ public class Timeline extends Component {
 
 	protected void buttonClicked(Button b) {
 		if(b.getId() == 0) {
-			xZoom++;
-			if(xZoom > 13)
-				xZoom = 15;
+			// Zoom in one step at a time up to 13x, then double (long timelines need a lot more zoom).
+			if(xZoom < 13)
+				xZoom++;
+			else
+				xZoom = (xZoom == 13) ? 15 : xZoom*2;
+			if(xZoom > getMaxXZoom())
+				xZoom = getMaxXZoom();
 		} else if(b.getId() == 1 && xZoom > 1) {
-			xZoom--;
-			if(xZoom > 13)
+			if(xZoom > 15)
+				xZoom = Math.max(15, xZoom/2);
+			else if(xZoom == 15)
 				xZoom = 13;
-			if(xPan > 8*15-(NUM_OF_DIVISIONS/xZoom)+6) {
-				xPan = 8*15-(NUM_OF_DIVISIONS/xZoom)+6;
+			else
+				xZoom--;
+			if(xPan > getMaxXPan()) {
+				xPan = getMaxXPan();
 			}
 		} else if(b.getId() == 2) {
-			xPan-=8;
+			xPan-=getXPanStep();
 			if(xPan < 0) {
 				xPan = 0;
 			}
 		} else if(b.getId() == 3) {
-			xPan+=8;
-			if(xPan > 8*15-(NUM_OF_DIVISIONS/xZoom)+6) {
-				xPan = 8*15-(NUM_OF_DIVISIONS/xZoom)+6;
+			xPan+=getXPanStep();
+			if(xPan > getMaxXPan()) {
+				xPan = getMaxXPan();
 			}
 		} 
 
 		else if(b.getId() == 4) {
 			yZoom++;
-			if(yZoom > NUM_OF_TIMELINES-1)
-				yZoom = NUM_OF_TIMELINES-1;
+			if(yZoom > timelines.getNumOfTimelines()-1)
+				yZoom = timelines.getNumOfTimelines()-1;
 		} else if(b.getId() == 5) {
 			yZoom--;
 			if(yZoom < 0)
@@ -156,137 +226,471 @@ public class Timeline extends Component {
 				yPan = 0;
 		} else if(b.getId() == 8) {
 			if(!previewing) {
-				for(ArrayList<Section> tl : timelines) {
-					previewLedColors[timelines.indexOf(tl)] = Color.BLACK;
-				}
-				preview.interrupt();
+				editLeds.clear(timelines.getNumOfTimelines());
+				AnimationSnapshot snap = snapshot.get();
+				clock.start(curTime, snap.getLoopLength(), snap.getTickNanos());
+			} else {
+				clock.stop();
 			}
 			previewing = !previewing;
 			((PlayButton) b).toggle();
+			Screen.getInstance().preview.repaintChangedLeds();
 		}
+		repaint();
 	}
 
 	public void draw(Graphics g) {
-		double tlH = (height/(NUM_OF_TIMELINES-yZoom));
-		double divW = (width/(NUM_OF_DIVISIONS/xZoom));
+		double tlH = (height/(timelines.getNumOfTimelines()-yZoom));
+		double divW = (width/(timelines.getNumOfDivisions()/xZoom));
+
+		//Draw timelines, divisions and sections (redrawing them only if they have changed)
+		if(isStaticLayerInvalid())
+			drawStaticLayer((Graphics2D) g, tlH, divW);
+		g.drawImage(staticLayer, staticLayerX, staticLayerY, null);
+
+		//Timeline outline
+		g.setColor(Color.WHITE);
+		g.drawRect(getX(), getY(), getWidth(), getHeight());
+
+		//Draw scrubber
+		// The scrubber is kept inside the timeline by hand, instead of clipping
+		// it, because changing the clip creates new objects every frame.
+		int scrubberX = (int)(x+(divW/AnimationCompiler.TICKS_PER_DIVISION)*(curTime-xPan*AnimationCompiler.TICKS_PER_DIVISION));
+		int left = getX()+1, right = getX()+getWidth();
+		int top = getY()-14, bottom = getY()+getHeight()-1;
+		g.setColor(Color.BLACK);
+		if(scrubberX-1 >= left && scrubberX-1 <= right)
+			g.drawLine(scrubberX-1, top, scrubberX-1, bottom);
+		if(scrubberX+1 >= left && scrubberX+1 <= right)
+			g.drawLine(scrubberX+1, top, scrubberX+1, bottom);
+		g.setColor(Color.RED);
+		int headX = Math.max(scrubberX-5, left);
+		int headW = Math.min(scrubberX+7, right+1)-headX;
+		if(headW > 0)
+			g.fillRect(headX, top, headW, 12);
+		if(scrubberX >= left && scrubberX <= right)
+			g.drawLine(scrubberX, top, scrubberX, bottom);
+		
+		super.draw(g);
+	}
+
+	/**
+	 * Creates the LED colours, the controller's 4 colours followed by
+	 * evenly spaced hues for projects with more LEDs.
+	 * 
+	 * @return the LED colours.
+	 */
+	private static Color[] createLedColors() {
+		Color[] colors = new Color[16];
+		colors[0] = Color.orange;
+		colors[1] = Color.red;
+		colors[2] = Color.green;
+		colors[3] = Color.blue;
+		for(int i = 4; i < colors.length; i++)
+			colors[i] = Color.getHSBColor((i-4)/(float)(colors.length-4)+1/24f, (i % 2 == 0) ? 1f : 0.6f, 1f);
+		return colors;
+	}
+
+	/**
+	 * Creates the see-through section background colour of each LED colour.
+	 * 
+	 * @return the background colours.
+	 */
+	private static Color[] createSectionBackgroundColors() {
+		Color[] colors = new Color[LED_COLORS.length];
+		for(int i = 0; i < colors.length; i++)
+			colors[i] = new Color(LED_COLORS[i].getRed(), LED_COLORS[i].getGreen(), LED_COLORS[i].getBlue(), 100);
+		return colors;
+	}
+
+	/**
+	 * Creates every LED colour at every brightness.
+	 * 
+	 * Each colour is what the LED colour would look like with the brightness
+	 * as its alpha, drawn over black.
+	 * 
+	 * @return the palette, palette[led][brightness].
+	 */
+	private static Color[][] createPalette() {
+		Color[][] palette = new Color[LED_COLORS.length][256];
+		for(int led = 0; led < LED_COLORS.length; led++) {
+			for(int brightness = 0; brightness < 256; brightness++) {
+				palette[led][brightness] = new Color(
+						(LED_COLORS[led].getRed()*brightness+127)/255, 
+						(LED_COLORS[led].getGreen()*brightness+127)/255, 
+						(LED_COLORS[led].getBlue()*brightness+127)/255);
+			}
+		}
+		return palette;
+	}
+
+	/**
+	 * Returns the area that the timeline draws to, which includes the timeline
+	 * labels on the left, the seconds labels and scrubber above and the buttons.
+	 */
+	public Rectangle getPaintBounds() {
+		Rectangle r = super.getPaintBounds();
+		r.add((int)Math.round(x-40), (int)Math.round(y-30));
+		r.add((int)Math.round(x+width)+40, (int)Math.round(y+height)+1);
+		return r;
+	}
+
+	/**
+	 * Repaints the whole timeline, including the scrubber.
+	 */
+	public void repaint() {
+		repaintedTime = curTime;
+		repaintedXPan = xPan;
+		super.repaint();
+	}
+
+	/**
+	 * Repaints the scrubber where it was last repainted and where it is now.
+	 */
+	private void repaintScrubber() {
+		repaintScrubberAt(repaintedTime);
+		repaintedTime = curTime;
+		repaintScrubberAt(repaintedTime);
+	}
+
+	/**
+	 * Repaints the scrubber's column at the specified time.
+	 * 
+	 * @param time the time the scrubber is at.
+	 */
+	private void repaintScrubberAt(int time) {
+		double divW = (width/(timelines.getNumOfDivisions()/xZoom));
+		int scrubberX = (int)(x+(divW/AnimationCompiler.TICKS_PER_DIVISION)*(time-xPan*AnimationCompiler.TICKS_PER_DIVISION));
+		repaint(scrubberX-6, getY()-15, 14, getHeight()+17);
+	}
+
+	/**
+	 * Checks if the static layer needs to be redrawn.
+	 * 
+	 * @return true if the timeline has been edited, zoomed, panned or resized since
+	 *         the static layer was drawn (or it hasn't been drawn yet).
+	 */
+	private boolean isStaticLayerInvalid() {
+		return staticLayer == null || sectionsChanged || cachedXZoom != xZoom || cachedXPan != xPan || 
+				cachedYZoom != yZoom || cachedYPan != yPan || cachedX != getX() ||
+				cachedY != getY() || cachedWidth != getWidth() || cachedHeight != getHeight();
+	}
+
+	/**
+	 * Draws the timeline labels, the lines between the timelines, the time
+	 * division lines, the seconds labels and the sections into the static layer image.
+	 * 
+	 * @param g the graphics object the static layer will be drawn onto.
+	 * @param tlH the height of a timeline.
+	 * @param divW the width of a time division.
+	 */
+	private void drawStaticLayer(Graphics2D g, double tlH, double divW) {
+		sectionsChanged = false;
+		FontMetrics fm = g.getFontMetrics();
+		// The static layer covers the timeline labels on the left, 
+		// the seconds labels above and a seconds label past the right edge.
+		staticLayerX = (int)Math.round(x-40);
+		staticLayerY = (int)Math.round(y-10)-fm.getAscent();
+		int layerW = (int)Math.round(x+width)-staticLayerX+fm.stringWidth("000")+1;
+		int layerH = (int)Math.round(y+height)-staticLayerY+1;
+
+		// The static layer is opaque (drawn over the black background), 
+		// only create a new image if the size has changed.
+		if(staticLayer == null || staticLayer.getWidth() != layerW || staticLayer.getHeight() != layerH)
+			staticLayer = g.getDeviceConfiguration().createCompatibleImage(layerW, layerH);
+		Graphics2D lg = staticLayer.createGraphics();
+		lg.setRenderingHints(g.getRenderingHints());
+		lg.setFont(g.getFont());
+		lg.setColor(Color.BLACK);
+		lg.fillRect(0, 0, layerW, layerH);
+		// Draw using the same coordinates as the timeline.
+		lg.translate(-staticLayerX, -staticLayerY);
 
 		//Draw timelines
-		for(int i = 0; i < (NUM_OF_TIMELINES-yZoom); i++) {
-			g.setColor(Color.WHITE);
-			g.drawString("LED "+((i+yPan)+1), (int)Math.round(x-40), (int)Math.round((y+tlH*i)+(tlH/2)));
-			g.setColor(new Color(30, 30, 30));
-			g.drawLine((int)Math.round(x), (int)Math.round(y+tlH*i), (int)Math.round(x+width), (int)Math.round(y+tlH*i));
+		int visibleTimelines = timelines.getNumOfTimelines()-yZoom;
+		for(int i = 0; i < visibleTimelines; i++) {
+			lg.setColor(Color.WHITE);
+			lg.drawString("LED "+((i+yPan)+1), (int)Math.round(x-40), (int)Math.round((y+tlH*i)+(tlH/2)));
+			lg.setColor(TIMELINE_LINE_COLOR);
+			lg.drawLine((int)Math.round(x), (int)Math.round(y+tlH*i), (int)Math.round(x+width), (int)Math.round(y+tlH*i));
 		}
 
 		//Draw divisions
-		for(int i = 0; i < NUM_OF_DIVISIONS/xZoom; i++) {
-			if((i+xPan) % 8 == 0) {
-				g.setColor(Color.white);
-				g.drawString(""+((i+xPan)/8), (int)Math.round(x+divW*i), (int)Math.round(y-10));
+		// Label fewer seconds (and leave out the lines in between) when they would be too close together.
+		int divsPerSecond = timelines.getSettings().getDivisionsPerSecond();
+		int labelStep = divsPerSecond*getSecondsLabelStep(divW*divsPerSecond);
+		boolean allLines = divW >= MIN_DIVISION_LINE_SPACING;
+		int visibleDivisions = timelines.getNumOfDivisions()/xZoom;
+		for(int i = 0; i < visibleDivisions; i++) {
+			boolean second = (i+xPan) % divsPerSecond == 0;
+			if((i+xPan) % labelStep == 0) {
+				lg.setColor(Color.white);
+				lg.drawString(""+((i+xPan)/divsPerSecond), (int)Math.round(x+divW*i), (int)Math.round(y-10));
 			}
-			g.setColor(new Color(255, 255, 255, ((i+xPan) % 8 == 0) ? 255 : 80));
-			g.drawLine((int)Math.round(x+divW*i), (int)Math.round(y), (int)Math.round(x+divW*i), (int)Math.round(y+height));
+			if(!allLines && (i+xPan) % labelStep != 0)
+				continue;
+			lg.setColor(second ? Color.WHITE : DIVISION_LINE_COLOR);
+			lg.drawLine((int)Math.round(x+divW*i), (int)Math.round(y), (int)Math.round(x+divW*i), (int)Math.round(y+height));
 		}
 
 		//Draw sections
-		g.clipRect(getX()+1, getY(), getWidth(), getHeight());
-		for(ArrayList<Section> tl : timelines) {
-			int sH = (int)Math.round(tlH);
-			int sY = (int)Math.round(y+tlH*(timelines.indexOf(tl)-yPan));
-			for(Section s : tl) {
-				int sX = (int)Math.round(x+divW*(s.getStart()-xPan));
-				int sW = (int)Math.round(divW*((s.getEnd()-s.getStart() <= 0) ? 0 : ((s.getEnd()-s.getStart()))));
-				int[] xPoints = {sX, sX, sX+sW, sX+sW};
-				int[] yPoints = {sY+sH, sY, sY, sY+sH};
-				Color colour = LED_COLORS[timelines.indexOf(tl)];
-
-				if(s.getMode() == 1) {
+		lg.clipRect(getX()+1, getY(), getWidth(), getHeight());
+		int sH = (int)Math.round(tlH);
+		for(int tl = yPan; tl < timelines.getNumOfTimelines() && tl < visibleTimelines+yPan; tl++) {
+			int sY = (int)Math.round(y+tlH*(tl-yPan));
+			// Only draw the sections that are on screen.
+			int last = indexes[tl].countStartingBefore(xPan+visibleDivisions+1);
+			int first = indexes[tl].firstEndingAtOrAfter(xPan, last);
+			for(int i = (first < 0) ? last : first; i < last; i++) {
+				int start = timelines.getStart(tl, i), end = timelines.getEnd(tl, i);
+				int sX = (int)Math.round(x+divW*(start-xPan));
+				int sW = (int)Math.round(divW*((end-start <= 0) ? 0 : ((end-start))));
+				xPoints[0] = sX; xPoints[1] = sX; xPoints[2] = sX+sW; xPoints[3] = sX+sW;
+				yPoints[0] = sY+sH; yPoints[1] = sY; yPoints[2] = sY; yPoints[3] = sY+sH;
+
+				if(timelines.getMode(tl, i) == Section.MODE_FADE_OFF) {
 					yPoints[2] = sY+sH;
-				} else if(s.getMode() == 2) {
+				} else if(timelines.getMode(tl, i) == Section.MODE_FADE_ON) {
 					yPoints[1] = sY+sH;
 				}
 
-				if(timelines.indexOf(tl) >= yPan && timelines.indexOf(tl) < (NUM_OF_TIMELINES-yZoom)+yPan) {
-					g.setColor(new Color(colour.getRed(), colour.getGreen(), colour.getBlue(), 100));
-					g.fillRect(sX, sY, sW, sH);
-					g.setColor(colour);
-					g.fillPolygon(xPoints, yPoints, 4);
-					g.setColor(Color.BLACK);
-					g.drawLine(sX, yPoints[1], sX+sW, yPoints[2]);
-					//g.drawRect(sX, sY, sW, sH);
-				}
+				lg.setColor(SECTION_BACKGROUND_COLORS[tl % SECTION_BACKGROUND_COLORS.length]);
+				lg.fillRect(sX, sY, sW, sH);
+				lg.setColor(LED_COLORS[tl % LED_COLORS.length]);
+				lg.fillPolygon(xPoints, yPoints, 4);
+				lg.setColor(Color.BLACK);
+				lg.drawLine(sX, yPoints[1], sX+sW, yPoints[2]);
+				//lg.drawRect(sX, sY, sW, sH);
 			}
 		}
-		g.setClip(null);
+		lg.dispose();
+
+		cachedXZoom = xZoom;
+		cachedXPan = xPan;
+		cachedYZoom = yZoom;
+		cachedYPan = yPan;
+		cachedX = getX();
+		cachedY = getY();
+		cachedWidth = getWidth();
+		cachedHeight = getHeight();
+	}
 
-		//Timeline outline
-		g.setColor(Color.WHITE);
-		g.drawRect(getX(), getY(), getWidth(), getHeight());
+	/**
+	 * Returns how many seconds should be between each seconds label so the
+	 * labels don't overlap.
+	 * 
+	 * @param secondW the width of a second (in pixels).
+	 * @return the number of seconds between labels.
+	 */
+	private static int getSecondsLabelStep(double secondW) {
+		for(int step : SECONDS_LABEL_STEPS) {
+			if(secondW*step >= MIN_SECONDS_LABEL_SPACING)
+				return step;
+		}
+		return SECONDS_LABEL_STEPS[SECONDS_LABEL_STEPS.length-1];
+	}
 
-		//Draw scrubber
-		g.clipRect(getX()+1, getY()-14, getWidth(), getHeight()+14);
-		g.setColor(Color.BLACK);
-		g.drawLine((int)(x+(divW/10)*(curTime-xPan*10))-1, getY()-14, (int)(x+(divW/10)*(curTime-xPan*10))-1, getY()+getHeight());
-		g.drawLine((int)(x+(divW/10)*(curTime-xPan*10))+1, getY()-14, (int)(x+(divW/10)*(curTime-xPan*10))+1, getY()+getHeight());
-		g.setColor(Color.RED);
-		g.fillRect((int)(x+(divW/10)*(curTime-xPan*10))-5, getY()-14, 12, 12);
-		g.drawLine((int)(x+(divW/10)*(curTime-xPan*10)), getY()-14, (int)(x+(divW/10)*(curTime-xPan*10)), getY()+getHeight());
-		g.setClip(null);
-		
-		super.draw(g);
+	/**
+	 * Returns the furthest the timeline can be zoomed in (so at least 8 time divisions are visible).
+	 */
+	private int getMaxXZoom() {
+		return Math.max(15, timelines.getNumOfDivisions()/8);
+	}
+
+	/**
+	 * Returns the furthest the timeline can be panned to the right at the current zoom.
+	 */
+	private int getMaxXPan() {
+		return Math.max(0, timelines.getNumOfDivisions()-(timelines.getNumOfDivisions()/xZoom));
 	}
 
-	private synchronized void updatePreview(boolean updateXPan) {
+	/**
+	 * Returns how far the pan buttons move the timeline, a whole number of seconds
+	 * (at least one, more if lots of seconds are visible).
+	 */
+	private int getXPanStep() {
+		int divsPerSecond = timelines.getSettings().getDivisionsPerSecond();
+		int visibleSeconds = (timelines.getNumOfDivisions()/xZoom)/divsPerSecond;
+		return divsPerSecond*Math.max(1, visibleSeconds/16);
+	}
+
+	/**
+	 * Updates the preview LEDs to show the current time (and, if updateXPan is true,
+	 * scrolls the timeline so the scrubber is visible).
+	 * 
+	 * @param updateXPan whether to scroll the timeline to the scrubber.
+	 * @param leds the LED buffer of the thread doing the update.
+	 */
+	private void updatePreview(boolean updateXPan, LedBuffer leds) {
 		if(updateXPan) {
 			xPan = (curTime == 0) ? 0 : xPan;
-			if(curTime/10 >= xPan+(NUM_OF_DIVISIONS/xZoom)) {
-				xPan = curTime/10;
-				if(xPan > 8*15-(NUM_OF_DIVISIONS/xZoom)+6) {
-					xPan = 8*15-(NUM_OF_DIVISIONS/xZoom)+6;
+			if(curTime/AnimationCompiler.TICKS_PER_DIVISION >= xPan+(timelines.getNumOfDivisions()/xZoom)) {
+				xPan = curTime/AnimationCompiler.TICKS_PER_DIVISION;
+				if(xPan > getMaxXPan()) {
+					xPan = getMaxXPan();
 				}
 			}
 		}
 		
-		for(ArrayList<Section> tl : timelines) {
-			for(int s = 0; s < tl.size(); s++) {
-				Color ledColor = LED_COLORS[timelines.indexOf(tl)];
-				int startOn = (tl.get(s).isStartOn() ? 1 : 0);
-				int fade = (tl.get(s).isFade() ? 1 : 0);
-				int startTime = tl.get(s).getStart()*10;
-				int endTime = tl.get(s).getEnd()*10;
-
-				if(curTime >= startTime && curTime <= endTime) {
-					int brightness = (int)((255.0/(endTime-startTime))*(curTime-startTime));
-					previewLedColors[timelines.indexOf(tl)] = new Color(ledColor.getRed(), ledColor.getGreen(), ledColor.getBlue() ,((startOn*255)+fade*(brightness-(brightness*2*startOn))));
-				} 
-				if(curTime == endTime+1) {
-					if(endTime != tl.get((s+1)%(tl.size())).getStart()*10) {
-						previewLedColors[timelines.indexOf(tl)] = Color.BLACK;
-					}
-				}
+		leds.publish(snapshot.get(), curTime);
+	}
+
+	/**
+	 * Double buffered preview LED colours for one thread.
+	 * 
+	 * The colours are written to the back buffer, which is then swapped to the
+	 * front (published to previewLedColors), so a buffer is only written while
+	 * it isn't being shown. Each thread that updates the LEDs has its own
+	 * buffers, so the threads never have to wait for each other.
+	 */
+	private static class LedBuffer {
+		private Color[][] buffers = new Color[2][0];
+		private int back = 0;
+
+		/**
+		 * Shows the LED colours of the specified animation at the specified tick.
+		 */
+		void publish(AnimationSnapshot snapshot, int tick) {
+			Color[] colors = getBackBuffer(snapshot.getNumOfTimelines());
+			for(int tl = 0; tl < colors.length; tl++) {
+				int brightness = snapshot.getBrightness(tl, tick);
+				colors[tl] = (brightness == 0) ? Color.BLACK : palette[tl % palette.length][brightness];
 			}
+			swap();
+		}
+
+		/**
+		 * Turns every LED off.
+		 * 
+		 * @param numOfLeds the number of LEDs.
+		 */
+		void clear(int numOfLeds) {
+			Color[] colors = getBackBuffer(numOfLeds);
+			for(int tl = 0; tl < colors.length; tl++)
+				colors[tl] = Color.BLACK;
+			swap();
+		}
+
+		/**
+		 * Returns the back buffer, replacing both buffers if the number of LEDs has changed.
+		 */
+		private Color[] getBackBuffer(int numOfLeds) {
+			if(buffers[back].length != numOfLeds)
+				buffers = new Color[2][numOfLeds];
+			return buffers[back];
 		}
+
+		private void swap() {
+			previewLedColors.set(buffers[back]);
+			back ^= 1;
+		}
+	}
+
+	/**
+	 * Sorts and indexes the sections in every timeline.
+	 * 
+	 * This should be called whenever the timelines are replaced.
+	 */
+	private void reindex() {
+		indexes = new SectionIndex[timelines.getNumOfTimelines()];
+		for(int tl = 0; tl < timelines.getNumOfTimelines(); tl++)
+			indexes[tl] = new SectionIndex(timelines, tl);
+	}
+
+	/**
+	 * Compiles the timelines into a new snapshot for the preview.
+	 * 
+	 * This should be called whenever the timelines are replaced.
+	 */
+	private void recompile() {
+		snapshot.set(AnimationSnapshot.compile(timelines, endTime));
+		sectionsChanged = true;
+	}
+
+	/**
+	 * Publishes a new snapshot with the part of the brightness table that
+	 * covers the specified time divisions of the specified timeline recompiled.
+	 * 
+	 * This should be called whenever a single section is changed, with a range
+	 * that covers where the section was before and after the change.
+	 * 
+	 * @param timeline the index of the timeline that changed.
+	 * @param fromDivision the first time division that changed.
+	 * @param toDivision the last time division that changed.
+	 */
+	private void recompile(int timeline, int fromDivision, int toDivision) {
+		snapshot.set(snapshot.get().recompile(timeline, indexes[timeline], 
+				fromDivision*AnimationCompiler.TICKS_PER_DIVISION, toDivision*AnimationCompiler.TICKS_PER_DIVISION));
+		sectionsChanged = true;
 	}
 	
-	public ArrayList<ArrayList<Section>> getTimelines() {
+	public SectionStore getTimelines() {
 		return this.timelines;
 	}
 	
-	public void setTimelines(ArrayList<ArrayList<Section>> tl, int endTime) {
+	public void setTimelines(SectionStore tl, int endTime) {
+		setTimelines(tl, endTime, null);
+	}
+
+	/**
+	 * Replaces the timelines, using an already compiled snapshot of them (e.g. from the
+	 * AnimationCache) instead of compiling them again.
+	 * 
+	 * If the preview is playing and the LEDs haven't changed, it carries on
+	 * playing the new animation from the start.
+	 * 
+	 * @param tl the new timelines.
+	 * @param endTime the time division the animation ends at.
+	 * @param compiled the timelines compiled, or null to compile them.
+	 */
+	public void setTimelines(SectionStore tl, int endTime, AnimationSnapshot compiled) {
+		boolean settingsChanged = !tl.getSettings().equals(timelines.getSettings());
 		this.timelines = tl;
 		this.endTime = endTime;
 		this.curTime = 0;
 		this.xZoom = 1;
-		if(previewing)
+		this.xPan = 0;
+		if(settingsChanged) {
+			// Show the first few timelines of a project with lots of LEDs.
+			this.yZoom = Math.max(0, tl.getNumOfTimelines()-MAX_VISIBLE_TIMELINES);
+			this.yPan = 0;
+			editLeds.clear(tl.getNumOfTimelines());
+		}
+		Autosave.reset(tl);
+		reindex();
+		if(compiled != null) {
+			snapshot.set(compiled);
+			sectionsChanged = true;
+		} else {
+			recompile();
+		}
+		if(previewing && !settingsChanged) {
+			AnimationSnapshot snap = snapshot.get();
+			clock.start(0, snap.getLoopLength(), snap.getTickNanos());
+		} else if(previewing) {
 			buttonClicked((Button) getComponents().get(8));
-		clearAndUpdatePreview();
+		}
+		// (A playing preview updates itself.)
+		if(!previewing)
+			clearAndUpdatePreview();
 		Screen.getInstance().repaint();
 	}
 	
 	public void clearTimelines() {
-		ArrayList<ArrayList<Section>> timelines = new ArrayList<ArrayList<Section>>();
-		while(timelines.size() < NUM_OF_TIMELINES) timelines.add(new ArrayList<Section>());
-		this.setTimelines(timelines, 0);
+		this.setTimelines(new SectionStore(timelines.getSettings()), 0);
+	}
+
+	/**
+	 * Changes the number of LEDs, time divisions and updates per second of the
+	 * current project, keeping the sections that still fit.
+	 * 
+	 * @param settings the new settings.
+	 */
+	public void setSettings(AnimationSettings settings) {
+		if(settings.equals(timelines.getSettings()))
+			return;
+		SectionStore store = timelines.copy(settings);
+		this.setTimelines(store, store.getEndTime());
 	}
 
 	//	protected void clicked(MouseEvent e) {
@@ -300,100 +704,157 @@ public class Timeline extends Component {
 	char mode;
 	int oldPosition, oldStart, oldEnd;
 	public void pressed(MouseEvent e) {
-		selectedTimeline = timelines.get(yPan+(int)((e.getY()-y)/(height/(NUM_OF_TIMELINES-yZoom))));
-		selectedSection = null;
+		selectedTimelineIndex = yPan+(int)((e.getY()-y)/(height/(timelines.getNumOfTimelines()-yZoom)));
+		selectedSection = -1;
 		mode = 'n';
-		double position = xPan+((e.getX()-x)/(width/(NUM_OF_DIVISIONS/xZoom)));
+		double position = xPan+((e.getX()-x)/(width/(timelines.getNumOfDivisions()/xZoom)));
 
 		if(!e.isShiftDown()) {
-			for(Section s : selectedTimeline) {
-				if(position >= s.getStart() && position <= s.getEnd()) {
-					selectedSection = s;
-					if(e.getButton() == 1) {
-						if(e.isControlDown()) {
-							selectedTimeline.remove(selectedSection);
-						}
-
-						double thirdOfWidth = (s.getEnd() - s.getStart())/3.0;
-						if(position >= s.getStart() && position <= (s.getStart()+thirdOfWidth))
+			SectionIndex index = indexes[selectedTimelineIndex];
+			int s = index.sectionAt(position);
+			if(s >= 0) {
+				int start = timelines.getStart(selectedTimelineIndex, s), end = timelines.getEnd(selectedTimelineIndex, s);
+				selectedSection = s;
+				if(e.getButton() == 1) {
+					if(e.isControlDown()) {
+						index.remove(s);
+						selectedSection = -1;
+						recompile(selectedTimelineIndex, start, end);
+						Autosave.removed(selectedTimelineIndex, start, end);
+						FileManager.isFileSaved(false);
+					} else {
+						double thirdOfWidth = (end - start)/3.0;
+						if(position >= start && position <= (start+thirdOfWidth))
 							mode = 'b';
-						else if(position <= s.getEnd() && position >= (s.getEnd()-thirdOfWidth))
+						else if(position <= end && position >= (end-thirdOfWidth))
 							mode = 'f';
 						else {
 							mode = 'm';
 							oldPosition = (int)position;
-							oldStart = selectedSection.getStart();
-							oldEnd = selectedSection.getEnd();
+							oldStart = start;
+							oldEnd = end;
 						}
-					} else if(e.getButton() == 3) {
-						s.changeMode();
-						FileManager.isFileSaved(false);
 					}
-					break;
+				} else if(e.getButton() == 3) {
+					timelines.setMode(selectedTimelineIndex, s, Section.nextMode(timelines.getMode(selectedTimelineIndex, s)));
+					recompile(selectedTimelineIndex, start, end);
+					Autosave.modeChanged(selectedTimelineIndex, start, end, timelines.getMode(selectedTimelineIndex, s));
+					FileManager.isFileSaved(false);
 				}
-			}
-
-			if(selectedSection == null) {
-				selectedSection = new Section((int)position, (int)position);
-				selectedTimeline.add(selectedSection);
+			} else {
+				selectedSection = index.add((int)position, (int)position, Section.MODE_ON);
+				recompile(selectedTimelineIndex, (int)position, (int)position);
+				Autosave.added(selectedTimelineIndex, (int)position, (int)position, Section.MODE_ON);
 				FileManager.isFileSaved(false);
 				mode = 'f';
 			}
 		} else {
-			curTime = (xPan*10)+(int)((e.getX()-x)/((width/(NUM_OF_DIVISIONS/xZoom))/10));
 			mode = 's';
+			seek(getTimeAt(e.getX()));
+			return;
 		}
 		clearAndUpdatePreview();
+		repaint();
 	}
 
 	protected void dragged(MouseEvent e) {
-		int position = xPan+(int)((e.getX()-x)/(width/(NUM_OF_DIVISIONS/xZoom)));
+		int position = xPan+(int)((e.getX()-x)/(width/(timelines.getNumOfDivisions()/xZoom)));
 
 		if(mode != 'n') {
-			if(mode == 'f' && !collision(selectedSection.getStart(), position)) {
-				selectedSection.setEnd(position);
-			} else if(mode == 'b' && !collision(position, selectedSection.getEnd())) {
-				selectedSection.setStart(position);
+			// Where the selected section was before it was dragged.
+			int prevStart = (mode != 's') ? timelines.getStart(selectedTimelineIndex, selectedSection) : 0;
+			int prevEnd = (mode != 's') ? timelines.getEnd(selectedTimelineIndex, selectedSection) : 0;
+			SectionIndex index = indexes[selectedTimelineIndex];
+
+			if(mode == 'f' && !collision(prevStart, position)) {
+				selectedSection = index.move(selectedSection, prevStart, position);
+			} else if(mode == 'b' && !collision(position, prevEnd)) {
+				selectedSection = index.move(selectedSection, position, prevEnd);
 			} else if(mode == 'm' && !collision(oldStart+(position-oldPosition), oldEnd+(position-oldPosition))) {
-				selectedSection.setStart(oldStart+(position-oldPosition));
-				selectedSection.setEnd(oldEnd+(position-oldPosition));
+				selectedSection = index.move(selectedSection, oldStart+(position-oldPosition), oldEnd+(position-oldPosition));
 			} else if(mode == 's') {
-				curTime = (xPan*10)+(int)((e.getX()-x)/((width/(NUM_OF_DIVISIONS/xZoom))/10));
 				if(previewing) {
 					buttonClicked((Button) getComponents().get(8));
 				}
+				seek(getTimeAt(e.getX()));
+				return;
 			}
 			
-			if(mode != 's')
-				FileManager.isFileSaved(false);
+			FileManager.isFileSaved(false);
+			// Only the time divisions the section covered before and after
+			// being dragged have changed.
+			int start = timelines.getStart(selectedTimelineIndex, selectedSection);
+			int end = timelines.getEnd(selectedTimelineIndex, selectedSection);
+			if(start != prevStart || end != prevEnd) {
+				recompile(selectedTimelineIndex, 
+						Math.min(Math.min(start, end), Math.min(prevStart, prevEnd)), 
+						Math.max(Math.max(start, end), Math.max(prevStart, prevEnd)));
+				Autosave.moved(selectedTimelineIndex, prevStart, prevEnd, start, end);
+			}
 			clearAndUpdatePreview();
+			repaint();
 		}
 	}
 
-	private boolean collision(int start, int end) {
-		for(Section s : selectedTimeline) {
-			if(s != selectedSection) {
-				for(int p = start; p <= end; p++) {
-					if(p > s.getStart() && p < s.getEnd())
-						return true;
-				}
-			}
+	/**
+	 * Moves the scrubber (and the preview) to the specified time.
+	 * 
+	 * Seeking is just a lookup in the snapshot's brightness table for each LED,
+	 * so the preview LEDs can follow the mouse as fast as it moves. If the
+	 * preview is playing, it carries on playing from the new time.
+	 * 
+	 * @param time the time (in ticks) to move to.
+	 */
+	private void seek(int time) {
+		time = Math.max(0, Math.min(time, AnimationCompiler.getNumOfTicks(timelines.getNumOfDivisions())-1));
+		if(previewing) {
+			AnimationSnapshot snap = snapshot.get();
+			clock.start(time, snap.getLoopLength(), snap.getTickNanos());
+			return;
 		}
-		return false;
+		// Nothing changes if the mouse is still over the same tick.
+		if(time == curTime)
+			return;
+		curTime = time;
+		updatePreview(false, editLeds);
+		Screen.getInstance().preview.repaintChangedLeds();
+		repaintScrubber();
+	}
+
+	/**
+	 * Returns the time (in ticks) at the specified x position.
+	 */
+	private int getTimeAt(int mouseX) {
+		return (xPan*AnimationCompiler.TICKS_PER_DIVISION)+(int)((mouseX-x)/((width/(timelines.getNumOfDivisions()/xZoom))/AnimationCompiler.TICKS_PER_DIVISION));
+	}
+
+	private boolean collision(int start, int end) {
+		return indexes[selectedTimelineIndex].overlaps(start, end, selectedSection);
 	}
 
 	protected void released(MouseEvent e) {
-		if(selectedSection != null && this.selectedSection.getEnd() - this.selectedSection.getStart() < 1) {
-			selectedTimeline.remove(this.selectedSection);
+		if(selectedSection >= 0) {
+			int start = timelines.getStart(selectedTimelineIndex, selectedSection);
+			int end = timelines.getEnd(selectedTimelineIndex, selectedSection);
+			if(end - start < 1) {
+				indexes[selectedTimelineIndex].remove(selectedSection);
+				recompile(selectedTimelineIndex, Math.min(start, end), Math.max(start, end));
+				Autosave.removed(selectedTimelineIndex, start, end);
+			}
+			selectedSection = -1;
 		}
 		
-		//Get new end time and sort
+		//Get new end time (the timelines are always kept sorted)
 		endTime = 0;
-		for(ArrayList<Section> tl : timelines) {
-			Collections.sort(tl);
-			if(!tl.isEmpty() && tl.get(tl.size()-1).getEnd() > endTime)
-				endTime = tl.get(tl.size()-1).getEnd();
+		for(int tl = 0; tl < timelines.getNumOfTimelines(); tl++) {
+			int size = timelines.size(tl);
+			if(size > 0 && timelines.getEnd(tl, size-1) > endTime)
+				endTime = timelines.getEnd(tl, size-1);
 		}
+		snapshot.set(snapshot.get().withEndTime(endTime));
+		clock.setLoopLength(snapshot.get().getLoopLength());
+		if(mode != 'n' && mode != 's')
+			repaint();
 		mode = 'n';
 	}
 
@@ -431,9 +892,7 @@ public class Timeline extends Component {
 	}
 	
 	private void clearAndUpdatePreview() {
-		for(int i = 0; i < NUM_OF_TIMELINES; i++) {
-			previewLedColors[i] = Color.BLACK;
-		}
-		updatePreview(false);
+		updatePreview(false, editLeds);
+		Screen.getInstance().preview.repaintChangedLeds();
 	}
 }
\ No newline at end of file
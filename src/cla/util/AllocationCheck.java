@@ -0,0 +1,149 @@
+package cla.util;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * This class is used to check that the code that runs every frame of the preview
+ * (updating the preview's LEDs and drawing the timeline and preview) allocates no memory.
+ *
+ * Allocating memory every frame creates garbage that has to be collected,
+ * which causes the preview to stutter, so the code that runs every frame
+ * should allocate nothing once it's warmed up.
+ *
+ * Each part of a frame has its own check, which is wrapped around the part with
+ * begin() and end() (on whichever thread runs that part). Whoever drives the frames
+ * calls frameEnded() once a frame, and every second the bytes allocated by all of the
+ * parts are added up. If the parts allocated anything (after the first minute,
+ * which is spent warming up), the check fails: the totals are printed to stderr and an
+ * AssertionError is thrown, which stops the preview.
+ *
+ * Only the animator's own code is checked. Handing each frame to the event dispatch
+ * thread and Swing's repaint bookkeeping allocate a few small objects every frame, and
+ * nothing outside of Swing can stop that, so they aren't counted. Editing while the
+ * preview is playing redraws the cached images, so the check is only meaningful while
+ * the preview plays without being touched.
+ *
+ * The check is only done if the program is run with -Dcla.allocationCheck=true.
+ *
+ * Note: Each check should only be used by one thread.
+ *
+ * @author Duncan Cowan
+ *
+ */
+public class AllocationCheck {
+	// How many frames to add up before checking the result (1 second of frames).
+	private static final int FRAMES_PER_REPORT = 80;
+	// How many reports to wait before failing (1 minute of frames). Until the code that
+	// runs every frame has been compiled, Java2D allocates a little every frame.
+	private static final int WARM_UP_REPORTS = 60;
+	// Used to get the bytes allocated by the current thread,
+	// null if the check is disabled or isn't supported by the JVM.
+	private static final com.sun.management.ThreadMXBean THREADS = getThreadMXBean();
+	// The bytes that getting the bytes allocated allocates itself.
+	private static final long OVERHEAD = measureOverhead();
+	// Every check, so each part's bytes can be reported.
+	private static final CopyOnWriteArrayList<AllocationCheck> checks = new CopyOnWriteArrayList<AllocationCheck>();
+	// The frames since the last report, and how many reports there have been (frameEnded's thread only).
+	private static int frames;
+	private static int reports;
+
+	// What is being checked.
+	private final String name;
+	// The bytes allocated by the thread when the current part of the frame began.
+	private long partStart;
+	// The bytes allocated by this part since the last report.
+	private final AtomicLong allocated = new AtomicLong();
+
+	/**
+	 * Constructor.
+	 *
+	 * @param name the part of the frame being checked (printed with the result).
+	 */
+	public AllocationCheck(String name) {
+		this.name = name;
+		checks.add(this);
+	}
+
+	/**
+	 * Marks the beginning of the part of the frame.
+	 */
+	public void begin() {
+		if(THREADS != null)
+			partStart = getAllocatedBytes();
+	}
+
+	/**
+	 * Marks the end of the part of the frame.
+	 */
+	public void end() {
+		if(THREADS != null)
+			allocated.addAndGet(getAllocatedBytes()-partStart-OVERHEAD);
+	}
+
+	/**
+	 * Marks the end of a frame (called once a frame, always by the same thread),
+	 * checking the bytes allocated by every part if enough frames have passed.
+	 *
+	 * @throws AssertionError if the parts allocated anything once warmed up.
+	 */
+	public static void frameEnded() {
+		if(THREADS == null || ++frames < FRAMES_PER_REPORT)
+			return;
+
+		long total = 0;
+		String parts = "";
+		for(AllocationCheck check : checks) {
+			long bytes = check.allocated.getAndSet(0);
+			total += bytes;
+			parts += (parts.isEmpty() ? "" : ", ") + check.name + " " + (bytes/frames);
+		}
+		String result = "Allocation check: " + (total/frames) + " bytes/frame (" + parts + ")";
+		frames = 0;
+		if(++reports <= WARM_UP_REPORTS || total <= 0) {
+			System.out.println(result);
+			return;
+		}
+		System.err.println(result + " FAILED");
+		throw new AssertionError(result);
+	}
+
+	/**
+	 * Returns the total bytes allocated by the current thread.
+	 */
+	private static long getAllocatedBytes() {
+		return THREADS.getThreadAllocatedBytes(Thread.currentThread().getId());
+	}
+
+	/**
+	 * Measures how many bytes are allocated by getting the bytes allocated,
+	 * so it can be taken away from each part's result.
+	 */
+	private static long measureOverhead() {
+		if(THREADS == null)
+			return 0;
+		long overhead = 0;
+		// Warm up first, the first few calls allocate while things are loaded.
+		for(int i = 0; i < 1000; i++) {
+			long before = getAllocatedBytes();
+			overhead = getAllocatedBytes()-before;
+		}
+		return overhead;
+	}
+
+	/**
+	 * Returns the thread MX bean if the check is enabled and supported.
+	 */
+	private static com.sun.management.ThreadMXBean getThreadMXBean() {
+		if(!Boolean.getBoolean("cla.allocationCheck"))
+			return null;
+		if(!(ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean)) {
+			System.err.println("Allocation check: Not supported by this JVM");
+			return null;
+		}
+		com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+		threads.setThreadAllocatedMemoryEnabled(true);
+		return threads;
+	}
+}
@@ -0,0 +1,59 @@
+package cla.util;
+
+/**
+ * This class holds a whole animation: its timelines (and their sections)
+ * and the time division it ends at.
+ *
+ * It's what the AnimationCodec reads from and writes to files, so it
+ * has nothing to do with the UI.
+ *
+ * @author Duncan Cowan
+ *
+ */
+public class Animation {
+	private final SectionStore sections;
+	private final int endTime;
+
+	/**
+	 * Constructor.
+	 *
+	 * @param sections the animation's timelines (and their sections).
+	 * @param endTime the time division the animation ends at.
+	 */
+	public Animation(SectionStore sections, int endTime) {
+		this.sections = sections;
+		this.endTime = endTime;
+	}
+
+	/**
+	 * Constructor.
+	 *
+	 * The animation ends when its last section ends.
+	 *
+	 * @param sections the animation's timelines (and their sections).
+	 */
+	public Animation(SectionStore sections) {
+		this(sections, sections.getEndTime());
+	}
+
+	/**
+	 * Returns the animation's timelines (and their sections).
+	 */
+	public SectionStore getSections() {
+		return sections;
+	}
+
+	/**
+	 * Returns the animation's settings.
+	 */
+	public AnimationSettings getSettings() {
+		return sections.getSettings();
+	}
+
+	/**
+	 * Returns the time division the animation ends at.
+	 */
+	public int getEndTime() {
+		return endTime;
+	}
+}
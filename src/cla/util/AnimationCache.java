@@ -0,0 +1,119 @@
+package cla.util;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * This class keeps the most recently opened animations, decoded and compiled,
+ * so switching back to one doesn't have to read, decode or compile it again.
+ *
+ * Animations are kept by file and the time the file was last modified, so
+ * an animation whose file has changed since it was kept is read again.
+ * The least recently used animations are dropped once there are more than
+ * MAX_ENTRIES of them, or their brightness tables take up more than MAX_BYTES.
+ *
+ * Everything kept is unchangeable (the sections have to be copied before
+ * they're edited), so it can be shared by any number of threads.
+ *
+ * @author Duncan Cowan
+ *
+ */
+public class AnimationCache {
+	// The most animations kept.
+	public static final int MAX_ENTRIES = 32;
+	// The most bytes of brightness tables kept (a single bigger table is still kept until the next one).
+	public static final long MAX_BYTES = 64L << 20;
+
+	// The kept animations, least recently used first.
+	private final LinkedHashMap<Path, Entry> entries = new LinkedHashMap<Path, Entry>(16, 0.75f, true);
+	private long bytes;
+
+	/**
+	 * A kept animation and its compiled snapshot.
+	 */
+	public static class Entry {
+		private final Animation animation;
+		private final AnimationSnapshot snapshot;
+		private final FileTime modified;
+		private final long size;
+
+		private Entry(Animation animation, AnimationSnapshot snapshot, FileTime modified) {
+			this.animation = animation;
+			this.snapshot = snapshot;
+			this.modified = modified;
+			AnimationSettings settings = animation.getSettings();
+			this.size = (long)settings.getNumOfTimelines()*AnimationCompiler.getNumOfTicks(settings.getNumOfDivisions());
+		}
+
+		/**
+		 * Returns the animation (copy its sections before changing them).
+		 */
+		public Animation getAnimation() {
+			return animation;
+		}
+
+		/**
+		 * Returns the animation compiled for the preview.
+		 */
+		public AnimationSnapshot getSnapshot() {
+			return snapshot;
+		}
+	}
+
+	/**
+	 * Returns the animation in the specified file, reading and compiling it
+	 * only if it isn't kept or the file has changed since it was kept.
+	 *
+	 * @param path the file.
+	 * @return the animation and its snapshot.
+	 * @throws IOException if the file can't be read.
+	 */
+	public Entry get(Path path) throws IOException {
+		// Look at the time before reading, so a change made while reading is picked up next time.
+		FileTime modified = Files.getLastModifiedTime(path);
+		synchronized(this) {
+			Entry e = entries.get(path);
+			if(e != null && e.modified.equals(modified))
+				return e;
+		}
+
+		Animation animation = FileManager.readAnimation(path);
+		Entry e = new Entry(animation, AnimationSnapshot.compile(animation.getSections(), animation.getEndTime()), modified);
+		synchronized(this) {
+			Entry old = entries.put(path, e);
+			if(old != null)
+				bytes -= old.size;
+			bytes += e.size;
+			trim();
+		}
+		return e;
+	}
+
+	/**
+	 * Forgets the animation in the specified file (e.g. because it's being overwritten).
+	 *
+	 * @param path the file.
+	 */
+	public synchronized void remove(Path path) {
+		Entry old = entries.remove(path);
+		if(old != null)
+			bytes -= old.size;
+	}
+
+	/**
+	 * Drops the least recently used animations until the cache is back under its limits,
+	 * always keeping the most recently used one.
+	 */
+	private void trim() {
+		Iterator<Map.Entry<Path, Entry>> it = entries.entrySet().iterator();
+		while(entries.size() > 1 && (entries.size() > MAX_ENTRIES || bytes > MAX_BYTES)) {
+			bytes -= it.next().getValue().size;
+			it.remove();
+		}
+	}
+}
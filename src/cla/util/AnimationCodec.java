@@ -0,0 +1,491 @@
+package cla.util;
+
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.zip.CRC32;
+
+/**
+ * This class converts animations to and from the bytes stored in .cla files.
+ *
+ * It doesn't touch the UI (or keep any state), so it can be used from any
+ * number of threads at once, e.g. to convert lots of files in the background.
+ *
+ * Animations are encoded in the version 2 format, which is laid out as:
+ *   - The magic number ("CLA" followed by 0x1A) and the format version (1 byte).
+ *   - The number of timelines, time divisions and updates per second (varints).
+ *   - For each timeline, its number of sections and the length of its section
+ *     data in bytes (varints), so a timeline can be decoded without decoding
+ *     the ones before it (see decodeTimeline).
+ *   - Each timeline's sections (sorted by start time). Each section is a varint
+ *     holding its length shifted left 3 bits, its mode in bits 1-2 and, in bit 0,
+ *     whether it starts somewhere other than where the previous section ended
+ *     (or 0, for the first section). If it does, a varint of how long after the
+ *     previous section's start (or 0) it starts follows. So a section that
+ *     follows straight on from the one before it and is shorter than 16 time
+ *     divisions takes 1 byte, and most others take 2.
+ *   - A CRC-32 of everything before it (4 bytes, big-endian).
+ *
+ * The version 1 format (the format the controller uses, which has no header)
+ * can be decoded, and encoded for uploading to the controller.
+ *
+ * @author Duncan Cowan
+ *
+ */
+public abstract class AnimationCodec {
+	// The start of every version 2 (or later) file.
+	private static final byte[] MAGIC = {'C', 'L', 'A', 0x1A};
+	// The file format version that is encoded.
+	public static final int VERSION = 2;
+	// The latest start or end time of a section in the version 1 format (they're 7 bits).
+	private static final int MAX_V1_TIME = 0x7F;
+	// How much is read from a channel at a time (the buffer grows if the file is bigger).
+	private static final int READ_BUFFER_SIZE = 8192;
+
+	/**
+	 * Decodes an animation of any format version.
+	 *
+	 * Reads from the buffer's position to its limit (the position is left unchanged).
+	 *
+	 * @param buffer the bytes to decode.
+	 * @return the animation.
+	 * @throws IOException if the bytes aren't a valid animation.
+	 */
+	public static Animation decode(ByteBuffer buffer) throws IOException {
+		// Work on a copy so the caller's position and limit aren't changed.
+		buffer = buffer.slice();
+		try {
+			if(isVersion2(buffer))
+				return decodeV2(buffer, -1);
+			return decodeV1(buffer);
+		} catch(IndexOutOfBoundsException | BufferUnderflowException | IllegalArgumentException e) {
+			// The file is cut short or has impossible settings.
+			throw new IOException("Invalid animation file", e);
+		}
+	}
+
+	/**
+	 * Decodes one timeline of an animation of any format version. Version 2 animations
+	 * only have that timeline's section data read (the CRC is still checked).
+	 *
+	 * Reads from the buffer's position to its limit (the position is left unchanged).
+	 *
+	 * @param buffer the bytes to decode.
+	 * @param tl the timeline to decode.
+	 * @return the animation, with every other timeline empty.
+	 * @throws IOException if the bytes aren't a valid animation or it doesn't have the timeline.
+	 */
+	public static Animation decodeTimeline(ByteBuffer buffer, int tl) throws IOException {
+		buffer = buffer.slice();
+		try {
+			if(isVersion2(buffer))
+				return decodeV2(buffer, tl);
+			// Version 1 animations are tiny, so just decode all of it.
+			Animation animation = decodeV1(buffer);
+			SectionStore all = animation.getSections();
+			if(tl < 0 || tl >= all.getNumOfTimelines())
+				throw new IOException("Animation has no timeline " + tl);
+			SectionStore timelines = new SectionStore(all.getSettings());
+			for(int s = 0; s < all.size(tl); s++)
+				timelines.add(tl, all.getStart(tl, s), all.getEnd(tl, s), all.getMode(tl, s));
+			return new Animation(timelines, animation.getEndTime());
+		} catch(IndexOutOfBoundsException | BufferUnderflowException | IllegalArgumentException e) {
+			throw new IOException("Invalid animation file", e);
+		}
+	}
+
+	/**
+	 * Decodes an animation of any format version, reading the channel until it ends.
+	 *
+	 * @param channel the channel to read the animation from (it isn't closed).
+	 * @return the animation.
+	 * @throws IOException if the channel can't be read or it isn't a valid animation.
+	 */
+	public static Animation decode(ReadableByteChannel channel) throws IOException {
+		ByteBuffer buffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+		while(channel.read(buffer) >= 0) {
+			if(!buffer.hasRemaining()) {
+				// Out of room, double the buffer.
+				ByteBuffer bigger = ByteBuffer.allocate(buffer.capacity()*2);
+				buffer.flip();
+				bigger.put(buffer);
+				buffer = bigger;
+			}
+		}
+		buffer.flip();
+		return decode(buffer);
+	}
+
+	/**
+	 * Returns the format version of the encoded animation (without decoding it).
+	 *
+	 * @param buffer the encoded animation (from its position to its limit).
+	 * @return the format version (1 if there's no version 2 header).
+	 */
+	public static int getVersion(ByteBuffer buffer) {
+		buffer = buffer.slice();
+		if(!isVersion2(buffer))
+			return 1;
+		return (buffer.remaining() > MAGIC.length) ? (buffer.get(MAGIC.length) & 0xFF) : VERSION;
+	}
+
+	/**
+	 * Checks if the bytes start with the version 2 (or later) magic number.
+	 */
+	private static boolean isVersion2(ByteBuffer buffer) {
+		if(buffer.remaining() < MAGIC.length)
+			return false;
+		for(int i = 0; i < MAGIC.length; i++) {
+			if(buffer.get(i) != MAGIC[i])
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Decodes a version 1 animation.
+	 */
+	private static Animation decodeV1(ByteBuffer bFile) {
+		// The first byte stores the number of timelines.
+		int numOfTimelines = bFile.get(0) & 0xFF;
+		// Files in this format always use the controller's time divisions and update rate.
+		SectionStore timelines = new SectionStore(new AnimationSettings(numOfTimelines,
+				AnimationSettings.DEFAULT.getNumOfDivisions(), AnimationSettings.DEFAULT.getTicksPerSecond()));
+		// Set the initial offset (beginning of section data) to the number of timelines + 2.
+		// Skip number of timelines (byte[1])
+		// Skip number of sections in each timeline (byte[number of timelines+1])
+		// Skip animation end time (byte[number of timelines+1+1])
+		// Beginning of section data (byte[number of timelines+2])
+		int offSet = numOfTimelines+2;
+
+		for(int tl = 0; tl < numOfTimelines; tl++) {
+			// Get the number of sections in this timeline.
+			// The n+1 byte stores the number of sections in the nth timeline.
+			// This is multiplied by 2 because each section is 2 bytes long.
+			int numOfSectionsInTimeline = (bFile.get(tl+1) & 0xFF)*2;
+			for(int s = 0; s < numOfSectionsInTimeline; s+=2) {
+				// Merge the MSB (first byte) and LSB (second byte) of the
+				// current section into an int (2 bytes long).
+				int sectionBytes = (bFile.get(s+offSet) << 8) | (bFile.get((s+1)+offSet) & 0xFF);
+				// Get startOn value (first bit in section).
+				boolean startOn = (sectionBytes & 0x01) == 1;
+				// Get fade value (second bit in section).
+				boolean fade = ((sectionBytes >> 1) & 0x01) == 1;
+				// Get start time (third bit to ninth bit, 7 bits long)
+				int startTime = ((sectionBytes >> 2) & 0x7F);
+				// Get end time (tenth bit to last bit, 7 bits long)
+				int endTime = ((sectionBytes >> 9) & 0x7F);
+
+				// Add the section to the current timeline.
+				timelines.add(tl, startTime, endTime, Section.getMode(startOn, fade));
+			}
+			// Set the offset to point to the next timeline's section data.
+			// (i.e. add the number of sections in this timeline*2 to the current offset.)
+			offSet += numOfSectionsInTimeline;
+		}
+		// The animation end time is the numOfTimelines+1 byte.
+		return new Animation(timelines, bFile.get(numOfTimelines+1) & 0xFF);
+	}
+
+	/**
+	 * Decodes a version 2 animation.
+	 *
+	 * @param onlyTimeline the only timeline to decode, or -1 to decode them all.
+	 */
+	private static Animation decodeV2(ByteBuffer buffer, int onlyTimeline) throws IOException {
+		// Check the CRC (the last 4 bytes) before reading anything else.
+		int length = buffer.remaining();
+		CRC32 crc = new CRC32();
+		ByteBuffer crcBytes = buffer.duplicate();
+		crcBytes.limit(length-4);
+		crc.update(crcBytes);
+		if((int)crc.getValue() != buffer.getInt(length-4))
+			throw new IOException("Animation file is corrupt (CRC mismatch)");
+		buffer.limit(length-4);
+
+		// Skip the magic number and check the version.
+		buffer.position(MAGIC.length);
+		int version = buffer.get() & 0xFF;
+		if(version > VERSION)
+			throw new IOException("Animation file is from a newer version (format version " + version + ")");
+
+		// The settings.
+		AnimationSettings settings = new AnimationSettings(readVarint(buffer), readVarint(buffer), readVarint(buffer));
+		SectionStore timelines = new SectionStore(settings);
+		int numOfTimelines = settings.getNumOfTimelines();
+
+		if(onlyTimeline >= numOfTimelines)
+			throw new IOException("Animation has no timeline " + onlyTimeline);
+
+		// The number of sections in each timeline and where each timeline's sections start.
+		int[] numOfSections = new int[numOfTimelines];
+		int[] offsets = new int[numOfTimelines+1];
+		for(int tl = 0; tl < numOfTimelines; tl++) {
+			numOfSections[tl] = readVarint(buffer);
+			offsets[tl+1] = offsets[tl]+readVarint(buffer);
+		}
+		int dataStart = buffer.position();
+		if(offsets[numOfTimelines] != buffer.remaining())
+			throw new IOException("Animation file is corrupt (wrong section data length)");
+
+		for(int tl = 0; tl < numOfTimelines; tl++) {
+			if(onlyTimeline >= 0 && tl != onlyTimeline)
+				continue;
+			// Only read this timeline's section data.
+			buffer.limit(dataStart+offsets[tl+1]);
+			buffer.position(dataStart+offsets[tl]);
+			int start = 0, end = 0;
+			for(int s = 0; s < numOfSections[tl]; s++) {
+				int section = readVarint(buffer);
+				// Sections start where the previous one ended, unless they say otherwise.
+				start = ((section & 0x01) != 0) ? start+readVarint(buffer) : end;
+				end = start+(section >>> 3);
+				if(start < 0 || start > settings.getNumOfDivisions() || end > settings.getNumOfDivisions() ||
+						((section >>> 1) & 0x03) > Section.MODE_FADE_ON)
+					throw new IOException("Animation file is corrupt (section out of range)");
+				// The sections are in order, so they're always added to the end of the timeline.
+				timelines.add(tl, start, end, (section >>> 1) & 0x03);
+			}
+			if(buffer.hasRemaining())
+				throw new IOException("Animation file is corrupt (extra section data)");
+		}
+		return new Animation(timelines);
+	}
+
+	/**
+	 * Encodes an animation in the version 2 format.
+	 *
+	 * @param animation the animation to encode.
+	 * @return the encoded animation (ready to be read, position 0).
+	 */
+	public static ByteBuffer encode(Animation animation) {
+		SectionStore timelines = normalise(animation.getSections());
+		AnimationSettings settings = timelines.getSettings();
+		int numOfTimelines = timelines.getNumOfTimelines();
+
+		// Work out how long each timeline's section data is, so the
+		// buffer can be allocated once and the table written first.
+		int[] lengths = new int[numOfTimelines];
+		int headerSize = MAGIC.length+1+varintSize(settings.getNumOfTimelines())+
+				varintSize(settings.getNumOfDivisions())+varintSize(settings.getTicksPerSecond());
+		int dataSize = 0;
+		for(int tl = 0; tl < numOfTimelines; tl++) {
+			int prevStart = 0, prevEnd = 0;
+			for(int s = 0; s < timelines.size(tl); s++) {
+				int start = timelines.getStart(tl, s);
+				lengths[tl] += varintSize(section(timelines, tl, s, prevEnd));
+				if(start != prevEnd)
+					lengths[tl] += varintSize(start-prevStart);
+				prevStart = start;
+				prevEnd = timelines.getEnd(tl, s);
+			}
+			headerSize += varintSize(timelines.size(tl))+varintSize(lengths[tl]);
+			dataSize += lengths[tl];
+		}
+
+		ByteBuffer buffer = ByteBuffer.allocate(headerSize+dataSize+4);
+		buffer.put(MAGIC);
+		buffer.put((byte)VERSION);
+		writeVarint(buffer, settings.getNumOfTimelines());
+		writeVarint(buffer, settings.getNumOfDivisions());
+		writeVarint(buffer, settings.getTicksPerSecond());
+		for(int tl = 0; tl < numOfTimelines; tl++) {
+			writeVarint(buffer, timelines.size(tl));
+			writeVarint(buffer, lengths[tl]);
+		}
+		for(int tl = 0; tl < numOfTimelines; tl++) {
+			int prevStart = 0, prevEnd = 0;
+			for(int s = 0; s < timelines.size(tl); s++) {
+				int start = timelines.getStart(tl, s);
+				writeVarint(buffer, section(timelines, tl, s, prevEnd));
+				// The timeline is sorted, so the start is never before the previous start.
+				if(start != prevEnd)
+					writeVarint(buffer, start-prevStart);
+				prevStart = start;
+				prevEnd = timelines.getEnd(tl, s);
+			}
+		}
+
+		// Add the CRC of everything before it.
+		CRC32 crc = new CRC32();
+		crc.update(buffer.array(), 0, buffer.position());
+		buffer.putInt((int)crc.getValue());
+		buffer.flip();
+		return buffer;
+	}
+
+	/**
+	 * Encodes an animation in the version 2 format and writes it to the channel.
+	 *
+	 * @param animation the animation to encode.
+	 * @param channel the channel to write the animation to (it isn't closed).
+	 * @throws IOException if the channel can't be written to.
+	 */
+	public static void encode(Animation animation, WritableByteChannel channel) throws IOException {
+		ByteBuffer buffer = encode(animation);
+		while(buffer.hasRemaining())
+			channel.write(buffer);
+	}
+
+	/**
+	 * Encodes an animation in the version 1 format (the format the controller uses).
+	 *
+	 * @param animation the animation to encode.
+	 * @return the encoded animation (ready to be read, position 0).
+	 * @throws IOException if the animation has more LEDs, time divisions or updates
+	 *                     per second than the controller (and this format) can handle,
+	 *                     a timeline has more than 255 sections (the count is a byte) or
+	 *                     a section starts or ends outside 0 - 127 (they're 7 bits).
+	 */
+	public static ByteBuffer encodeV1(Animation animation) throws IOException {
+		SectionStore timelines = animation.getSections();
+		if(!timelines.getSettings().isFirmwareCompatible())
+			throw new IOException("Animation doesn't fit on the controller (" + timelines.getSettings() + ")");
+
+		// Set the number of timelines.
+		byte numOfTimelines = (byte)(timelines.getNumOfTimelines() & 0xFF);
+		// Store the number of sections in each timeline.
+		byte[] numOfSectionsInTimeline = new byte[timelines.getNumOfTimelines()];
+		// The animation end time.
+		int endTime = 0;
+		// Initilize the total size of the animation data to be the number of timelines
+		// (1 byte) plus the number of sections in each timeline (numOfTimelines bytes)
+		// plus the animation end time (1 byte).
+		int totalSize = 2+numOfTimelines;
+		for(int tl = 0; tl < timelines.getNumOfTimelines(); tl++) {
+			if(timelines.size(tl) > ControllerLimits.MAX_SECTIONS_PER_TIMELINE)
+				throw new IOException("LED " + (tl+1) + " has " + timelines.size(tl) + " sections (max " + ControllerLimits.MAX_SECTIONS_PER_TIMELINE + ")");
+			// Set the number of sections in the current timeline.
+			numOfSectionsInTimeline[tl] = (byte)(timelines.size(tl) & 0xFF);
+			// Increase the total size by the number of sections in this timeline * 2
+			// (times 2 because each section is 2 bytes long).
+			totalSize += timelines.size(tl)*2;
+		}
+
+		byte[] sections = new byte[totalSize];
+		// Set the initial offset (beginning of section data) to the number of timelines + 2.
+		// Skip number of timelines (byte[1])
+		// Skip number of sections in each timeline (byte[number of timelines+1])
+		// Skip animation end time (byte[number of timelines+1+1])
+		// Beginning of section data (byte[number of timelines+2])
+		int offSet = 2+numOfTimelines;
+		for(int tl = 0; tl < timelines.getNumOfTimelines(); tl++) {
+			for(int s = 0, sb = 0; s < timelines.size(tl); s++, sb+=2) {
+				int start = timelines.getStart(tl, s), end = timelines.getEnd(tl, s);
+				if(start < 0 || start > MAX_V1_TIME || end < 0 || end > MAX_V1_TIME)
+					throw new IOException("LED " + (tl+1) + " has a section from " + start + " to " + end + " (times must be 0 - " + MAX_V1_TIME + ")");
+				// Stores the current section's data as 2 bytes (an int).
+				int sectionBytes = 0;
+				// Set the startOn bit.
+				sectionBytes |= timelines.isStartOn(tl, s) ? 1 : 0;
+				// Set the fade bit.
+				sectionBytes |= (timelines.isFade(tl, s) ? 1 : 0) << 1;
+				// Set the start time bits (7 bits)
+				sectionBytes |= (start << 2);
+				// Set the end time bits (7 bits).
+				sectionBytes |= (end << 9);
+
+				// Add the current section's MSB to the byte array.
+				sections[sb+offSet] = (byte)(sectionBytes >> 8);
+				// Add the current section's LSB to the next slot in the byte array.
+				sections[(sb+1)+offSet] = (byte)(sectionBytes & 0xFF);
+
+				// If the current section's end time is more than the animation's end time,
+				// set the animation's end time to the current section's end time.
+				endTime = Math.max(endTime, end);
+			}
+			// Set the offset to point to the next timeline's section data.
+			// (i.e. add the number of sections in this timeline*2 to the current offset.)
+			offSet += (numOfSectionsInTimeline[tl] & 0xFF)*2;
+		}
+
+		// Set the first byte in the byte array to the number of timelines.
+		sections[0] = numOfTimelines;
+		// For every timeline n,
+		// set the n+1 byte in the byte array to the number of sections in timeline n.
+		for(int i = 0; i < numOfSectionsInTimeline.length; i++)
+			sections[i+1] = numOfSectionsInTimeline[i];
+		// Set the number of timelines+1 byte in the byte array to the animation end time.
+		sections[numOfTimelines+1] = (byte)(endTime & 0xFF);
+
+		return ByteBuffer.wrap(sections);
+	}
+
+	/**
+	 * Returns a section's first varint: its length shifted left 3 bits, its mode
+	 * in bits 1-2 and whether it doesn't start where the previous section ended in bit 0.
+	 */
+	private static int section(SectionStore timelines, int tl, int s, int prevEnd) {
+		int length = timelines.getEnd(tl, s)-timelines.getStart(tl, s);
+		return (length << 3) | (timelines.getMode(tl, s) << 1) | ((timelines.getStart(tl, s) != prevEnd) ? 1 : 0);
+	}
+
+	/**
+	 * Returns the sections with any that end before they start (which only
+	 * happens while a section is being dragged) turned around, so every length is positive.
+	 *
+	 * @return the sections, or a copy if any had to be turned around.
+	 */
+	private static SectionStore normalise(SectionStore timelines) {
+		boolean backwards = false;
+		for(int tl = 0; tl < timelines.getNumOfTimelines() && !backwards; tl++) {
+			for(int s = 0; s < timelines.size(tl) && !backwards; s++)
+				backwards = timelines.getEnd(tl, s) < timelines.getStart(tl, s);
+		}
+		if(!backwards)
+			return timelines;
+		SectionStore normalised = new SectionStore(timelines.getSettings());
+		for(int tl = 0; tl < timelines.getNumOfTimelines(); tl++) {
+			for(int s = 0; s < timelines.size(tl); s++) {
+				int start = timelines.getStart(tl, s), end = timelines.getEnd(tl, s);
+				normalised.add(tl, Math.min(start, end), Math.max(start, end), timelines.getMode(tl, s));
+			}
+		}
+		return normalised;
+	}
+
+	/**
+	 * Writes an unsigned varint (7 bits per byte, lowest bits first,
+	 * the top bit set on every byte but the last).
+	 */
+	private static void writeVarint(ByteBuffer buffer, int value) {
+		while((value & ~0x7F) != 0) {
+			buffer.put((byte)((value & 0x7F) | 0x80));
+			value >>>= 7;
+		}
+		buffer.put((byte)value);
+	}
+
+	/**
+	 * Returns the number of bytes an unsigned varint takes up.
+	 */
+	private static int varintSize(int value) {
+		int size = 1;
+		while((value & ~0x7F) != 0) {
+			value >>>= 7;
+			size++;
+		}
+		return size;
+	}
+
+	/**
+	 * Reads an unsigned varint.
+	 *
+	 * @throws IOException if the varint is bigger than Integer.MAX_VALUE.
+	 */
+	private static int readVarint(ByteBuffer buffer) throws IOException {
+		int value = 0;
+		for(int shift = 0; shift < 32; shift += 7) {
+			int b = buffer.get();
+			// The fifth byte only has room for the top 3 bits of a positive int.
+			if(shift == 28 && (b & ~0x07) != 0)
+				break;
+			value |= (b & 0x7F) << shift;
+			if((b & 0x80) == 0)
+				return value;
+		}
+		throw new IOException("Animation file is corrupt (varint too big)");
+	}
+}
@@ -0,0 +1,140 @@
+package cla.util;
+
+/**
+ * This class turns the sections that make up an animation into a table
+ * of LED brightness values, one value per LED per tick.
+ *
+ * Working out an LED's brightness from its sections means scanning every
+ * section in its timeline and doing some floating point maths. Doing that
+ * 80 times a second for every LED is wasteful because the answer only
+ * changes when the animation is edited. Instead, the animation is compiled
+ * into a table once per edit and each frame is just an array read.
+ *
+ * @author Duncan Cowan
+ *
+ */
+public abstract class AnimationCompiler {
+	// How many ticks (animation updates) each time division is split into.
+	// This must match the firmware, which multiplies section times by 10.
+	public static final int TICKS_PER_DIVISION = 10;
+
+	/**
+	 * Compiles the specified sections into a brightness table.
+	 *
+	 * The table has one row per timeline and one column per tick, and is
+	 * long enough to hold an animation that uses every time division.
+	 *
+	 * @param store the timelines (and their sections) to compile.
+	 * @return the brightness table, table[timeline][tick] (0 - 255, unsigned).
+	 */
+	public static byte[][] compile(SectionStore store) {
+		byte[][] frames = new byte[store.getNumOfTimelines()][getNumOfTicks(store.getNumOfDivisions())];
+		for(int tl = 0; tl < store.getNumOfTimelines(); tl++)
+			compileTimeline(store, tl, frames[tl]);
+		return frames;
+	}
+
+	/**
+	 * Compiles a single timeline into its row of the brightness table.
+	 *
+	 * @param store the store the timeline is in.
+	 * @param tl the timeline.
+	 * @param frames the timeline's row of the brightness table.
+	 */
+	public static void compileTimeline(SectionStore store, int tl, byte[] frames) {
+		// Ticks that aren't covered by a section are off.
+		for(int t = 0; t < frames.length; t++)
+			frames[t] = 0;
+
+		// Sections are applied in timeline order so that, where two sections
+		// share a tick, the later section wins (the same as the firmware).
+		for(int s = 0; s < store.size(tl); s++)
+			compileSection(store, tl, s, frames, 0, frames.length-1);
+	}
+
+	/**
+	 * Recompiles part of a single timeline's row of the brightness table,
+	 * leaving the ticks outside of the specified range untouched.
+	 *
+	 * This is used when a section is edited, because only the ticks the section
+	 * covered before and after the edit can have changed. The timeline's index
+	 * is used to skip straight to the sections that cover the range.
+	 *
+	 * @param index the index of the timeline's sections.
+	 * @param frames the timeline's row of the brightness table.
+	 * @param fromTick the first tick to recompile.
+	 * @param toTick the last tick to recompile.
+	 */
+	public static void compileTimeline(SectionIndex index, byte[] frames, int fromTick, int toTick) {
+		fromTick = Math.max(fromTick, 0);
+		toTick = Math.min(toTick, frames.length-1);
+
+		// Ticks that aren't covered by a section are off.
+		for(int t = fromTick; t <= toTick; t++)
+			frames[t] = 0;
+
+		// Only the sections that start before the range ends and
+		// end after the range starts need to be applied.
+		int count = index.countStartingBefore(toTick/TICKS_PER_DIVISION+1);
+		int first = index.firstEndingAtOrAfter((fromTick+TICKS_PER_DIVISION-1)/TICKS_PER_DIVISION, count);
+		for(int i = Math.max(first, 0); first >= 0 && i < count; i++)
+			compileSection(index.getStore(), index.getTimeline(), i, frames, fromTick, toTick);
+	}
+
+	/**
+	 * Writes the specified section's brightness into the ticks it covers
+	 * that are between fromTick and toTick.
+	 */
+	private static void compileSection(SectionStore store, int tl, int s, byte[] frames, int fromTick, int toTick) {
+		int start = store.getStart(tl, s), end = store.getEnd(tl, s), mode = store.getMode(tl, s);
+		for(int t = Math.max(start*TICKS_PER_DIVISION, fromTick); t <= end*TICKS_PER_DIVISION && t <= toTick; t++)
+			frames[t] = (byte)getBrightness(start, end, mode, t);
+	}
+
+	/**
+	 * Returns the brightness of the specified section at the specified tick.
+	 *
+	 * This is the same calculation the firmware uses
+	 * (minus the gamma correction).
+	 *
+	 * @param s the section.
+	 * @param tick the tick, should be between the section's start and end.
+	 * @return the section's brightness (0 - 255).
+	 */
+	public static int getBrightness(Section s, int tick) {
+		return getBrightness(s.getStart(), s.getEnd(), s.getMode(), tick);
+	}
+
+	/**
+	 * Returns the brightness of a section at the specified tick.
+	 *
+	 * @param start the section's start (in time divisions).
+	 * @param end the section's end (in time divisions).
+	 * @param mode the section's mode (see Section).
+	 * @param tick the tick, should be between the section's start and end.
+	 * @return the section's brightness (0 - 255).
+	 */
+	public static int getBrightness(int start, int end, int mode, int tick) {
+		int startOn = (Section.isStartOn(mode) ? 1 : 0);
+		int fade = (Section.isFade(mode) ? 1 : 0);
+		int startTime = start*TICKS_PER_DIVISION;
+		int endTime = end*TICKS_PER_DIVISION;
+		// A section with no length is treated as being at the start of its fade.
+		int brightness = (endTime == startTime) ? 0 : (int)((255.0/(endTime-startTime))*(tick-startTime));
+		return (startOn*255)+fade*(brightness-(brightness*2*startOn));
+	}
+
+	/**
+	 * Returns the number of ticks needed to hold an animation
+	 * with the specified number of time divisions.
+	 *
+	 * The extra tick is the one after the animation ends, where every LED
+	 * is turned off before the animation loops.
+	 *
+	 * @param numOfDivisions the number of time divisions.
+	 * @return the number of ticks.
+	 */
+	public static int getNumOfTicks(int numOfDivisions) {
+		return numOfDivisions*TICKS_PER_DIVISION+2;
+	}
+}
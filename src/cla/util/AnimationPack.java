@@ -0,0 +1,289 @@
+package cla.util;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Map;
+
+/**
+ * This class reads and writes animation packs (.clapack files), which hold lots
+ * of animations in a single file, e.g. a library of example animations.
+ *
+ * A pack is laid out as:
+ *   - The magic number ("CLAP"), the format version (1 byte) and 3 unused bytes.
+ *   - The number of animations (4 bytes).
+ *   - The index, one 40 byte entry per animation (sorted by name):
+ *     where its bytes start (8 bytes), how many bytes it is (4 bytes),
+ *     where its name starts (4 bytes), how many bytes its name is (4 bytes),
+ *     4 unused bytes and the first 16 bytes of the SHA-256 hash of its bytes.
+ *   - The names (UTF-8).
+ *   - The animations' bytes (each one exactly as it would be in a .cla file).
+ * Every number is big-endian.
+ *
+ * Packs are memory mapped, so opening one only reads the header, and the index
+ * entries are a fixed size, so any animation (or its name) can be found without
+ * reading the others. Only the animations that are asked for are decoded.
+ *
+ * Once opened, a pack can be read from any number of threads at once.
+ *
+ * @author Duncan Cowan
+ *
+ */
+public class AnimationPack {
+	// The start of every pack.
+	private static final byte[] MAGIC = {'C', 'L', 'A', 'P'};
+	private static final int VERSION = 1;
+	// The size of the header (magic number, version, unused bytes and the number of animations).
+	private static final int HEADER_SIZE = 12;
+	// The size of each index entry.
+	private static final int ENTRY_SIZE = 40;
+	// How many bytes of each animation's hash are stored.
+	public static final int HASH_SIZE = 16;
+
+	// The whole pack (memory mapped).
+	private final ByteBuffer pack;
+	private final int size;
+
+	private AnimationPack(ByteBuffer pack) throws IOException {
+		this.pack = pack;
+		if(pack.limit() < HEADER_SIZE)
+			throw new IOException("Not an animation pack (too short)");
+		for(int i = 0; i < MAGIC.length; i++) {
+			if(pack.get(i) != MAGIC[i])
+				throw new IOException("Not an animation pack");
+		}
+		int version = pack.get(MAGIC.length) & 0xFF;
+		if(version > VERSION)
+			throw new IOException("Animation pack is from a newer version (format version " + version + ")");
+		size = pack.getInt(8);
+		if(size < 0 || HEADER_SIZE+(long)size*ENTRY_SIZE > pack.limit())
+			throw new IOException("Animation pack is corrupt (index is too long)");
+	}
+
+	/**
+	 * Opens (memory maps) a pack.
+	 *
+	 * Only the header is read, so this takes the same time however many animations are in the pack.
+	 *
+	 * @param path the pack file.
+	 * @return the pack.
+	 * @throws IOException if the file can't be read or isn't a pack.
+	 */
+	public static AnimationPack open(Path path) throws IOException {
+		try(FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+			if(channel.size() > Integer.MAX_VALUE)
+				throw new IOException("Animation pack is too big (" + channel.size() + " bytes)");
+			// The mapping stays valid after the channel is closed.
+			return new AnimationPack(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+		}
+	}
+
+	/**
+	 * Returns the number of animations in the pack.
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * Returns the name of the specified animation.
+	 *
+	 * @param entry the index of the animation (0 to size()-1, sorted by name).
+	 * @return the name.
+	 * @throws IOException if the name isn't inside the pack.
+	 */
+	public String getName(int entry) throws IOException {
+		return new String(getNameBytes(entry), StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * Returns the index of the animation with the specified name.
+	 *
+	 * @param name the name.
+	 * @return the index of the animation, or -1 if the pack doesn't have it.
+	 * @throws IOException if the index is corrupt.
+	 */
+	public int indexOf(String name) throws IOException {
+		byte[] key = name.getBytes(StandardCharsets.UTF_8);
+		// The index is sorted by name, so search it without reading every name.
+		int lo = 0, hi = size-1;
+		while(lo <= hi) {
+			int mid = (lo+hi) >>> 1;
+			int c = compare(getNameBytes(mid), key);
+			if(c < 0)
+				lo = mid+1;
+			else if(c > 0)
+				hi = mid-1;
+			else
+				return mid;
+		}
+		return -1;
+	}
+
+	/**
+	 * Returns the bytes of the specified animation (as they would be in a .cla file).
+	 *
+	 * @param entry the index of the animation.
+	 * @return the animation's bytes (a read only view of the pack, nothing is copied).
+	 * @throws IOException if the animation isn't inside the pack.
+	 */
+	public ByteBuffer getBytes(int entry) throws IOException {
+		int e = entryOffset(entry);
+		return slice(pack.getLong(e), pack.getInt(e+8));
+	}
+
+	/**
+	 * Returns the stored hash of the specified animation's bytes (the first HASH_SIZE bytes of its SHA-256).
+	 *
+	 * @param entry the index of the animation.
+	 * @return the hash.
+	 */
+	public byte[] getHash(int entry) {
+		byte[] hash = new byte[HASH_SIZE];
+		ByteBuffer index = pack.duplicate();
+		index.position(entryOffset(entry)+24);
+		index.get(hash);
+		return hash;
+	}
+
+	/**
+	 * Decodes the specified animation, checking its hash first.
+	 *
+	 * @param entry the index of the animation.
+	 * @return the animation.
+	 * @throws IOException if the animation is corrupt.
+	 */
+	public Animation decode(int entry) throws IOException {
+		ByteBuffer bytes = getBytes(entry);
+		if(!Arrays.equals(hash(bytes), getHash(entry)))
+			throw new IOException("Animation pack is corrupt (" + getName(entry) + " doesn't match its hash)");
+		return AnimationCodec.decode(bytes);
+	}
+
+	/**
+	 * Writes a pack holding the specified animations.
+	 *
+	 * @param path the pack file to write.
+	 * @param animations each animation's bytes (as they would be in a .cla file), by name.
+	 * @throws IOException if the pack can't be written.
+	 */
+	public static void write(Path path, Map<String, ByteBuffer> animations) throws IOException {
+		// Sort the animations by name, in the same order indexOf searches them in.
+		final byte[][] names = new byte[animations.size()][];
+		ByteBuffer[] payloads = new ByteBuffer[animations.size()];
+		Integer[] order = new Integer[animations.size()];
+		int i = 0;
+		for(Map.Entry<String, ByteBuffer> a : animations.entrySet()) {
+			names[i] = a.getKey().getBytes(StandardCharsets.UTF_8);
+			payloads[i] = a.getValue();
+			order[i] = i;
+			i++;
+		}
+		Arrays.sort(order, new Comparator<Integer>() {
+			public int compare(Integer a, Integer b) {
+				return AnimationPack.compare(names[a], names[b]);
+			}
+		});
+
+		// Work out where everything goes.
+		long namesSize = 0, payloadSize = 0;
+		for(i = 0; i < names.length; i++) {
+			namesSize += names[i].length;
+			payloadSize += payloads[i].remaining();
+		}
+		long namesStart = HEADER_SIZE+(long)names.length*ENTRY_SIZE;
+		long total = namesStart+namesSize+payloadSize;
+		if(total > Integer.MAX_VALUE)
+			throw new IOException("Animation pack would be too big (" + total + " bytes)");
+
+		ByteBuffer out = ByteBuffer.allocate((int)total);
+		out.put(MAGIC);
+		out.put((byte)VERSION);
+		out.put(new byte[3]);
+		out.putInt(names.length);
+		long nameOffset = namesStart, payloadOffset = namesStart+namesSize;
+		for(int a : order) {
+			out.putLong(payloadOffset);
+			out.putInt(payloads[a].remaining());
+			out.putInt((int)nameOffset);
+			out.putInt(names[a].length);
+			out.putInt(0);
+			out.put(hash(payloads[a]));
+			nameOffset += names[a].length;
+			payloadOffset += payloads[a].remaining();
+		}
+		for(int a : order)
+			out.put(names[a]);
+		for(int a : order)
+			out.put(payloads[a].duplicate());
+		out.flip();
+		AtomicFile.write(path, out);
+	}
+
+	/**
+	 * Returns the first HASH_SIZE bytes of the SHA-256 hash of the bytes (from position to limit).
+	 */
+	public static byte[] hash(ByteBuffer bytes) {
+		try {
+			MessageDigest sha = MessageDigest.getInstance("SHA-256");
+			sha.update(bytes.duplicate());
+			return Arrays.copyOf(sha.digest(), HASH_SIZE);
+		} catch(NoSuchAlgorithmException e) {
+			// Every Java platform has SHA-256.
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * Returns the name of the specified animation as UTF-8 bytes.
+	 */
+	private byte[] getNameBytes(int entry) throws IOException {
+		int e = entryOffset(entry);
+		ByteBuffer name = slice(pack.getInt(e+12) & 0xFFFFFFFFL, pack.getInt(e+16));
+		byte[] bytes = new byte[name.remaining()];
+		name.get(bytes);
+		return bytes;
+	}
+
+	/**
+	 * Returns where the specified animation's index entry starts.
+	 */
+	private int entryOffset(int entry) {
+		if(entry < 0 || entry >= size)
+			throw new IndexOutOfBoundsException("No animation " + entry + " in a pack of " + size);
+		return HEADER_SIZE+entry*ENTRY_SIZE;
+	}
+
+	/**
+	 * Returns a read only view of part of the pack.
+	 *
+	 * @throws IOException if the part isn't inside the pack.
+	 */
+	private ByteBuffer slice(long offset, int length) throws IOException {
+		if(offset < 0 || length < 0 || offset+length > pack.limit())
+			throw new IOException("Animation pack is corrupt (entry is outside of the pack)");
+		ByteBuffer slice = pack.duplicate();
+		slice.position((int)offset);
+		slice.limit((int)offset+length);
+		return slice.slice().asReadOnlyBuffer();
+	}
+
+	/**
+	 * Compares two names byte by byte (unsigned), the order the index is sorted in.
+	 */
+	private static int compare(byte[] a, byte[] b) {
+		for(int i = 0; i < a.length && i < b.length; i++) {
+			int c = (a[i] & 0xFF)-(b[i] & 0xFF);
+			if(c != 0)
+				return c;
+		}
+		return a.length-b.length;
+	}
+}
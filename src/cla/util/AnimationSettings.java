@@ -0,0 +1,117 @@
+package cla.util;
+
+/**
+ * This class holds the settings of an animation (project): how many
+ * timelines (LEDs) it has, how many time divisions long they are and
+ * how many times a second the animation is updated.
+ *
+ * Settings are never changed once they're created.
+ *
+ * @author Duncan Cowan
+ *
+ */
+public class AnimationSettings {
+	// The settings used by the controller (4 LEDs, 126 time divisions, 80 updates a second).
+	public static final AnimationSettings DEFAULT = new AnimationSettings(4, 126, 80);
+
+	/* The limits of each setting. */
+	public static final int MAX_TIMELINES = 256;
+	public static final int MAX_DIVISIONS = 10000;
+	public static final int MAX_TICKS_PER_SECOND = 1000;
+
+	/* The most the controller's firmware (and the original file format) can handle. */
+	private static final int FIRMWARE_MAX_TIMELINES = 4;
+	private static final int FIRMWARE_MAX_DIVISIONS = 127;
+	private static final int FIRMWARE_TICKS_PER_SECOND = 80;
+
+	private final int numOfTimelines;
+	private final int numOfDivisions;
+	private final int ticksPerSecond;
+
+	/**
+	 * Constructor.
+	 *
+	 * @param numOfTimelines the number of timelines (1 - 256).
+	 * @param numOfDivisions the number of time divisions in a timeline (1 - 10000).
+	 * @param ticksPerSecond how many times a second the animation is updated
+	 *        (10 - 1000, a multiple of the ticks in a time division).
+	 * @throws IllegalArgumentException if a setting is out of range.
+	 */
+	public AnimationSettings(int numOfTimelines, int numOfDivisions, int ticksPerSecond) {
+		if(numOfTimelines < 1 || numOfTimelines > MAX_TIMELINES)
+			throw new IllegalArgumentException("Number of LEDs must be between 1 and " + MAX_TIMELINES);
+		if(numOfDivisions < 1 || numOfDivisions > MAX_DIVISIONS)
+			throw new IllegalArgumentException("Number of time divisions must be between 1 and " + MAX_DIVISIONS);
+		if(ticksPerSecond < AnimationCompiler.TICKS_PER_DIVISION || ticksPerSecond > MAX_TICKS_PER_SECOND ||
+				ticksPerSecond % AnimationCompiler.TICKS_PER_DIVISION != 0)
+			throw new IllegalArgumentException("Updates per second must be a multiple of " +
+				AnimationCompiler.TICKS_PER_DIVISION + " between " + AnimationCompiler.TICKS_PER_DIVISION + " and " + MAX_TICKS_PER_SECOND);
+		this.numOfTimelines = numOfTimelines;
+		this.numOfDivisions = numOfDivisions;
+		this.ticksPerSecond = ticksPerSecond;
+	}
+
+	/**
+	 * Returns the number of timelines (one per LED).
+	 */
+	public int getNumOfTimelines() {
+		return numOfTimelines;
+	}
+
+	/**
+	 * Returns the number of time divisions in a timeline.
+	 */
+	public int getNumOfDivisions() {
+		return numOfDivisions;
+	}
+
+	/**
+	 * Returns how many times a second the animation is updated.
+	 */
+	public int getTicksPerSecond() {
+		return ticksPerSecond;
+	}
+
+	/**
+	 * Returns how long a tick lasts in nanoseconds.
+	 */
+	public long getTickNanos() {
+		return 1000000000L/ticksPerSecond;
+	}
+
+	/**
+	 * Returns how many time divisions make up a second.
+	 */
+	public int getDivisionsPerSecond() {
+		return ticksPerSecond/AnimationCompiler.TICKS_PER_DIVISION;
+	}
+
+	/**
+	 * Checks if an animation with these settings can be played by the controller
+	 * (and saved in the original file format).
+	 *
+	 * @return true if the settings fit the controller, false otherwise.
+	 */
+	public boolean isFirmwareCompatible() {
+		return numOfTimelines <= FIRMWARE_MAX_TIMELINES && numOfDivisions <= FIRMWARE_MAX_DIVISIONS &&
+				ticksPerSecond == FIRMWARE_TICKS_PER_SECOND;
+	}
+
+	@Override
+	public boolean equals(Object o) {
+		if(!(o instanceof AnimationSettings))
+			return false;
+		AnimationSettings s = (AnimationSettings) o;
+		return numOfTimelines == s.numOfTimelines && numOfDivisions == s.numOfDivisions && ticksPerSecond == s.ticksPerSecond;
+	}
+
+	@Override
+	public int hashCode() {
+		return (numOfTimelines*31+numOfDivisions)*31+ticksPerSecond;
+	}
+
+	@Override
+	public String toString() {
+		return numOfTimelines + " LEDs, " + numOfDivisions + " time divisions, " + ticksPerSecond + " updates per second";
+	}
+}
@@ -0,0 +1,108 @@
+package cla.util;
+
+/**
+ * This class is an unchangeable copy of everything the preview needs to play
+ * an animation (its compiled brightness table and when it ends).
+ *
+ * The UI thread edits the animation while the preview's thread plays it.
+ * Instead of both threads sharing the sections (and having to lock them),
+ * every edit creates a new snapshot and hands it to the preview's thread,
+ * which always sees either the old or the new animation, never half of an edit.
+ *
+ * Snapshots are never changed once they're created, changing one creates a
+ * copy (only the changed timeline's row of the table is copied).
+ *
+ * @author Duncan Cowan
+ *
+ */
+public class AnimationSnapshot {
+	// The brightness table, frames[timeline][tick].
+	private final byte[][] frames;
+	// The time division the animation ends at.
+	private final int endTime;
+	// How long a tick lasts in nanoseconds.
+	private final long tickNanos;
+
+	private AnimationSnapshot(byte[][] frames, int endTime, long tickNanos) {
+		this.frames = frames;
+		this.endTime = endTime;
+		this.tickNanos = tickNanos;
+	}
+
+	/**
+	 * Compiles the specified sections into a new snapshot.
+	 *
+	 * @param store the timelines (and their sections) to compile.
+	 * @param endTime the time division the animation ends at.
+	 * @return the snapshot.
+	 */
+	public static AnimationSnapshot compile(SectionStore store, int endTime) {
+		return new AnimationSnapshot(AnimationCompiler.compile(store), endTime, store.getSettings().getTickNanos());
+	}
+
+	/**
+	 * Creates a copy of this snapshot with part of a timeline recompiled.
+	 *
+	 * @param timeline the timeline that changed.
+	 * @param index the index of the timeline's sections.
+	 * @param fromTick the first tick that changed.
+	 * @param toTick the last tick that changed.
+	 * @return the new snapshot.
+	 */
+	public AnimationSnapshot recompile(int timeline, SectionIndex index, int fromTick, int toTick) {
+		byte[][] frames = this.frames.clone();
+		frames[timeline] = frames[timeline].clone();
+		AnimationCompiler.compileTimeline(index, frames[timeline], fromTick, toTick);
+		return new AnimationSnapshot(frames, endTime, tickNanos);
+	}
+
+	/**
+	 * Creates a copy of this snapshot with a different end time.
+	 *
+	 * @param endTime the time division the animation ends at.
+	 * @return the new snapshot (or this snapshot if the end time hasn't changed).
+	 */
+	public AnimationSnapshot withEndTime(int endTime) {
+		return (endTime == this.endTime) ? this : new AnimationSnapshot(frames, endTime, tickNanos);
+	}
+
+	/**
+	 * Returns the brightness of the specified timeline's LED at the specified tick.
+	 *
+	 * @param timeline the timeline.
+	 * @param tick the tick.
+	 * @return the brightness (0 - 255), 0 if the tick is past the end of the table.
+	 */
+	public int getBrightness(int timeline, int tick) {
+		return (tick >= 0 && tick < frames[timeline].length) ? (frames[timeline][tick] & 0xFF) : 0;
+	}
+
+	/**
+	 * Returns the number of timelines in the animation.
+	 */
+	public int getNumOfTimelines() {
+		return frames.length;
+	}
+
+	/**
+	 * Returns how long a tick lasts in nanoseconds.
+	 */
+	public long getTickNanos() {
+		return tickNanos;
+	}
+
+	/**
+	 * Returns the time division the animation ends at.
+	 */
+	public int getEndTime() {
+		return endTime;
+	}
+
+	/**
+	 * Returns the number of ticks the animation plays before looping back to the start,
+	 * which includes the tick after the animation ends (where every LED is off).
+	 */
+	public int getLoopLength() {
+		return endTime*AnimationCompiler.TICKS_PER_DIVISION+2;
+	}
+}
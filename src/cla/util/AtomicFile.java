@@ -0,0 +1,53 @@
+package cla.util;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * This class writes files so they're never left half written.
+ *
+ * The bytes are written to a temporary file (in the same directory), flushed
+ * to the disk and then moved over the file, so the file is always either the
+ * old contents or the new ones, even if the program crashes part way through.
+ *
+ * It doesn't touch the UI, so it can be used by the command line tools as well
+ * as the animator.
+ *
+ * @author Duncan Cowan
+ *
+ */
+public abstract class AtomicFile {
+	/**
+	 * Writes bytes to a file through a temporary file.
+	 *
+	 * @param path the file to write to.
+	 * @param bytes the bytes to write (from the buffer's position to its limit).
+	 * @throws IOException if the file can't be written.
+	 */
+	public static void write(Path path, ByteBuffer bytes) throws IOException {
+		Path temp = path.toAbsolutePath().resolveSibling("." + path.getFileName() + ".tmp");
+		try {
+			try(FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE,
+					StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+				while(bytes.hasRemaining())
+					channel.write(bytes);
+				// Make sure the bytes are on the disk before the file is replaced.
+				channel.force(true);
+			}
+			try {
+				Files.move(temp, path, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+			} catch(AtomicMoveNotSupportedException e) {
+				Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING);
+			}
+		} finally {
+			// Only left behind if something went wrong.
+			Files.deleteIfExists(temp);
+		}
+	}
+}
@@ -0,0 +1,492 @@
+package cla.util;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+import javax.swing.JOptionPane;
+import javax.swing.SwingUtilities;
+import cla.Screen;
+
+/**
+ * This class keeps a copy of the current animation on disk while it's being
+ * edited, so a crash doesn't lose the changes made since it was last saved.
+ *
+ * Every edit the timeline makes (adding, removing, moving a section or changing
+ * its mode) is recorded here, which only adds it to a list. Once a second, a
+ * background thread appends the recorded edits to a journal file (each record
+ * is a fixed size and has a checksum, so a record cut short by a crash is just
+ * ignored). Every so often the journal is compacted: the animation (which the
+ * background thread keeps its own copy of, by applying the edits to it) is
+ * written to a snapshot file and a new, empty journal is started. Nothing is
+ * ever written on the UI thread.
+ *
+ * When the program starts, if the last run didn't exit cleanly and had unsaved
+ * changes, the user is asked if they want to recover them (the snapshot with
+ * the journal's edits applied).
+ *
+ * The files are kept in ~/.controller-led-animator/autosave as snapshot-N.cla
+ * and journal-N.log, where N goes up by one each time the journal is compacted.
+ *
+ * @author Duncan Cowan
+ *
+ */
+public abstract class Autosave {
+	// Where the snapshots and journals are kept.
+	private static final Path DIR = Paths.get(System.getProperty("user.home"), ".controller-led-animator", "autosave");
+	// How often the recorded edits are written to the journal.
+	private static final long FLUSH_MILLIS = 1000;
+	// The journal is compacted once it has this many records...
+	private static final int COMPACT_RECORDS = 10000;
+	// ...or it has any records and it hasn't been compacted for this long.
+	private static final long COMPACT_MILLIS = 5*60*1000;
+
+	// The journal's record types.
+	private static final int ADD = 1;
+	private static final int REMOVE = 2;
+	private static final int MOVE = 3;
+	private static final int MODE = 4;
+	private static final int SAVED = 5;
+	// The ints in each record (type, timeline and up to 4 values).
+	private static final int RECORD_INTS = 6;
+	// The size of each record in the journal (type byte, 5 ints and a CRC32 of the rest).
+	private static final int RECORD_SIZE = 1+5*4+4;
+
+	// Writes the journal and snapshots (one thread, so only it touches the files).
+	private static final ScheduledExecutorService writer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+		public Thread newThread(Runnable r) {
+			Thread t = new Thread(r, "Autosave");
+			t.setDaemon(true);
+			return t;
+		}
+	});
+	private static ScheduledFuture<?> flushTask;
+
+	// The edits recorded since the last flush (RECORD_INTS ints each) and the
+	// animation they apply to if it was replaced. Guarded by Autosave.class.
+	private static int[] pending = new int[64*RECORD_INTS];
+	private static int pendingCount;
+	private static SectionStore pendingReset;
+	// The last saved state that was recorded (UI thread only).
+	private static boolean recordedSaved = true;
+	// Whether edits are being recorded (only once this copy of the program has the lock).
+	private static volatile boolean enabled = false;
+	// Set if another copy of the program has the lock, so this one can't autosave.
+	private static volatile boolean usedByAnotherWindow = false;
+
+	// Only used by the writer thread.
+	private static FileLock lock;
+	private static SectionStore shadow;
+	private static boolean shadowSaved;
+	private static long generation = -1;
+	private static FileChannel journal;
+	private static int journalRecords;
+	private static long lastCompact;
+	private static final ByteBuffer flushBuffer = ByteBuffer.allocate(1024*RECORD_SIZE);
+
+	/**
+	 * Looks for changes left by a crash (in the background), asks the user if they want to
+	 * recover them, then starts autosaving the current animation.
+	 *
+	 * This should be called once, after the main window has been shown.
+	 */
+	public static void start() {
+		writer.execute(new Runnable() {
+			public void run() {
+				final Animation recovered;
+				try {
+					Files.createDirectories(DIR);
+					FileChannel lockChannel = FileChannel.open(DIR.resolve("lock"), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+					lock = lockChannel.tryLock();
+					if(lock == null) {
+						// Another copy of the program is autosaving, leave its files alone
+						// (and tell the user their changes aren't being autosaved).
+						lockChannel.close();
+						usedByAnotherWindow = true;
+						SwingUtilities.invokeLater(new Runnable() {
+							public void run() {
+								FileManager.updateTitle();
+							}
+						});
+						return;
+					}
+					recovered = recover();
+				} catch(IOException | OverlappingFileLockException e) {
+					e.printStackTrace();
+					return;
+				}
+				SwingUtilities.invokeLater(new Runnable() {
+					public void run() {
+						if(recovered != null && JOptionPane.showConfirmDialog(Screen.getInstance().getFrame(),
+								"The animator didn't close properly last time.\nRecover the unsaved animation?",
+								"Recover Animation?", JOptionPane.YES_NO_OPTION) == JOptionPane.YES_OPTION) {
+							FileManager.load(recovered);
+							FileManager.isFileSaved(false);
+						}
+						// Start from the current animation (this replaces the old files).
+						enabled = true;
+						reset(Screen.getInstance().timeline.getTimelines());
+						setSaved(FileManager.isFileSaved());
+						flushTask = writer.scheduleWithFixedDelay(new Runnable() {
+							public void run() {
+								flush();
+							}
+						}, FLUSH_MILLIS, FLUSH_MILLIS, TimeUnit.MILLISECONDS);
+					}
+				});
+			}
+		});
+	}
+
+	/**
+	 * Stops autosaving and deletes the autosave files (the program is exiting cleanly).
+	 */
+	public static void discard() {
+		enabled = false;
+		if(flushTask != null)
+			flushTask.cancel(false);
+		try {
+			writer.submit(new Runnable() {
+				public void run() {
+					if(lock == null)
+						return;
+					try {
+						if(journal != null)
+							journal.close();
+						deleteFiles(Long.MAX_VALUE);
+						lock.release();
+						lock.channel().close();
+					} catch(IOException e) {
+						e.printStackTrace();
+					}
+					lock = null;
+				}
+			}).get(10, TimeUnit.SECONDS);
+		} catch(Exception e) {
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Returns true if another copy of the program is autosaving, so this one isn't.
+	 */
+	public static boolean isUsedByAnotherWindow() {
+		return usedByAnotherWindow;
+	}
+
+	/**
+	 * Records that the animation was replaced (e.g. a file was opened).
+	 *
+	 * The store is copied, which takes about as long as the replacing did.
+	 *
+	 * @param store the new animation's timelines.
+	 */
+	public static void reset(SectionStore store) {
+		if(!enabled)
+			return;
+		SectionStore copy = store.copy();
+		synchronized(Autosave.class) {
+			// The edits so far were to the old animation.
+			pendingCount = 0;
+			pendingReset = copy;
+		}
+		recordedSaved = false;
+	}
+
+	/**
+	 * Records that a section was added.
+	 */
+	public static void added(int tl, int start, int end, int mode) {
+		record(ADD, tl, start, end, mode, 0);
+	}
+
+	/**
+	 * Records that a section was removed.
+	 */
+	public static void removed(int tl, int start, int end) {
+		record(REMOVE, tl, start, end, 0, 0);
+	}
+
+	/**
+	 * Records that a section was moved (or resized).
+	 */
+	public static void moved(int tl, int oldStart, int oldEnd, int start, int end) {
+		record(MOVE, tl, oldStart, oldEnd, start, end);
+	}
+
+	/**
+	 * Records that a section's mode was changed.
+	 */
+	public static void modeChanged(int tl, int start, int end, int mode) {
+		record(MODE, tl, start, end, mode, 0);
+	}
+
+	/**
+	 * Records whether the animation has been saved (only changes are recorded).
+	 */
+	public static void setSaved(boolean saved) {
+		if(saved == recordedSaved)
+			return;
+		recordedSaved = saved;
+		record(SAVED, 0, saved ? 1 : 0, 0, 0, 0);
+	}
+
+	/**
+	 * Adds an edit to the pending edits.
+	 */
+	private static synchronized void record(int type, int tl, int a, int b, int c, int d) {
+		// Nothing would ever flush the edits.
+		if(!enabled)
+			return;
+		// Dragging a section moves it many times a second, so only keep where it ended up.
+		if(type == MOVE && pendingCount > 0) {
+			int last = (pendingCount-1)*RECORD_INTS;
+			int lastType = pending[last];
+			if(pending[last+1] == tl && ((lastType == MOVE && pending[last+4] == a && pending[last+5] == b)
+					|| (lastType == ADD && pending[last+2] == a && pending[last+3] == b))) {
+				pending[last+(lastType == MOVE ? 4 : 2)] = c;
+				pending[last+(lastType == MOVE ? 5 : 3)] = d;
+				return;
+			}
+		}
+		if((pendingCount+1)*RECORD_INTS > pending.length)
+			pending = Arrays.copyOf(pending, pending.length*2);
+		int i = pendingCount*RECORD_INTS;
+		pending[i] = type;
+		pending[i+1] = tl;
+		pending[i+2] = a;
+		pending[i+3] = b;
+		pending[i+4] = c;
+		pending[i+5] = d;
+		pendingCount++;
+	}
+
+	/**
+	 * Writes the pending edits to the journal, compacting it if it's time to (writer thread only).
+	 */
+	private static void flush() {
+		if(lock == null)
+			return;
+		SectionStore reset;
+		int[] edits;
+		synchronized(Autosave.class) {
+			// Take everything at once, so the edits always go with the animation they were made to.
+			reset = pendingReset;
+			pendingReset = null;
+			edits = Arrays.copyOf(pending, pendingCount*RECORD_INTS);
+			pendingCount = 0;
+		}
+		try {
+			if(reset != null) {
+				shadow = reset;
+				shadowSaved = false;
+				compact();
+			}
+			if(shadow == null)
+				return;
+
+			for(int i = 0; i < edits.length; i += RECORD_INTS) {
+				if(edits[i] == SAVED) {
+					shadowSaved = edits[i+2] != 0;
+				} else {
+					shadowSaved = false;
+					apply(shadow, edits, i);
+				}
+				putRecord(flushBuffer, edits, i);
+				if(!flushBuffer.hasRemaining() || i+RECORD_INTS == edits.length) {
+					flushBuffer.flip();
+					while(flushBuffer.hasRemaining())
+						journal.write(flushBuffer);
+					flushBuffer.clear();
+				}
+			}
+			if(edits.length > 0) {
+				journal.force(false);
+				journalRecords += edits.length/RECORD_INTS;
+			}
+
+			if(journalRecords >= COMPACT_RECORDS || (journalRecords > 0 && System.currentTimeMillis()-lastCompact >= COMPACT_MILLIS))
+				compact();
+		} catch(IOException e) {
+			// The copy of the animation can't be trusted now, so start again from the timeline's
+			// (and don't write the records that were left in the buffer to the new journal).
+			e.printStackTrace();
+			shadow = null;
+			flushBuffer.clear();
+			SwingUtilities.invokeLater(new Runnable() {
+				public void run() {
+					reset(Screen.getInstance().timeline.getTimelines());
+					setSaved(FileManager.isFileSaved());
+				}
+			});
+		}
+	}
+
+	/**
+	 * Writes the animation to a new snapshot, starts a new journal for it
+	 * and deletes the old ones (writer thread only).
+	 */
+	private static void compact() throws IOException {
+		long next = generation+1;
+		AtomicFile.write(DIR.resolve("snapshot-" + next + ".cla"), AnimationCodec.encode(new Animation(shadow)));
+		FileChannel nextJournal = FileChannel.open(DIR.resolve("journal-" + next + ".log"),
+				StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+		// The journal starts with whether the snapshot was saved.
+		ByteBuffer saved = ByteBuffer.allocate(RECORD_SIZE);
+		putRecord(saved, new int[] {SAVED, 0, shadowSaved ? 1 : 0, 0, 0, 0}, 0);
+		saved.flip();
+		nextJournal.write(saved);
+		nextJournal.force(true);
+
+		if(journal != null)
+			journal.close();
+		journal = nextJournal;
+		generation = next;
+		journalRecords = 0;
+		lastCompact = System.currentTimeMillis();
+		deleteFiles(generation);
+	}
+
+	/**
+	 * Reads the newest snapshot and applies its journal to it.
+	 *
+	 * @return the recovered animation, or null if there's nothing worth recovering.
+	 */
+	private static Animation recover() throws IOException {
+		// Find the newest snapshot.
+		try(DirectoryStream<Path> stream = Files.newDirectoryStream(DIR, "snapshot-*.cla")) {
+			for(Path p : stream)
+				generation = Math.max(generation, getGeneration(p));
+		}
+		if(generation < 0)
+			return null;
+
+		SectionStore store;
+		try {
+			store = FileManager.readAnimation(DIR.resolve("snapshot-" + generation + ".cla")).getSections();
+		} catch(IOException e) {
+			e.printStackTrace();
+			return null;
+		}
+		boolean saved = false;
+		Path journalPath = DIR.resolve("journal-" + generation + ".log");
+		if(Files.exists(journalPath)) {
+			ByteBuffer bytes = ByteBuffer.wrap(Files.readAllBytes(journalPath));
+			int[] record = new int[RECORD_INTS];
+			CRC32 crc = new CRC32();
+			// Stop at the first record that was cut short (or doesn't make sense).
+			while(bytes.remaining() >= RECORD_SIZE) {
+				crc.reset();
+				crc.update(bytes.array(), bytes.position(), RECORD_SIZE-4);
+				record[0] = bytes.get() & 0xFF;
+				for(int i = 1; i < RECORD_INTS; i++)
+					record[i] = bytes.getInt();
+				if(bytes.getInt() != (int)crc.getValue())
+					break;
+				if(record[0] == SAVED) {
+					saved = record[2] != 0;
+					continue;
+				}
+				try {
+					apply(store, record, 0);
+				} catch(IOException e) {
+					e.printStackTrace();
+					break;
+				}
+				saved = false;
+			}
+		}
+
+		int sections = 0;
+		for(int tl = 0; tl < store.getNumOfTimelines(); tl++)
+			sections += store.size(tl);
+		return (saved || sections == 0) ? null : new Animation(store);
+	}
+
+	/**
+	 * Applies an edit record to the animation.
+	 *
+	 * @throws IOException if the section the record is about doesn't exist.
+	 */
+	private static void apply(SectionStore store, int[] record, int i) throws IOException {
+		int type = record[i], tl = record[i+1];
+		if(tl < 0 || tl >= store.getNumOfTimelines())
+			throw new IOException("Autosave journal has an edit to LED " + (tl+1) + " which doesn't exist");
+		if(type == ADD) {
+			store.add(tl, record[i+2], record[i+3], record[i+4]);
+			return;
+		}
+		int s = find(store, tl, record[i+2], record[i+3]);
+		if(s < 0)
+			throw new IOException("Autosave journal has an edit to a section which doesn't exist");
+		if(type == REMOVE)
+			store.remove(tl, s);
+		else if(type == MOVE)
+			store.move(tl, s, record[i+4], record[i+5]);
+		else if(type == MODE)
+			store.setMode(tl, s, record[i+4]);
+		else
+			throw new IOException("Autosave journal has an unknown record (" + type + ")");
+	}
+
+	/**
+	 * Returns the index of the section with the specified start and end, or -1 if there isn't one.
+	 */
+	private static int find(SectionStore store, int tl, int start, int end) {
+		for(int s = store.countStartingBefore(tl, start); s < store.size(tl) && store.getStart(tl, s) == start; s++) {
+			if(store.getEnd(tl, s) == end)
+				return s;
+		}
+		return -1;
+	}
+
+	/**
+	 * Puts a record (and its CRC32) into the buffer.
+	 */
+	private static void putRecord(ByteBuffer out, int[] record, int i) {
+		int from = out.position();
+		out.put((byte)record[i]);
+		for(int j = 1; j < RECORD_INTS; j++)
+			out.putInt(record[i+j]);
+		CRC32 crc = new CRC32();
+		crc.update(out.array(), out.arrayOffset()+from, RECORD_SIZE-4);
+		out.putInt((int)crc.getValue());
+	}
+
+	/**
+	 * Deletes every snapshot and journal older than the specified generation.
+	 */
+	private static void deleteFiles(long before) throws IOException {
+		try(DirectoryStream<Path> stream = Files.newDirectoryStream(DIR, "{snapshot-*.cla,journal-*.log}")) {
+			for(Path p : stream) {
+				if(getGeneration(p) < before)
+					Files.deleteIfExists(p);
+			}
+		}
+	}
+
+	/**
+	 * Returns the generation in a snapshot's or journal's file name (-1 if it doesn't have one).
+	 */
+	private static long getGeneration(Path p) {
+		String name = p.getFileName().toString();
+		try {
+			return Long.parseLong(name.substring(name.indexOf('-')+1, name.lastIndexOf('.')));
+		} catch(RuntimeException e) {
+			return -1;
+		}
+	}
+}
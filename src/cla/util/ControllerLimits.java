@@ -0,0 +1,82 @@
+package cla.util;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * This class checks if an animation can be uploaded to (and played by) the controller.
+ *
+ * The limits come from the firmware (ControllerLedFirmware.ino), which
+ * has fixed size buffers for the uploaded bytes and the sections.
+ *
+ * @author Duncan Cowan
+ *
+ */
+public abstract class ControllerLimits {
+	// The size of the firmware's buffer for an uploaded animation (bytesReceived).
+	public static final int RECEIVE_BUFFER_SIZE = 806;
+	// The most sections the firmware can hold, in all timelines (sections).
+	public static final int MAX_SECTIONS = 400;
+	// The most sections a timeline can have (the count is stored in a byte).
+	public static final int MAX_SECTIONS_PER_TIMELINE = 255;
+	// The most bytes firmware from before chunked uploads (protocol version 3) can be
+	// sent (the length is sent as a byte), newer firmware takes a full receive buffer.
+	public static final int MAX_UPLOAD_SIZE = 255;
+
+	/**
+	 * Checks the animation against every limit of the controller.
+	 *
+	 * @param animation the animation to check.
+	 * @return a description of each limit the animation breaks (empty if it fits).
+	 */
+	public static List<String> check(Animation animation) {
+		List<String> problems = new ArrayList<String>();
+		AnimationSettings settings = animation.getSettings();
+		if(!settings.isFirmwareCompatible()) {
+			// Nothing else can be checked, it can't be encoded for the controller.
+			problems.add("settings don't fit the controller (" + settings + ")");
+			return problems;
+		}
+
+		SectionStore sections = animation.getSections();
+		int total = 0;
+		boolean fullTimeline = false;
+		for(int tl = 0; tl < sections.getNumOfTimelines(); tl++) {
+			if(sections.size(tl) > MAX_SECTIONS_PER_TIMELINE) {
+				fullTimeline = true;
+				problems.add("LED " + (tl+1) + " has " + sections.size(tl) + " sections (max " + MAX_SECTIONS_PER_TIMELINE + ")");
+			}
+			total += sections.size(tl);
+		}
+		if(total > MAX_SECTIONS)
+			problems.add(total + " sections (max " + MAX_SECTIONS + ")");
+		if(fullTimeline)
+			// It can't be encoded, so its size can't be checked.
+			return problems;
+
+		int size;
+		try {
+			size = AnimationCodec.encodeV1(animation).remaining();
+		} catch(IOException e) {
+			problems.add(e.getMessage());
+			return problems;
+		}
+		if(size > RECEIVE_BUFFER_SIZE)
+			problems.add(size + " bytes (receive buffer is " + RECEIVE_BUFFER_SIZE + ")");
+		return problems;
+	}
+
+	/**
+	 * Returns a message telling the user why the animation can't be uploaded.
+	 *
+	 * @param problems the limits the animation breaks (from check).
+	 * @return the message, one problem per line.
+	 */
+	public static String describe(List<String> problems) {
+		String msg = "This animation doesn't fit on the controller:";
+		for(String problem : problems)
+			msg += "\n    " + problem;
+		return msg;
+	}
+}
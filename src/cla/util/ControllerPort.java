@@ -0,0 +1,57 @@
+package cla.util;
+
+import java.io.IOException;
+
+/**
+ * A connection to a controller: either a serial port (SerialControllerPort)
+ * or a SimulatedController that stands in for one.
+ *
+ * @author Duncan Cowan
+ *
+ */
+public interface ControllerPort {
+	/**
+	 * Returns the name of the port (as shown in the upload dialog).
+	 */
+	String getName();
+
+	/**
+	 * Changes how fast bytes are sent and received.
+	 *
+	 * @param baudRate the new baud rate.
+	 * @throws IOException if the port can't use the baud rate.
+	 */
+	void setBaudRate(int baudRate) throws IOException;
+
+	/**
+	 * Sends the bytes to the controller.
+	 *
+	 * @param bytes the bytes to send.
+	 * @throws IOException if the bytes can't be sent.
+	 */
+	void write(byte[] bytes) throws IOException;
+
+	/**
+	 * Reads the specified number of bytes from the controller.
+	 *
+	 * @param count how many bytes to read.
+	 * @param timeout how long to wait for them (in milliseconds).
+	 * @return the bytes, or null if they weren't all received in time.
+	 * @throws IOException if the port can't be read.
+	 */
+	byte[] read(int count, int timeout) throws IOException;
+
+	/**
+	 * Throws away any bytes that have been received but not read.
+	 *
+	 * @throws IOException if the port can't be read.
+	 */
+	void clearInput() throws IOException;
+
+	/**
+	 * Closes the port.
+	 *
+	 * @throws IOException if the port can't be closed.
+	 */
+	void close() throws IOException;
+}
@@ -0,0 +1,600 @@
+package cla.util;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+/**
+ * This class talks to the controller's firmware (ControllerLedFirmware.ino) to upload animations.
+ *
+ * An upload goes:
+ *   - Wait for the controller's ready banner ("CLA READY " and its protocol version),
+ *     asking for it with a '?' every so often in case the controller didn't reset.
+ *   - If the controller speaks protocol version 2 or newer, agree on a faster baud rate:
+ *     'B' and the rate (4 bytes) is answered with 'K' (both sides switch, then the
+ *     animator checks the controller is still there with a '?') or 'N' (not supported).
+ *     If the controller doesn't answer the '?' at the new rate (e.g. the link between
+ *     them can't carry it), both sides go back to DEFAULT_BAUD_RATE and the next
+ *     slower rate is tried.
+ *   - If the controller speaks protocol version 4 or newer, 'H' (answered with 'H', the
+ *     length of the controller's animation (2 bytes) and its CRC-32 (4 bytes)). If they're
+ *     the same as the animation's, the controller already has it, so it isn't uploaded again.
+ *   - If the controller speaks protocol version 3 or newer, a chunked upload:
+ *     'U' and the animation's length (2 bytes), then the animation in chunks of up
+ *     to CHUNK_SIZE bytes, each with a CRC-16. Up to WINDOW chunks are sent before
+ *     waiting for the controller to answer, and only the chunks the controller says
+ *     were garbled (or doesn't answer in time) are sent again. How long to wait for
+ *     an answer follows the measured round trip time. Finally 'C' and the CRC-16 of
+ *     the whole animation tells the controller to save it (see getChunkedAnimation()
+ *     in the firmware for the details).
+ *   - Otherwise, 'R', the animation's length (1 byte) and the animation (version 1 format).
+ *     The controller sends the animation back, and is sent '1' if it matched
+ *     (the controller saves it and resets) or '0' if it didn't.
+ * If the upload fails at a faster rate, it's tried again at DEFAULT_BAUD_RATE.
+ *
+ * @author Duncan Cowan
+ *
+ */
+public abstract class ControllerUploader {
+
+	/**
+	 * Told how an upload is going (by the thread doing the upload).
+	 */
+	public interface Listener {
+		/**
+		 * Called when the upload moves on to a new step (or something goes wrong).
+		 *
+		 * @param status what's happening.
+		 */
+		void status(String status);
+
+		/**
+		 * Called as the controller receives the animation.
+		 *
+		 * @param received how many of the animation's bytes the controller has received.
+		 * @param total the animation's length.
+		 */
+		void progress(int received, int total);
+
+		/**
+		 * Called if the controller already has the animation (so it isn't uploaded again).
+		 */
+		void alreadyUploaded();
+	}
+
+	// The baud rate the controller starts at.
+	public static final int DEFAULT_BAUD_RATE = 9600;
+	// The faster baud rates to try (fastest first), the firmware supports the same ones.
+	public static final int[] FAST_BAUD_RATES = {1000000, 500000, 250000, 115200};
+	// The first protocol versions with baud rate negotiation, chunked uploads
+	// and asking the controller which animation it has.
+	public static final int FAST_BAUD_VERSION = 2;
+	public static final int CHUNKED_VERSION = 3;
+	public static final int DIGEST_VERSION = 4;
+	// The most animation bytes in each chunk of a chunked upload (the firmware's CHUNK_SIZE).
+	public static final int CHUNK_SIZE = 32;
+	// How many chunks can be waiting to be answered at once.
+	private static final int WINDOW = 4;
+	// How many times a chunk is sent before giving up.
+	private static final int MAX_CHUNK_TRIES = 16;
+	// How many times the end of a chunked upload is sent before giving up.
+	private static final int MAX_COMMIT_TRIES = 3;
+	// The limits on how long to wait for a chunk to be answered (in milliseconds).
+	private static final int MIN_CHUNK_TIMEOUT = 20;
+	private static final int MAX_CHUNK_TIMEOUT = 3000;
+	// How long to wait for the controller to answer a command.
+	private static final int COMMAND_TIMEOUT = 1000;
+	// What the controller sends once it's ready (followed by its protocol version).
+	private static final String READY_BANNER = "CLA READY ";
+	// How long to wait for the controller to be ready. Controllers with firmware from before
+	// the ready banner never send it, so this is also how long they're given to start up.
+	private static final int READY_TIMEOUT = 3000;
+	// How often to ask the controller if it's ready while waiting.
+	private static final int READY_PROBE_INTERVAL = 500;
+	// How long to wait for the controller to answer at a new baud rate.
+	private static final int BAUD_CHECK_TIMEOUT = 500;
+	// How long the controller has to be quiet for after the ready banner.
+	private static final int SETTLE_TIME = 30;
+	// How long to wait for the controller to send an animation back.
+	private static final int ECHO_TIMEOUT = 10000;
+	// How long a baud rate that failed isn't tried again for (in milliseconds).
+	private static final long BAUD_RATE_MEMORY = 10*60*1000;
+	// The fastest baud rate to try with each port (slower than the last one that failed),
+	// so a port whose link can't carry the faster rates doesn't have to try them all every
+	// upload. Forgotten after BAUD_RATE_MEMORY, in case the failure was a one off.
+	private static final ConcurrentHashMap<String, BaudRateLimit> baudRateLimits = new ConcurrentHashMap<String, BaudRateLimit>();
+	// The last smoothed round trip time (in nanoseconds) of a chunk to each port (at each baud rate).
+	private static final ConcurrentHashMap<String, Long> roundTripTimes = new ConcurrentHashMap<String, Long>();
+	// Used when nothing needs to know how an upload is going.
+	private static final Listener NO_LISTENER = new Listener() {
+		public void status(String status) {}
+		public void progress(int received, int total) {}
+		public void alreadyUploaded() {}
+	};
+
+	/**
+	 * Opens the specified port (a serial port or a simulated controller).
+	 *
+	 * @param name the port's name.
+	 * @return the port.
+	 * @throws IOException if the port can't be opened.
+	 */
+	public static ControllerPort open(String name) throws IOException {
+		if(SimulatedController.isSimulated(name))
+			return SimulatedController.open(name);
+		return new SerialControllerPort(name);
+	}
+
+	/**
+	 * Uploads an animation to the controller on the specified port.
+	 *
+	 * @param port the controller's port (which is closed afterwards).
+	 * @param bytes the animation (version 1 format).
+	 * @return true if the controller received the animation and saved it.
+	 * @throws IOException if the port stops working.
+	 */
+	public static boolean upload(ControllerPort port, byte[] bytes) throws IOException {
+		return upload(port, bytes, NO_LISTENER);
+	}
+
+	/**
+	 * Uploads an animation to the controller on the specified port,
+	 * telling the listener how it's going.
+	 *
+	 * @param port the controller's port (which is closed afterwards).
+	 * @param bytes the animation (version 1 format).
+	 * @param listener told about each step of the upload.
+	 * @return true if the controller received the animation and saved it.
+	 * @throws IOException if the port stops working.
+	 */
+	public static boolean upload(ControllerPort port, byte[] bytes, Listener listener) throws IOException {
+		try {
+			report(listener, "Waiting for the controller");
+			int version = waitUntilReady(port);
+			report(listener, (version > 0) ? "Controller ready (protocol version " + version + ")" : "Controller didn't say it was ready, uploading anyway");
+			if(version < CHUNKED_VERSION && bytes.length > ControllerLimits.MAX_UPLOAD_SIZE) {
+				report(listener, "The controller's firmware can't take more than " + ControllerLimits.MAX_UPLOAD_SIZE + " bytes, update it");
+				return false;
+			}
+			if(version >= DIGEST_VERSION && hasAnimation(port, bytes)) {
+				report(listener, "Controller already has this animation");
+				listener.alreadyUploaded();
+				return true;
+			}
+			int baudRate = (version >= FAST_BAUD_VERSION) ? negotiateBaudRate(port) : DEFAULT_BAUD_RATE;
+			report(listener, "Uploading at " + baudRate + " baud");
+			if(send(port, bytes, version, baudRate, listener))
+				return true;
+			if(baudRate == DEFAULT_BAUD_RATE)
+				return false;
+
+			// The controller goes back to the default rate after a failed upload, try again at that.
+			report(listener, "Upload failed at " + baudRate + " baud, trying again at " + DEFAULT_BAUD_RATE);
+			limitBaudRate(port, baudRate);
+			port.setBaudRate(DEFAULT_BAUD_RATE);
+			if(waitUntilReady(port) == 0) {
+				report(listener, "Controller stopped answering");
+				return false;
+			}
+			return send(port, bytes, version, DEFAULT_BAUD_RATE, listener);
+		} finally {
+			port.close();
+		}
+	}
+
+	/**
+	 * Tells the listener what's happening with an upload.
+	 */
+	private static void report(Listener listener, String status) {
+		listener.status(status);
+	}
+
+	/**
+	 * Waits (up to READY_TIMEOUT) for the controller to send its ready banner.
+	 *
+	 * Opening the port usually resets the controller, which sends the banner once
+	 * it has started. In case it didn't reset, it's also asked for the banner ('?').
+	 *
+	 * @param port the controller's port.
+	 * @return the controller's protocol version, or 0 if it didn't send the banner
+	 *         (its firmware is too old), in which case READY_TIMEOUT has passed.
+	 */
+	static int waitUntilReady(ControllerPort port) throws IOException {
+		return waitForBanner(port, READY_TIMEOUT, READY_PROBE_INTERVAL);
+	}
+
+	/**
+	 * Asks the controller which animation it has.
+	 *
+	 * @param port the controller's port.
+	 * @param bytes the animation (version 1 format).
+	 * @return true if the controller's animation is the same length and has the same CRC-32.
+	 */
+	private static boolean hasAnimation(ControllerPort port, byte[] bytes) throws IOException {
+		port.clearInput();
+		port.write(new byte[] {'H'});
+		if(readReply(port, "H", COMMAND_TIMEOUT) < 0)
+			return false;
+		byte[] digest = port.read(6, COMMAND_TIMEOUT);
+		if(digest == null)
+			return false;
+		CRC32 crc = new CRC32();
+		crc.update(bytes);
+		ByteBuffer bb = ByteBuffer.wrap(digest);
+		return (bb.getShort() & 0xFFFF) == bytes.length && (bb.getInt() & 0xFFFFFFFFL) == crc.getValue();
+	}
+
+	/**
+	 * Agrees on the fastest baud rate both the animator and the controller support.
+	 *
+	 * @param port the controller's port (at the default baud rate).
+	 * @return the baud rate the port and the controller are now using.
+	 * @throws IOException if the controller stops answering.
+	 */
+	private static int negotiateBaudRate(ControllerPort port) throws IOException {
+		BaudRateLimit limit = baudRateLimits.get(port.getName());
+		if(limit != null && System.currentTimeMillis()-limit.time >= BAUD_RATE_MEMORY)
+			limit = null;
+		for(int baudRate : FAST_BAUD_RATES) {
+			// Don't try rates that failed recently (or are faster than one that did).
+			if(limit != null && baudRate > limit.baudRate)
+				continue;
+			port.write(new byte[] {'B', (byte)(baudRate >> 24), (byte)(baudRate >> 16), (byte)(baudRate >> 8), (byte)baudRate});
+			int reply = readReply(port, "KN", BAUD_CHECK_TIMEOUT);
+			if(reply < 0)
+				break;
+			if(reply != 'K')
+				continue;
+
+			// Both sides switch, check the controller can still be heard.
+			port.setBaudRate(baudRate);
+			port.clearInput();
+			if(waitForBanner(port, BAUD_CHECK_TIMEOUT, BAUD_CHECK_TIMEOUT) > 0)
+				return baudRate;
+			// It can't, the controller goes back to the default rate when it doesn't hear the '?'.
+			limitBaudRate(port, baudRate);
+			port.setBaudRate(DEFAULT_BAUD_RATE);
+			if(waitUntilReady(port) == 0)
+				throw new IOException("Controller stopped answering after trying " + baudRate + " baud");
+		}
+		return DEFAULT_BAUD_RATE;
+	}
+
+	/**
+	 * Stops the baud rate that failed (and any faster ones) being tried with the port
+	 * for BAUD_RATE_MEMORY.
+	 */
+	private static void limitBaudRate(ControllerPort port, int failed) {
+		int slower = DEFAULT_BAUD_RATE;
+		for(int baudRate : FAST_BAUD_RATES) {
+			if(baudRate < failed) {
+				slower = baudRate;
+				break;
+			}
+		}
+		baudRateLimits.put(port.getName(), new BaudRateLimit(slower, System.currentTimeMillis()));
+	}
+
+	/**
+	 * The fastest baud rate to try with a port, and when it was decided.
+	 */
+	private static class BaudRateLimit {
+		final int baudRate;
+		final long time;
+
+		BaudRateLimit(int baudRate, long time) {
+			this.baudRate = baudRate;
+			this.time = time;
+		}
+	}
+
+	/**
+	 * Reads the controller's answer to a command, skipping anything else.
+	 *
+	 * @param answers the answers the command can have.
+	 * @return the answer, or -1 if there wasn't one in time.
+	 */
+	private static int readReply(ControllerPort port, String answers, int timeout) throws IOException {
+		long deadline = System.currentTimeMillis()+timeout;
+		while(true) {
+			int left = (int)(deadline-System.currentTimeMillis());
+			byte[] b = (left > 0) ? port.read(1, left) : null;
+			if(b == null)
+				return -1;
+			if(answers.indexOf(b[0]) >= 0)
+				return b[0];
+		}
+	}
+
+	/**
+	 * Sends the animation to the controller, the best way its protocol version allows.
+	 *
+	 * @return true if the controller received the animation correctly (and saved it).
+	 */
+	private static boolean send(ControllerPort port, byte[] bytes, int version, int baudRate, Listener listener) throws IOException {
+		return (version >= CHUNKED_VERSION) ? sendChunked(port, bytes, baudRate, listener) : sendEchoed(port, bytes, listener);
+	}
+
+	/**
+	 * Sends the animation in CRC checked chunks, with up to WINDOW chunks waiting to
+	 * be answered at once, then tells the controller to save it if it was all received.
+	 *
+	 * @return true if the controller received the animation correctly (and saved it).
+	 */
+	private static boolean sendChunked(ControllerPort port, byte[] bytes, int baudRate, Listener listener) throws IOException {
+		port.clearInput();
+		port.write(new byte[] {'U', (byte)(bytes.length >> 8), (byte)bytes.length});
+		if(readReply(port, "SF", COMMAND_TIMEOUT) != 'S') {
+			report(listener, "Controller didn't start the upload");
+			return false;
+		}
+
+		int chunks = (bytes.length+CHUNK_SIZE-1)/CHUNK_SIZE;
+		boolean[] answered = new boolean[chunks];
+		int[] tries = new int[chunks];
+		// When each chunk waiting to be answered was (last) sent, 0 if it isn't waiting.
+		long[] sentAt = new long[chunks];
+		ArrayDeque<Integer> resend = new ArrayDeque<Integer>();
+		String key = port.getName() + "@" + baudRate;
+		RoundTripTimer timer = new RoundTripTimer(roundTripTimes.get(key), baudRate);
+		int answeredCount = 0, answeredBytes = 0, waiting = 0, next = 0;
+
+		while(answeredCount < chunks) {
+			// Fill the window, with the chunks that need sending again first.
+			while(waiting < WINDOW && (!resend.isEmpty() || next < chunks)) {
+				int c = resend.isEmpty() ? next++ : resend.poll();
+				if(answered[c])
+					continue;
+				if(++tries[c] > MAX_CHUNK_TRIES) {
+					report(listener, "Chunk " + c + " was sent " + MAX_CHUNK_TRIES + " times without getting through");
+					return false;
+				}
+				port.write(chunk(bytes, c));
+				sentAt[c] = System.nanoTime();
+				waiting++;
+			}
+
+			// Wait for an answer until the oldest chunk waiting times out.
+			long oldest = Long.MAX_VALUE;
+			for(int c = 0; c < chunks; c++) {
+				if(sentAt[c] != 0)
+					oldest = Math.min(oldest, sentAt[c]);
+			}
+			long timeout = timer.getTimeout();
+			int wait = (int)TimeUnit.NANOSECONDS.toMillis(oldest+timeout-System.nanoTime());
+			byte[] answer = (wait > 0) ? port.read(1, wait) : null;
+			if(answer == null) {
+				// Send every chunk that has timed out again, and wait longer from now on.
+				long now = System.nanoTime();
+				for(int c = 0; c < chunks; c++) {
+					if(sentAt[c] != 0 && now-sentAt[c] >= timeout) {
+						sentAt[c] = 0;
+						waiting--;
+						resend.add(c);
+					}
+				}
+				timer.backOff();
+				continue;
+			}
+			if(answer[0] != 'A' && answer[0] != 'X')
+				continue;
+			byte[] number = port.read(1, (int)TimeUnit.NANOSECONDS.toMillis(timeout));
+			if(number == null || (number[0] & 0xFF) >= chunks)
+				continue;
+			int c = number[0] & 0xFF;
+			if(answered[c])
+				continue;
+			boolean wasWaiting = sentAt[c] != 0;
+			if(answer[0] == 'A') {
+				// Only time chunks that were sent once (otherwise which send is being answered isn't known).
+				if(wasWaiting && tries[c] == 1)
+					timer.sample(System.nanoTime()-sentAt[c]);
+				answered[c] = true;
+				answeredCount++;
+				answeredBytes += Math.min(CHUNK_SIZE, bytes.length-c*CHUNK_SIZE);
+				listener.progress(answeredBytes, bytes.length);
+			} else if(wasWaiting) {
+				// The chunk was garbled, send it again.
+				resend.add(c);
+			}
+			if(wasWaiting) {
+				sentAt[c] = 0;
+				waiting--;
+			}
+		}
+		timer.save(roundTripTimes, key);
+
+		// Every chunk got through, check the whole animation did and tell the controller to save it.
+		int crc = crc16(0xFFFF, bytes, 0, bytes.length);
+		for(int attempt = 0; attempt < MAX_COMMIT_TRIES; attempt++) {
+			port.write(new byte[] {'C', (byte)(crc >> 8), (byte)crc});
+			// The controller doesn't answer a garbled 'C', and says 'F' if the CRC was garbled,
+			// so send it again until the controller saves the animation.
+			if(readReply(port, "KF", COMMAND_TIMEOUT) == 'K')
+				return true;
+		}
+		report(listener, "Controller didn't save the animation");
+		return false;
+	}
+
+	/**
+	 * Returns the frame that sends the specified chunk: 'D', the chunk's number,
+	 * its length, its bytes and a CRC-16 of all of those but the 'D'.
+	 */
+	private static byte[] chunk(byte[] bytes, int c) {
+		int start = c*CHUNK_SIZE;
+		int length = Math.min(CHUNK_SIZE, bytes.length-start);
+		byte[] frame = new byte[length+5];
+		frame[0] = 'D';
+		frame[1] = (byte)c;
+		frame[2] = (byte)length;
+		System.arraycopy(bytes, start, frame, 3, length);
+		int crc = crc16(0xFFFF, frame, 1, length+2);
+		frame[length+3] = (byte)(crc >> 8);
+		frame[length+4] = (byte)crc;
+		return frame;
+	}
+
+	/**
+	 * Updates a CRC-16 (CCITT polynomial 0x1021, most significant bit first,
+	 * the same as the firmware's _crc_xmodem_update) with the specified bytes.
+	 *
+	 * @param crc the CRC so far (0xFFFF to start).
+	 * @return the updated CRC.
+	 */
+	static int crc16(int crc, byte[] bytes, int offset, int length) {
+		for(int i = offset; i < offset+length; i++) {
+			crc ^= (bytes[i] & 0xFF) << 8;
+			for(int bit = 0; bit < 8; bit++)
+				crc = ((crc & 0x8000) != 0) ? (crc << 1) ^ 0x1021 : crc << 1;
+			crc &= 0xFFFF;
+		}
+		return crc;
+	}
+
+	/**
+	 * Works out how long to wait for a chunk to be answered from the measured
+	 * round trip times (the way TCP does, RFC 6298): the smoothed round trip
+	 * time plus four times how much it varies.
+	 */
+	private static class RoundTripTimer {
+		private long smoothed;
+		private long variation;
+		private long timeout;
+
+		/**
+		 * @param smoothed the smoothed round trip time from the last upload (null if there wasn't one).
+		 * @param baudRate the baud rate, used to guess the round trip time if it isn't known.
+		 */
+		RoundTripTimer(Long smoothed, int baudRate) {
+			if(smoothed != null) {
+				this.smoothed = smoothed;
+				this.variation = smoothed/2;
+				update();
+			} else {
+				// Twice as long as it takes to send a window full of chunks, plus some time for the controller.
+				timeout = 2*TimeUnit.SECONDS.toNanos(WINDOW*(CHUNK_SIZE+5)*10)/baudRate+TimeUnit.MILLISECONDS.toNanos(100);
+				clamp();
+			}
+		}
+
+		void sample(long roundTrip) {
+			if(smoothed == 0) {
+				smoothed = roundTrip;
+				variation = roundTrip/2;
+			} else {
+				variation = (3*variation+Math.abs(smoothed-roundTrip))/4;
+				smoothed = (7*smoothed+roundTrip)/8;
+			}
+			update();
+		}
+
+		void backOff() {
+			timeout *= 2;
+			clamp();
+		}
+
+		/**
+		 * Returns how long to wait for a chunk to be answered (in nanoseconds).
+		 */
+		long getTimeout() {
+			return timeout;
+		}
+
+		void save(ConcurrentHashMap<String, Long> roundTripTimes, String key) {
+			if(smoothed != 0)
+				roundTripTimes.put(key, smoothed);
+		}
+
+		private void update() {
+			timeout = smoothed+4*variation;
+			clamp();
+		}
+
+		private void clamp() {
+			timeout = Math.max(TimeUnit.MILLISECONDS.toNanos(MIN_CHUNK_TIMEOUT), Math.min(timeout, TimeUnit.MILLISECONDS.toNanos(MAX_CHUNK_TIMEOUT)));
+		}
+	}
+
+	/**
+	 * Sends the animation to the controller, and tells it to save it if it was received correctly
+	 * (for firmware from before chunked uploads).
+	 *
+	 * @return true if the controller received the animation correctly.
+	 */
+	private static boolean sendEchoed(ControllerPort port, byte[] bytes, Listener listener) throws IOException {
+		port.clearInput();
+		// Tell the controller to get ready for a new animation,
+		// then send the animation's length and the animation.
+		byte[] message = new byte[bytes.length+2];
+		message[0] = 'R';
+		message[1] = (byte)bytes.length;
+		System.arraycopy(bytes, 0, message, 2, bytes.length);
+		port.write(message);
+
+		// Once the controller has all the animation bytes,
+		// it sends them back so we can check their validity.
+		byte[] received = port.read(bytes.length, ECHO_TIMEOUT);
+		if(received == null) {
+			report(listener, "TIMEOUT");
+			return false;
+		}
+		for(int i = 0; i < bytes.length; i++) {
+			if(bytes[i] != received[i]) {
+				// Tell the controller not to use the new animation.
+				port.write(new byte[] {'0'});
+				report(listener, "Controller received a garbled animation");
+				return false;
+			}
+		}
+		listener.progress(bytes.length, bytes.length);
+		// Tell the controller to use the new animation.
+		port.write(new byte[] {'1'});
+		return true;
+	}
+
+	/**
+	 * Waits for the ready banner, sending a '?' every probeInterval milliseconds.
+	 *
+	 * @return the controller's protocol version, or 0 if the banner wasn't received in time.
+	 */
+	private static int waitForBanner(ControllerPort port, int timeout, int probeInterval) throws IOException {
+		long now = System.currentTimeMillis();
+		long deadline = now+timeout;
+		long nextProbe = now;
+		StringBuilder line = new StringBuilder();
+		while(true) {
+			now = System.currentTimeMillis();
+			if(now >= deadline)
+				return 0;
+			if(now >= nextProbe) {
+				port.write(new byte[] {'?'});
+				nextProbe = now+probeInterval;
+			}
+			byte[] b = port.read(1, (int)(Math.min(deadline, nextProbe)-now));
+			if(b == null)
+				continue;
+			char c = (char)(b[0] & 0xFF);
+			if(c != '\n') {
+				line.append(c);
+				continue;
+			}
+			// A whole line was received, check if it's the banner (ignoring anything else).
+			int banner = line.indexOf(READY_BANNER);
+			if(banner >= 0) {
+				// Throw away anything still coming (e.g. the answer to an earlier '?').
+				while(port.read(1, SETTLE_TIME) != null);
+				try {
+					return Integer.parseInt(line.substring(banner+READY_BANNER.length()).trim());
+				} catch (NumberFormatException e) {
+					// It's the banner, but the version is garbled.
+					return 1;
+				}
+			}
+			line.setLength(0);
+		}
+	}
+}
@@ -1,19 +1,34 @@
 package cla.util;
 
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import javax.swing.JOptionPane;
+import javax.swing.SwingUtilities;
 import cla.Screen;
-import jssc.SerialPort;
-import jssc.SerialPortException;
-import jssc.SerialPortTimeoutException;
 
 /**
  * This class handles the opening, saving, and uploading of animations
  * as well as keeping track of the currently open animation and it's saved status.
  * 
+ * Animations are saved in the version 2 format and uploaded in
+ * the version 1 format (see AnimationCodec).
+ * 
+ * Saving happens in the background (from a copy of the animation), so saving a
+ * big animation doesn't freeze the UI. The animation is written to a temporary
+ * file which then replaces the real file, so a crash part way through a save
+ * never leaves a half written animation behind.
+ * 
  * @author Duncan Cowan
  *
  */
@@ -21,7 +36,26 @@ public abstract class FileManager {
 	// The currently open file.
 	private static File openFile;
 	// The saved status of the current animation.
-	private static boolean fileSaved = true;
+	private static volatile boolean fileSaved = true;
+	// Counts the changes made to the current animation, so a save that
+	// finishes after another change doesn't mark the animation as saved.
+	private static volatile int changeCount;
+	// The most recently opened animations (decoded and compiled), so switching back to one is instant.
+	private static final AnimationCache cache = new AnimationCache();
+	// The most recently opened or saved files, most recent first.
+	private static final LinkedList<File> recentFiles = new LinkedList<File>();
+	// The most files in recentFiles.
+	public static final int MAX_RECENT_FILES = 10;
+	// Files bigger than this are memory mapped instead of read into memory.
+	private static final long MAP_THRESHOLD = 1 << 20;
+	// Saves the animations in the background, one at a time (in the order they were saved).
+	private static final ExecutorService saver = Executors.newSingleThreadExecutor(new ThreadFactory() {
+		public Thread newThread(Runnable r) {
+			Thread t = new Thread(r, "Animation saver");
+			t.setDaemon(true);
+			return t;
+		}
+	});
 
 	/**
 	 * Loads the specified file.
@@ -29,26 +63,52 @@ public abstract class FileManager {
 	 * @param f the file to load.
 	 */
 	public static void load(File f) {
-		byte[] fileBytes = new byte[(int)f.length()];
 		try {
-			// Get the bytes from the file.
-			FileInputStream fis = new FileInputStream(f);
-			fis.read(fileBytes);
-			// Close the file.
-			fis.close();
-
-			// Convert the bytes from the file to sections and
-			// put those sections into the timeline.
-			bytesToSections(fileBytes);
+			// Read the file (unless it's cached) and put a copy of its sections into the timeline.
+			AnimationCache.Entry cached = cache.get(f.toPath());
+			Animation animation = cached.getAnimation();
+			Screen.getInstance().timeline.setTimelines(animation.getSections().copy(), animation.getEndTime(), cached.getSnapshot());
 			// Set the open file.
 			openFile = f;
+			addRecentFile(f);
 			// Set file's saved status to true.
 			fileSaved = true;
+			Autosave.setSaved(true);
 		} catch(IOException e) {
 			e.printStackTrace();
 		}
 	}
 
+	/**
+	 * Loads the specified animation (e.g. one from a pack) as if it were a file.
+	 * 
+	 * A copy is loaded, so editing it doesn't change the animation (which can be loaded again).
+	 * 
+	 * @param animation the animation to load.
+	 */
+	public static void load(Animation animation) {
+		Screen.getInstance().timeline.setTimelines(animation.getSections().copy(), animation.getEndTime());
+		fileSaved = true;
+		Autosave.setSaved(true);
+	}
+
+	/**
+	 * Converts the current animation to the bytes uploaded to the controller (version 1 format).
+	 *
+	 * @return the bytes.
+	 * @throws IOException if the animation doesn't fit on the controller
+	 *                     (the message says why, ready to show to the user).
+	 */
+	public static byte[] encodeForController() throws IOException {
+		Animation animation = getCurrentAnimation();
+		// Don't upload animations that the controller can't hold.
+		List<String> problems = ControllerLimits.check(animation);
+		if(!problems.isEmpty())
+			throw new IOException(ControllerLimits.describe(problems));
+		// Convert the sections that make up the animation to bytes.
+		return AnimationCodec.encodeV1(animation).array();
+	}
+
 	/**
 	 * Uploads the current animation to the specified controller.
 	 * 
@@ -57,71 +117,12 @@ public abstract class FileManager {
 	 */
 	public static boolean upload(String sp) {
 		try {
-			// Open the serial port the controller is connected to.
-			SerialPort serialPort = new SerialPort(sp);
-			serialPort.openPort();
-			// Give it time to open.
-			try {
-				Thread.sleep(3000);
-			} catch (InterruptedException e) {
-				e.printStackTrace();
-			}
-			// Set the serial port parameters and clear the input buffer.
-			serialPort.setParams(9600, 8, 1, 0);
-			serialPort.readBytes(serialPort.getInputBufferBytesCount());
-			
-			// Convert the sections that make up the animation to bytes.
-			byte[] bytesToSend = sectionsToBytes();
-			// Tell the controller to get ready for a new animation.
-			serialPort.writeByte((byte)'R');
-			// Send the length animation byte array.
-			serialPort.writeByte((byte)bytesToSend.length);
-			// Send the animation byte array.
-			serialPort.writeBytes(bytesToSend);
-			
-			// Once the controller has all the animation bytes, 
-			// it sends them back so we can check their validity.
-			byte[] bytesToReceive = null;
-			try {
-				// Read the animation bytes sent back from the controller 
-				// with a timeout of 10 seconds.
-				bytesToReceive = serialPort.readBytes(bytesToSend.length, 10000);
-			} catch (SerialPortTimeoutException e) {
-				// If we don't get the full animation byte array within 10 seconds,
-				// close the port and return false.
-				System.out.println("TIMEOUT");
-				serialPort.closePort();
-				return false;
-			}
-			
-			/* Debugging */
-//			for(int i = 0; i < bytesToReceive.length; i++)
-//				System.out.print(Integer.toHexString(Byte.toUnsignedInt(bytesToSend[i]))+":");
-//			System.out.println();
-//			for(int i = 0; i < bytesToReceive.length; i++)
-//				System.out.print(Integer.toHexString(Byte.toUnsignedInt(bytesToReceive[i]))+":");
-			
-			// Check validity of bytes received by comparing them to the ones we sent.
-			for(int i = 0; i < bytesToReceive.length; i++) {
-				if(bytesToSend[i] != bytesToReceive[i]) {
-					// If any byte is out of place, 
-					// tell the controller not to use the new animation,
-					// close the port and return false.
-					serialPort.writeByte((byte)'0');
-					serialPort.closePort();
-					return false;
-				}
-			}
-			
-			// If the received bytes are the same as the sent bytes,
-			// tell the controller to use the new animation,
-			// close the port and return true.
-			serialPort.writeByte((byte)'1');
-			serialPort.closePort();
-			return true;
-		} catch (SerialPortException e) {
-			// If anything goes wrong with the serial port
-			// at any point during the upload process, return false.
+			byte[] bytesToSend = encodeForController();
+			// Open the port the controller is connected to (which resets it) and upload.
+			return ControllerUploader.upload(ControllerUploader.open(sp), bytesToSend);
+		} catch (IOException e) {
+			// If the animation doesn't fit on the controller, or anything goes
+			// wrong with the port at any point during the upload process, return false.
 			e.printStackTrace();
 			return false;
 		}
@@ -132,159 +133,110 @@ public abstract class FileManager {
 	 * 
 	 * @param f the file to save the animation to.
 	 */
-	public static void save(File f) {
-		try {
-			if(!f.exists())
-				// Create a new file if the specified file doesn't exist.
-				f.createNewFile();
-
-			// Get the specified file's output stream.
-			FileOutputStream fos = new FileOutputStream(f.getAbsolutePath());
-			// Convert the current animation to bytes
-			// and write them to the file's output stream.
-			fos.write(sectionsToBytes());
-			// close the file.
-			fos.close();
-			// Set the open file.
-			openFile = f;
-			// Set file's saved status to true.
-			fileSaved = true;
-		} catch (IOException e) {
-			e.printStackTrace();
-		}
+	public static void save(final File f) {
+		// Copy the animation (which is quick) so it can keep being edited while it's saved.
+		final Animation animation = new Animation(Screen.getInstance().timeline.getTimelines().copy());
+		final int savedChangeCount = changeCount;
+		// Set the open file.
+		openFile = f;
+		addRecentFile(f);
+		saver.execute(new Runnable() {
+			public void run() {
+				try {
+					writeAnimation(f.toPath(), animation);
+				} catch (final IOException e) {
+					e.printStackTrace();
+					SwingUtilities.invokeLater(new Runnable() {
+						public void run() {
+							JOptionPane.showMessageDialog(Screen.getInstance().getFrame(), 
+									"Couldn't save " + f.getName() + ":\n" + e.getMessage(), "Save Failed", JOptionPane.ERROR_MESSAGE);
+						}
+					});
+					return;
+				}
+				// The file might have changed within the modification time's resolution, so don't trust the cache.
+				cache.remove(f.toPath());
+				SwingUtilities.invokeLater(new Runnable() {
+					public void run() {
+						// Set file's saved status to true (unless it was changed during the save).
+						if(changeCount == savedChangeCount && f.equals(openFile))
+							isFileSaved(true);
+					}
+				});
+			}
+		});
 	}
-	
+
 	/**
-	 * Save the currently open file.
+	 * Waits for the saves that are still being written to finish.
+	 * 
+	 * This should be called before the program exits.
 	 */
-	public static void saveOpenFile() {
-		save(openFile);
+	public static void waitForSaves() {
+		saver.shutdown();
+		try {
+			saver.awaitTermination(1, TimeUnit.MINUTES);
+		} catch (InterruptedException e) {
+			e.printStackTrace();
+		}
 	}
 
 	/**
-	 * Converts a byte array to sections, the adds those sections to the timeline.
+	 * Reads an animation (of any file format version) from a file.
 	 * 
-	 * @param bFile the byte array to convert to sections and add to the timeline.
+	 * Large files are memory mapped rather than copied into memory first.
+	 * 
+	 * @param path the file to read.
+	 * @return the animation.
+	 * @throws IOException if the file can't be read or isn't a valid animation.
 	 */
-	private static void bytesToSections(byte[] bFile) {
-		ArrayList<ArrayList<Section>> timelines = new ArrayList<ArrayList<Section>>();
-		// The first byte in the array stores the number of timelines.
-		int numOfTimelines = (int)(bFile[0]);
-		// Set the initial offset (beginning of section data) to the number of timelines + 2.
-		// Skip number of timelines (byte[1])
-		// Skip number of sections in each timeline (byte[number of timelines+1])
-		// Skip animation end time (byte[number of timelines+1+1])
-		// Beginning of section data (byte[number of timelines+2])
-		int offSet = numOfTimelines+2;
-		
-		for(int tl = 0; tl < numOfTimelines; tl++) {
-			// For every timeline, add a new timeline to the timelines array.
-			timelines.add(new ArrayList<Section>());
-			// Get the number of sections in this timeline.
-			// The n+1 byte in the array stores the number of sections in the nth timeline.
-			// This is multiplied by 2 because each section is 2 bytes long.
-			int numOfSectionsInTimeline = bFile[tl+1]*2;
-			for(int s = 0; s < numOfSectionsInTimeline; s+=2) {
-				// Merge the MSB (first byte) and LSB (second byte) of the 
-				// current section into an int (2 bytes long).
-				int sectionBytes = (int)((bFile[s+offSet] << 8) | (bFile[(s+1)+offSet] & 0xFF));
-				// Get startOn value (first bit in section).
-				boolean startOn = (sectionBytes & 0x01) == 1;
-				// Get fade value (second bit in section).
-				boolean fade = ((sectionBytes >> 1) & 0x01) == 1;
-				// Get start time (third bit to ninth bit, 7 bits long)
-				int startTime = ((sectionBytes >> 2) & 0x7F);
-				// Get end time (tenth bit to last bit, 7 bits long)
-				int endTime = ((sectionBytes >> 9) & 0x7F);
-				
-				// Create new section object and add it to the current timeline.
-				timelines.get(tl).add(new Section(startOn, fade, startTime, endTime));
+	public static Animation readAnimation(Path path) throws IOException {
+		try(FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+			long size = channel.size();
+			if(size > Integer.MAX_VALUE)
+				throw new IOException("Animation file is too big (" + size + " bytes)");
+			if(size > MAP_THRESHOLD)
+				return AnimationCodec.decode(channel.map(FileChannel.MapMode.READ_ONLY, 0, size));
+
+			// Keep reading until the whole file has been read (a read can return less than was asked for).
+			ByteBuffer buffer = ByteBuffer.allocate((int)size);
+			while(buffer.hasRemaining()) {
+				if(channel.read(buffer) < 0)
+					throw new IOException("Animation file got shorter while it was being read");
 			}
-			// Set the offset to point to the next timeline's section data.
-			// (i.e. add the number of sections in this timeline*2 to the current offset.)
-			offSet += numOfSectionsInTimeline;
+			buffer.flip();
+			return AnimationCodec.decode(buffer);
 		}
-		// Add the timelines to the timeline panel, 
-		// and set the animation end time (the numOfTimelines+1 byte).
-		Screen.getInstance().timeline.setTimelines(timelines, bFile[numOfTimelines+1]);
 	}
 
 	/**
-	 * Converts the current animation into a byte array.
+	 * Writes an animation to a file in the version 2 format.
 	 * 
-	 * @return the animation byte array.
+	 * The file is always either the old animation or the new one, even if the
+	 * program crashes part way through (see AtomicFile).
+	 * 
+	 * @param path the file to write to.
+	 * @param animation the animation to write.
+	 * @throws IOException if the file can't be written.
 	 */
-	private static byte[] sectionsToBytes() {
-		// Get the current animation's sections.
-		ArrayList<ArrayList<Section>> timelines = Screen.getInstance().timeline.getTimelines();
-		
-		// Set the number of timelines.
-		byte numOfTimelines = (byte)(timelines.size() & 0xFF);
-		// Store the number of sections in each timeline.
-		byte[] numOfSectionsInTimeline = new byte[timelines.size()];
-		// The animation end time.
-		int endTime = 0;
-		// Initilize the total size of the animation data to be the number of timelines
-		// (1 byte) plus the number of sections in each timeline (numOfTimelines bytes)
-		// plus the animation end time (1 byte).
-		int totalSize = 2+numOfTimelines;
-		for(ArrayList<Section> tl : timelines) {
-			// Set the number of sections in the current timeline.
-			numOfSectionsInTimeline[timelines.indexOf(tl)] = (byte)(tl.size() & 0xFF);
-			// Increase the total size by the number of sections in this timeline * 2
-			// (times 2 because each section is 2 bytes long).
-			totalSize += tl.size()*2;
-		}
+	public static void writeAnimation(Path path, Animation animation) throws IOException {
+		AtomicFile.write(path, AnimationCodec.encode(animation));
+	}
 
-		byte[] sections = new byte[totalSize];
-		// Set the initial offset (beginning of section data) to the number of timelines + 2.
-		// Skip number of timelines (byte[1])
-		// Skip number of sections in each timeline (byte[number of timelines+1])
-		// Skip animation end time (byte[number of timelines+1+1])
-		// Beginning of section data (byte[number of timelines+2])
-		int offSet = 2+numOfTimelines;
-		for(int tl = 0; tl < timelines.size(); tl++) {
-			for(int s = 0, sb = 0; s < timelines.get(tl).size(); s++, sb+=2) {
-				// Get the s section from the tl timeline.
-				Section currentSection = timelines.get(tl).get(s);
-				// Stores the current section's data as 2 bytes (an int).
-				int sectionBytes = 0;
-				// Set the startOn bit.
-				sectionBytes |= currentSection.isStartOn() ? 1 : 0;
-				// Set the fade bit.
-				sectionBytes |= (currentSection.isFade() ? 1 : 0) << 1;
-				// Set the start time bits (7 bits)
-				sectionBytes |= (currentSection.getStart() << 2);
-				// Set the end time bits (7 bits).
-				sectionBytes |= (currentSection.getEnd() << 9);
-				
-				// Add the current section's MSB to the byte array.
-				sections[sb+offSet] = (byte)(sectionBytes >> 8);
-				// Add the current section's LSB to the next slot in the byte array.
-				sections[(sb+1)+offSet] = (byte)(sectionBytes & 0xFF);
-				
-				// If the current section's end time is more than the animation's end time,
-				// set the animation's end time to the current section's end time.
-				endTime = (currentSection.getEnd() > endTime) ? currentSection.getEnd() : endTime;
-			}
-			// Set the offset to point to the next timeline's section data.
-			// (i.e. add the number of sections in this timeline*2 to the current offset.)
-			offSet += numOfSectionsInTimeline[tl]*2;
-		}
-		
-		// Set the first byte in the byte array to the number of timelines.
-		sections[0] = numOfTimelines;
-		// For every timeline n, 
-		// set the n+1 byte in the byte array to the number of sections in timeline n.
-		for(int i = 0; i < numOfSectionsInTimeline.length; i++)
-			sections[i+1] = numOfSectionsInTimeline[i];
-		// Set the number of timelines+1 byte in the byte array to the animation end time.
-		sections[numOfTimelines+1] = (byte)(endTime & 0xFF);
+	/**
+	 * Save the currently open file.
+	 */
+	public static void saveOpenFile() {
+		save(openFile);
+	}
 
-		// Return the byte array that represents the current animation.
-		return sections;
+	/**
+	 * Returns the current animation (the timeline's sections).
+	 */
+	private static Animation getCurrentAnimation() {
+		return new Animation(Screen.getInstance().timeline.getTimelines());
 	}
-	
+
 	/**
 	 * Used to set the saved state of the current file.
 	 * 
@@ -293,7 +245,19 @@ public abstract class FileManager {
 	 */
 	public static void isFileSaved(boolean savedState) {
 		FileManager.fileSaved = savedState;
-		
+		Autosave.setSaved(savedState);
+		if(!savedState)
+			changeCount++;
+		updateTitle();
+	}
+
+	/**
+	 * Shows the current file's name and saved state (and whether it's being autosaved)
+	 * in the main window's title bar.
+	 */
+	public static void updateTitle() {
+		// Tell the user if their changes aren't being autosaved.
+		String autosave = Autosave.isUsedByAnotherWindow() ? " (Autosave off, another window is using it)" : "";
 		if(FileManager.openFile != null)
 			// If the current animation has been saved before
 			// and the file's saved state is 'not saved', 
@@ -301,12 +265,15 @@ public abstract class FileManager {
 			// main windoe's title bar.
 			// If the saved state is 'saved', then just show the file name.
 			Screen.getInstance().getFrame().setTitle(
-					(fileSaved ? "" : "*") + FileManager.openFile.getName() + " - " + Screen.APP_NAME);
+					(fileSaved ? "" : "*") + FileManager.openFile.getName() + " - " + Screen.APP_NAME + autosave);
+		else if(fileSaved)
+			// Nothing has been done yet, so just show the program's name.
+			Screen.getInstance().getFrame().setTitle(Screen.APP_NAME + autosave);
 		else
 			// If the current animation has never been saved before,
 			// set the animation's filename in the main window's title bar
 			// to "Untitled.cla" with an asterisk in front of it.
-			Screen.getInstance().getFrame().setTitle("*Untitled.cla - " + Screen.APP_NAME);
+			Screen.getInstance().getFrame().setTitle("*Untitled.cla - " + Screen.APP_NAME + autosave);
 	}
 	
 	/**
@@ -328,6 +295,24 @@ public abstract class FileManager {
 		return FileManager.openFile;
 	}
 	
+	/**
+	 * Returns the most recently opened or saved files, most recent first.
+	 */
+	public static List<File> getRecentFiles() {
+		return new ArrayList<File>(recentFiles);
+	}
+
+	/**
+	 * Moves the specified file to the top of the recent files.
+	 */
+	private static void addRecentFile(File f) {
+		f = f.getAbsoluteFile();
+		recentFiles.remove(f);
+		recentFiles.addFirst(f);
+		if(recentFiles.size() > MAX_RECENT_FILES)
+			recentFiles.removeLast();
+	}
+
 	/**
 	 * Closes the urrently open file.
 	 */
@@ -0,0 +1,279 @@
+package cla.util;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * This class uploads an animation to several controllers at once.
+ *
+ * Each controller is uploaded to on its own thread (up to MAX_PARALLEL_UPLOADS
+ * at a time), so a rig of controllers takes about as long as its slowest
+ * controller instead of all of them added together. A controller whose upload
+ * fails is tried again (after RETRY_DELAY, so the controller has given up on the
+ * failed upload) until it has been tried MAX_ATTEMPTS times.
+ *
+ * @author Duncan Cowan
+ *
+ */
+public class FleetUpload {
+	// The most controllers uploaded to at the same time.
+	public static final int MAX_PARALLEL_UPLOADS = 16;
+	// How many times each controller is tried before it's given up on.
+	public static final int MAX_ATTEMPTS = 3;
+	// How long to wait before trying a controller again (in milliseconds).
+	private static final long RETRY_DELAY = 1000;
+
+	/**
+	 * Told how the upload is going (by the uploading threads).
+	 */
+	public interface Listener {
+		/**
+		 * Called when a controller's status or progress changes.
+		 *
+		 * @param device the controller.
+		 */
+		void deviceChanged(Device device);
+
+		/**
+		 * Called once every controller has been uploaded to (or given up on).
+		 *
+		 * @param upload the finished upload.
+		 */
+		void finished(FleetUpload upload);
+	}
+
+	/**
+	 * A controller being uploaded to, and how its upload is going.
+	 */
+	public static class Device {
+		private final String port;
+		private volatile String status = "Waiting";
+		private volatile int received, total;
+		private volatile int attempts;
+		private volatile boolean done, uploaded, alreadyUploaded;
+
+		private Device(String port) {
+			this.port = port;
+		}
+
+		/**
+		 * Returns the name of the controller's port.
+		 */
+		public String getPort() {
+			return port;
+		}
+
+		/**
+		 * Returns what's happening with the controller's upload
+		 * (why it failed, once it has).
+		 */
+		public String getStatus() {
+			return status;
+		}
+
+		/**
+		 * Returns how much of the animation the controller has received in its current attempt (0 - 100).
+		 */
+		public int getProgress() {
+			return (total == 0) ? 0 : (int)(100L*received/total);
+		}
+
+		/**
+		 * Returns how many times the controller has been tried.
+		 */
+		public int getAttempts() {
+			return attempts;
+		}
+
+		/**
+		 * Returns true once the controller has been uploaded to or given up on.
+		 */
+		public boolean isDone() {
+			return done;
+		}
+
+		/**
+		 * Returns true if the controller saved the animation (or already had it).
+		 */
+		public boolean isUploaded() {
+			return uploaded;
+		}
+
+		/**
+		 * Returns true if the controller already had the animation, so it wasn't uploaded again.
+		 */
+		public boolean isAlreadyUploaded() {
+			return alreadyUploaded;
+		}
+	}
+
+	private final byte[] bytes;
+	private final List<Device> devices = new ArrayList<Device>();
+	private final Listener listener;
+	private final ScheduledExecutorService uploaders;
+	// How many controllers haven't been uploaded to or given up on.
+	private final AtomicInteger remaining;
+	private volatile boolean cancelled = false;
+	private volatile long startNanos, finishNanos;
+
+	/**
+	 * Constructor.
+	 *
+	 * @param bytes the animation (version 1 format).
+	 * @param ports the names of the controllers' ports.
+	 * @param listener told how the upload is going.
+	 */
+	public FleetUpload(byte[] bytes, List<String> ports, Listener listener) {
+		this.bytes = bytes;
+		this.listener = listener;
+		for(String port : ports)
+			devices.add(new Device(port));
+		remaining = new AtomicInteger(devices.size());
+		uploaders = new ScheduledThreadPoolExecutor(Math.max(1, Math.min(devices.size(), MAX_PARALLEL_UPLOADS)), new ThreadFactory() {
+			private final AtomicInteger count = new AtomicInteger();
+
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "Fleet uploader " + count.incrementAndGet());
+				t.setDaemon(true);
+				return t;
+			}
+		});
+	}
+
+	/**
+	 * Starts uploading to every controller.
+	 */
+	public void start() {
+		startNanos = System.nanoTime();
+		if(devices.isEmpty()) {
+			finish();
+			return;
+		}
+		for(Device device : devices)
+			schedule(device, 0);
+	}
+
+	/**
+	 * Stops trying controllers that haven't started their upload yet
+	 * (uploads that have started are finished).
+	 */
+	public void cancel() {
+		cancelled = true;
+	}
+
+	/**
+	 * Returns the controllers being uploaded to.
+	 */
+	public List<Device> getDevices() {
+		return Collections.unmodifiableList(devices);
+	}
+
+	/**
+	 * Returns the controllers that were given up on.
+	 */
+	public List<Device> getFailed() {
+		List<Device> failed = new ArrayList<Device>();
+		for(Device device : devices) {
+			if(device.isDone() && !device.isUploaded())
+				failed.add(device);
+		}
+		return failed;
+	}
+
+	/**
+	 * Returns a description of how the upload went
+	 * (how many controllers were uploaded to, and why any failed).
+	 */
+	public String getSummary() {
+		List<Device> failed = getFailed();
+		int alreadyUploaded = 0;
+		for(Device device : devices) {
+			if(device.isAlreadyUploaded())
+				alreadyUploaded++;
+		}
+		String summary = (devices.size()-failed.size()) + " of " + devices.size() + " controllers uploaded";
+		if(alreadyUploaded > 0)
+			summary += " (" + alreadyUploaded + " already had the animation)";
+		if(finishNanos != 0)
+			summary += String.format(" in %.1fs", (finishNanos-startNanos)/1e9);
+		for(Device device : failed)
+			summary += "\n" + device.getPort() + " failed after " + device.getAttempts() + " attempts: " + device.getStatus();
+		return summary;
+	}
+
+	private void schedule(final Device device, long delay) {
+		uploaders.schedule(new Runnable() {
+			public void run() {
+				attempt(device);
+			}
+		}, delay, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Tries uploading to the controller, and schedules another try if it fails.
+	 */
+	private void attempt(final Device device) {
+		if(cancelled) {
+			device.status = "Cancelled";
+			deviceFinished(device);
+			return;
+		}
+		device.attempts++;
+		device.received = 0;
+		boolean uploaded = false;
+		try {
+			uploaded = ControllerUploader.upload(ControllerUploader.open(device.port), bytes, new ControllerUploader.Listener() {
+				public void status(String status) {
+					device.status = status;
+					listener.deviceChanged(device);
+				}
+
+				public void progress(int received, int total) {
+					device.received = received;
+					device.total = total;
+					listener.deviceChanged(device);
+				}
+
+				public void alreadyUploaded() {
+					device.alreadyUploaded = true;
+					device.received = device.total = bytes.length;
+				}
+			});
+		} catch (IOException e) {
+			device.status = e.getMessage();
+		} finally {
+			if(uploaded) {
+				device.uploaded = true;
+				device.status = device.alreadyUploaded ? "Already has this animation" : "Uploaded";
+				deviceFinished(device);
+			} else if(device.attempts < MAX_ATTEMPTS && !cancelled) {
+				// Keep why it failed, so it's shown while waiting to try again.
+				device.status = "Attempt " + device.attempts + " failed (" + device.status + "), trying again";
+				listener.deviceChanged(device);
+				schedule(device, RETRY_DELAY);
+			} else {
+				deviceFinished(device);
+			}
+		}
+	}
+
+	private void deviceFinished(Device device) {
+		device.done = true;
+		listener.deviceChanged(device);
+		if(remaining.decrementAndGet() == 0)
+			finish();
+	}
+
+	private void finish() {
+		finishNanos = System.nanoTime();
+		uploaders.shutdown();
+		listener.finished(this);
+	}
+}
@@ -0,0 +1,89 @@
+package cla.util;
+
+/**
+ * This class decides how often the preview should be repainted while it's playing.
+ *
+ * On slow computers (or with big animations) repainting 80 times a second can
+ * take up all of the UI thread's time, which makes the mouse feel laggy.
+ * This class keeps track of how long painting takes and, when it's taking
+ * too long, lowers the refresh rate (80, 40 then 20 times a second). When
+ * painting speeds up again the refresh rate is raised back up.
+ *
+ * Only the refresh rate changes, the animation still plays at the same speed
+ * (the ticks that aren't repainted are still played, just not shown).
+ *
+ * @author Duncan Cowan
+ *
+ */
+public class FrameRateLimiter {
+	// How long a frame lasts at the highest refresh rate (80 times a second).
+	private static final long FRAME_NANOS = 12500000;
+	// The most a frame can be stretched by (20 times a second).
+	private static final int MAX_FRAME_LENGTH = 4;
+	// Lower the refresh rate if painting takes more than this fraction of a frame.
+	private static final double SLOW_FRACTION = 0.5;
+	// Raise the refresh rate if painting takes less than this fraction of a frame...
+	private static final double FAST_FRACTION = 0.125;
+	// ...for this many paints in a row.
+	private static final int FAST_PAINTS_NEEDED = 40;
+
+	// The average time a paint takes (a running average, so spikes don't change the rate).
+	private volatile long averagePaintNanos;
+	// How many times longer than FRAME_NANOS each repaint lasts (1, 2 or 4).
+	private volatile int frameLength = 1;
+	// How many fast paints there have been in a row.
+	private int fastPaints;
+	// How long has been played since the last repaint.
+	private long nanosSinceRepaint = Long.MAX_VALUE/2;
+
+	/**
+	 * Records how long a paint took, changing the refresh rate if needed.
+	 *
+	 * This should be called by the UI thread after every paint.
+	 *
+	 * @param nanos how long the paint took in nanoseconds.
+	 */
+	public void paintTook(long nanos) {
+		averagePaintNanos += (nanos-averagePaintNanos)/8;
+		long frameNanos = frameLength*FRAME_NANOS;
+
+		if(averagePaintNanos > frameNanos*SLOW_FRACTION && frameLength < MAX_FRAME_LENGTH) {
+			frameLength *= 2;
+			fastPaints = 0;
+		} else if(averagePaintNanos < frameNanos*FAST_FRACTION && frameLength > 1) {
+			if(++fastPaints >= FAST_PAINTS_NEEDED) {
+				frameLength /= 2;
+				fastPaints = 0;
+			}
+		} else {
+			fastPaints = 0;
+		}
+	}
+
+	/**
+	 * Checks if the preview should be repainted this tick.
+	 *
+	 * This should be called by the playback clock's thread every tick.
+	 *
+	 * @param skipped the number of ticks the playback clock skipped before this tick.
+	 * @param tickNanos how long a tick lasts in nanoseconds.
+	 * @return true if the preview should be repainted, false otherwise.
+	 */
+	public boolean shouldRepaint(int skipped, long tickNanos) {
+		nanosSinceRepaint += (skipped+1)*tickNanos;
+		// Allow for ticks that don't line up exactly with frames.
+		if(nanosSinceRepaint < frameLength*FRAME_NANOS-tickNanos/2)
+			return false;
+		nanosSinceRepaint = 0;
+		return true;
+	}
+
+	/**
+	 * Returns how many times a second the preview is currently repainted.
+	 *
+	 * @return the refresh rate (80, 40 or 20).
+	 */
+	public int getRefreshRate() {
+		return (int)(1000000000/(FRAME_NANOS*frameLength));
+	}
+}
@@ -0,0 +1,210 @@
+package cla.util;
+
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * This class keeps time for the animation preview.
+ *
+ * Instead of counting loop iterations (which makes the animation run slow
+ * whenever drawing takes too long), the current tick is worked out from the
+ * time that has passed since playback started. If a tick takes too long,
+ * the ticks that were missed are skipped so the preview stays in time with
+ * the controller, which updates its LEDs 80 times a second (by default).
+ *
+ * The clock has its own thread, which waits (without being interrupted)
+ * while the clock is stopped.
+ *
+ * @author Duncan Cowan
+ *
+ */
+public class PlaybackClock {
+
+	/**
+	 * Called by the clock's thread every tick while the clock is running.
+	 */
+	public interface Listener {
+		/**
+		 * Called when the clock reaches a new tick.
+		 *
+		 * @param tick the current tick.
+		 * @param skipped the number of ticks skipped since the last call
+		 *        (because the last call took too long).
+		 */
+		void tick(int tick, int skipped);
+	}
+
+	private final Listener listener;
+	private final Thread thread;
+	// Guards the playback state below, which is changed by start, stop and setLoopLength.
+	private final Object lock = new Object();
+	private boolean running = false;
+	// Changes every time the clock is started or stopped, so the clock's thread
+	// can tell when the playback it was timing has been replaced.
+	private int generation = 0;
+	// The time and tick playback started at.
+	private long startNanos;
+	private int startTick;
+	// How long a tick lasts in nanoseconds.
+	private long tickNanos = 1;
+	// The number of ticks before the animation loops back to tick 0.
+	private int loopLength = 1;
+
+	// Jitter statistics (how late each tick was), only changed by the clock's thread.
+	private volatile long ticks, skippedTicks, totalLateNanos, maxLateNanos;
+
+	/**
+	 * Constructor.
+	 *
+	 * Starts the clock's thread (the clock itself starts stopped).
+	 *
+	 * @param listener called every tick while the clock is running.
+	 */
+	public PlaybackClock(Listener listener) {
+		this.listener = listener;
+		thread = new Thread("Playback clock") {
+			public void run() {
+				runClock();
+			}
+		};
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * Starts (or restarts) playback from the specified tick.
+	 *
+	 * @param fromTick the tick to start at (0 if it's past the end of the animation).
+	 * @param loopLength the number of ticks before the animation loops back to tick 0.
+	 * @param tickNanos how long a tick lasts in nanoseconds.
+	 */
+	public void start(int fromTick, int loopLength, long tickNanos) {
+		synchronized(lock) {
+			this.tickNanos = tickNanos;
+			this.loopLength = Math.max(loopLength, 1);
+			// Like the controller, start from the beginning if past the end of the animation.
+			startTick = (fromTick < this.loopLength) ? Math.max(fromTick, 0) : 0;
+			startNanos = System.nanoTime();
+			running = true;
+			generation++;
+			ticks = 0;
+			skippedTicks = 0;
+			totalLateNanos = 0;
+			maxLateNanos = 0;
+		}
+		LockSupport.unpark(thread);
+	}
+
+	/**
+	 * Stops playback.
+	 *
+	 * The listener won't be called again (unless the clock is restarted),
+	 * except by a tick that was already being handled.
+	 */
+	public void stop() {
+		synchronized(lock) {
+			if(!running)
+				return;
+			running = false;
+			generation++;
+		}
+		LockSupport.unpark(thread);
+		if(Boolean.getBoolean("cla.playbackStats"))
+			System.out.println("Playback clock: " + getStats());
+	}
+
+	/**
+	 * Changes the number of ticks before the animation loops,
+	 * keeping the current tick where it is.
+	 *
+	 * @param loopLength the number of ticks before the animation loops back to tick 0.
+	 */
+	public void setLoopLength(int loopLength) {
+		synchronized(lock) {
+			loopLength = Math.max(loopLength, 1);
+			if(loopLength == this.loopLength)
+				return;
+			if(running) {
+				// Move the start tick so the current tick stays the same and the animation doesn't jump.
+				long elapsedTicks = (System.nanoTime()-startNanos)/tickNanos;
+				int curTick = (int)((startTick+elapsedTicks) % this.loopLength) % loopLength;
+				startTick = (int)(((curTick-elapsedTicks) % loopLength + loopLength) % loopLength);
+			}
+			this.loopLength = loopLength;
+		}
+	}
+
+	/**
+	 * Checks if the clock is running.
+	 *
+	 * @return true if the clock is running, false otherwise.
+	 */
+	public boolean isRunning() {
+		synchronized(lock) {
+			return running;
+		}
+	}
+
+	/**
+	 * Returns the jitter statistics since the clock was last started.
+	 *
+	 * @return the number of ticks, the number skipped and how late the ticks were.
+	 */
+	public String getStats() {
+		long ticks = this.ticks;
+		return ticks + " ticks, " + skippedTicks + " skipped, average late " +
+				((ticks == 0) ? 0 : totalLateNanos/ticks/1000) + "us, max late " + maxLateNanos/1000 + "us";
+	}
+
+	/**
+	 * Runs on the clock's thread, calling the listener every tick while the clock is running.
+	 */
+	private void runClock() {
+		int lastGeneration = -1;
+		long lastElapsedTicks = 0;
+		while(true) {
+			int generation, startTick, loopLength;
+			long startNanos, tickNanos;
+			boolean running;
+			synchronized(lock) {
+				generation = this.generation;
+				startTick = this.startTick;
+				loopLength = this.loopLength;
+				startNanos = this.startNanos;
+				tickNanos = this.tickNanos;
+				running = this.running;
+			}
+			// Wait until the clock is started (unpark is called by start).
+			if(!running) {
+				lastGeneration = generation;
+				LockSupport.park(this);
+				continue;
+			}
+
+			long now = System.nanoTime();
+			long elapsedTicks = (now-startNanos)/tickNanos;
+			if(generation != lastGeneration) {
+				// Playback has just started.
+				lastGeneration = generation;
+				lastElapsedTicks = elapsedTicks-1;
+			}
+
+			if(elapsedTicks > lastElapsedTicks) {
+				// Skip the ticks that were missed, rather than slowing the animation down.
+				int skipped = (int)Math.max(elapsedTicks-lastElapsedTicks-1, 0);
+				long late = now-(startNanos+elapsedTicks*tickNanos);
+				ticks++;
+				skippedTicks += skipped;
+				totalLateNanos += late;
+				if(late > maxLateNanos)
+					maxLateNanos = late;
+				lastElapsedTicks = elapsedTicks;
+				listener.tick((int)((startTick+elapsedTicks) % loopLength), skipped);
+			}
+
+			// Sleep until the next tick is due (stop or start will wake the thread early).
+			long wait = startNanos+(lastElapsedTicks+1)*tickNanos-System.nanoTime();
+			if(wait > 0)
+				LockSupport.parkNanos(this, wait);
+		}
+	}
+}
@@ -1,113 +1,105 @@
 package cla.util;
 
-import cla.ui.Timeline;
-
 /**
  * This class defines when to turn an LED on, when to turn it off 
  * and whether it fades on, fades off or neither.
  * 
+ * The sections themselves are stored in a SectionStore, this class is only
+ * a view of one of them (it doesn't copy the section's values). A view is
+ * only valid until the section's timeline is changed, because that can
+ * change the section's index.
+ * 
+ * Whether the LED fades and whether it starts on are stored as a single mode:
+ * 0 - don't fade (startOn: true, fade: false)
+ * 1 - fade off (startOn: true, fade: true)
+ * 2 - fade on (startOn: false, fade: true)
+ * 
  * TODO Think of a better name for this class.
  * 
  * @author Duncan Cowan
  *
  */
-public class Section implements Comparable<Section> {
-	// When to turn the LED on and when to turn it off.
-	private int start, end;
-	// Should the LED fade on (fade: true, startOn: false),
-	// fade off (fade: true, startOn: true), or
-	// not fade at all (fade: false, startOn true).
-	private boolean fade, startOn;
-	// Represents fade and startOn as an integer.
-	// 0 - don't fade
-	// 1 - fade off
-	// 2 - fade on
-	private int mode = 0;
+public class Section {
+	/* The modes. */
+	public static final int MODE_ON = 0;
+	public static final int MODE_FADE_OFF = 1;
+	public static final int MODE_FADE_ON = 2;
+
+	// Where the section is stored.
+	private final SectionStore store;
+	private final int timeline, index;
 	
 	/**
 	 * Constructor.
 	 * 
-	 * Sets if the LED should start on, if it should fade and
-	 * when it turns on and when it turns off.
-	 * 
-	 * Also sets the mode based on the startOn and fade values.
+	 * @param store the store the section is in.
+	 * @param timeline the section's timeline.
+	 * @param index the section's index in the timeline.
+	 */
+	Section(SectionStore store, int timeline, int index) {
+		this.store = store;
+		this.timeline = timeline;
+		this.index = index;
+	}
+	
+	/**
+	 * Returns the mode that matches the specified startOn and fade values.
 	 * 
 	 * @param startOn should the LED start on.
 	 * @param fade should the LED fade from one state to the other.
-	 * @param start when to turn the LED on.
-	 * @param end when to turn the LED off.
+	 * @return the mode.
 	 */
-	public Section(boolean startOn, boolean fade, int start, int end) {
-		this.start = start;
-		this.end = end;
-		this.fade = fade;
-		this.startOn = startOn;
-		
-		// Set mode based on startOn and fade.
+	public static int getMode(boolean startOn, boolean fade) {
 		if(startOn && fade) {
-			mode = 1;
+			return MODE_FADE_OFF;
 		} else if(startOn) {
-			mode = 0;
+			return MODE_ON;
 		} else {
-			mode = 2;
+			return MODE_FADE_ON;
 		}
 	}
 	
 	/**
-	 * Constructor.
-	 * 
-	 * Creates a section that doesn't fade on or off.
-	 * 
-	 * @param start when to turn the LED on.
-	 * @param end when to turn the LED off.
+	 * Returns the mode after the specified mode (used to cycle through the modes).
 	 */
-	public Section(int start, int end) {
-		this(true, false, start, end);
+	public static int nextMode(int mode) {
+		return (mode < 2) ? mode+1 : 0;
 	}
 	
-	/**
-	 * Cycles through the different modes.
-	 */
-	public void changeMode() {
-		mode = (mode < 2) ? mode+1 : 0;
-		this.fade = (mode > 0);
-		this.startOn = (mode < 2);
+	public static boolean isFade(int mode) {
+		return mode > 0;
+	}
+	
+	public static boolean isStartOn(int mode) {
+		return mode < 2;
 	}
 	
-	/* Getters and setters. */
+	/* Getters. */
 	public boolean isFade() {
-		return fade;
+		return store.isFade(timeline, index);
 	}
 
 	public boolean isStartOn() {
-		return startOn;
+		return store.isStartOn(timeline, index);
 	}
 
 	public int getMode() {
-		return this.mode;
+		return store.getMode(timeline, index);
 	}
 
 	public int getStart() {
-		return this.start;
-	}
-	
-	public void setStart(int start) {
-		this.start = (start < 0) ? 0 : start;
+		return store.getStart(timeline, index);
 	}
 	
 	public int getEnd() {
-		return this.end;
+		return store.getEnd(timeline, index);
 	}
 	
-	public void setEnd(int end) {
-		this.end = (end > Timeline.NUM_OF_DIVISIONS) ? Timeline.NUM_OF_DIVISIONS : end;
+	public int getTimeline() {
+		return timeline;
 	}
 	
-	/**
-	 * Used to sort sections based on their start time.
-	 */
-	@Override
-	public int compareTo(Section s) {
-		return this.start - ((Section) s).getStart();
+	public int getIndex() {
+		return index;
 	}
 }
@@ -0,0 +1,226 @@
+package cla.util;
+
+/**
+ * This class indexes the sections in a timeline so that finding the section
+ * at a position, or checking if a range collides with any section, doesn't
+ * need to check every section.
+ *
+ * The store keeps the timeline sorted by start time. Alongside it, two max
+ * trees (segment trees) are kept that store the furthest end time of every
+ * range of sections. This means that, for the sections that start before a
+ * position, we can find the first one that ends after the position in O(log n) time.
+ *
+ * Note: The timeline's sections must only be added, removed or moved through
+ *       this class, otherwise the index will be out of date.
+ *
+ * @author Duncan Cowan
+ *
+ */
+public class SectionIndex {
+	// Used for the empty slots in the max trees.
+	private static final int NONE = Integer.MIN_VALUE;
+
+	// The store and timeline being indexed.
+	private final SectionStore store;
+	private final int timeline;
+	// The number of leaves in the max trees (always a power of 2).
+	private int leaves;
+	// Max tree of every section's end time.
+	private int[] maxEnd;
+	// Max tree of the end times of the sections that are at least 2 time
+	// divisions long (shorter sections can't collide with anything).
+	private int[] maxInnerEnd;
+
+	/**
+	 * Constructor.
+	 *
+	 * Builds the index of the specified timeline.
+	 *
+	 * @param store the store the timeline is in.
+	 * @param timeline the timeline to index.
+	 */
+	public SectionIndex(SectionStore store, int timeline) {
+		this.store = store;
+		this.timeline = timeline;
+		rebuild();
+	}
+
+	/**
+	 * Rebuilds the max trees from scratch.
+	 *
+	 * This is only needed when sections are added, removed or reordered.
+	 */
+	private void rebuild() {
+		int size = store.size(timeline);
+		leaves = 1;
+		while(leaves < size)
+			leaves *= 2;
+
+		maxEnd = new int[leaves*2];
+		maxInnerEnd = new int[leaves*2];
+		for(int i = 0; i < leaves; i++) {
+			maxEnd[leaves+i] = (i < size) ? store.getEnd(timeline, i) : NONE;
+			maxInnerEnd[leaves+i] = (i < size) ? getInnerEnd(i) : NONE;
+		}
+		for(int n = leaves-1; n > 0; n--) {
+			maxEnd[n] = Math.max(maxEnd[n*2], maxEnd[n*2+1]);
+			maxInnerEnd[n] = Math.max(maxInnerEnd[n*2], maxInnerEnd[n*2+1]);
+		}
+	}
+
+	/**
+	 * Returns the store the indexed timeline is in.
+	 */
+	public SectionStore getStore() {
+		return store;
+	}
+
+	/**
+	 * Returns the timeline being indexed.
+	 */
+	public int getTimeline() {
+		return timeline;
+	}
+
+	/**
+	 * Adds a section to the timeline.
+	 *
+	 * @param start when to turn the LED on.
+	 * @param end when to turn the LED off.
+	 * @param mode the section's mode (see Section).
+	 * @return the index of the new section.
+	 */
+	public int add(int start, int end, int mode) {
+		int s = store.add(timeline, start, end, mode);
+		rebuild();
+		return s;
+	}
+
+	/**
+	 * Removes the specified section from the timeline.
+	 *
+	 * @param s the index of the section to remove.
+	 */
+	public void remove(int s) {
+		store.remove(timeline, s);
+		rebuild();
+	}
+
+	/**
+	 * Moves or resizes the specified section.
+	 *
+	 * @param s the index of the section.
+	 * @param start the section's new start.
+	 * @param end the section's new end.
+	 * @return the section's new index.
+	 */
+	public int move(int s, int start, int end) {
+		int i = store.move(timeline, s, start, end);
+		if(i != s) {
+			// The section moved past one of its neighbours.
+			rebuild();
+		} else {
+			// The section is still in the same place, so only its leaf
+			// (and the nodes above it) need to change.
+			int n = leaves+i;
+			maxEnd[n] = store.getEnd(timeline, i);
+			maxInnerEnd[n] = getInnerEnd(i);
+			for(n /= 2; n > 0; n /= 2) {
+				maxEnd[n] = Math.max(maxEnd[n*2], maxEnd[n*2+1]);
+				maxInnerEnd[n] = Math.max(maxInnerEnd[n*2], maxInnerEnd[n*2+1]);
+			}
+		}
+		return i;
+	}
+
+	/**
+	 * Returns the first section (by start time) that contains the specified position.
+	 *
+	 * @param position the position (in time divisions).
+	 * @return the index of the section at the position, or -1 if there isn't one.
+	 */
+	public int sectionAt(double position) {
+		return firstEndingAtOrAfter((int)Math.ceil(position), countStartingBefore((int)Math.floor(position)+1));
+	}
+
+	/**
+	 * Checks if any section, other than the ignored section, has a time division
+	 * strictly between its start and end that is also between start and end (inclusive).
+	 *
+	 * @param start the start of the range.
+	 * @param end the end of the range.
+	 * @param ignore the index of the section to ignore (usually the one being moved), or -1.
+	 * @return true if the range collides with a section, false otherwise.
+	 */
+	public boolean overlaps(int start, int end, int ignore) {
+		if(start > end)
+			return false;
+
+		// Only sections that start before the range's end can collide.
+		int count = countStartingBefore(end);
+		int max;
+		if(ignore < 0 || ignore >= count)
+			max = rangeMax(maxInnerEnd, 0, count);
+		else
+			max = Math.max(rangeMax(maxInnerEnd, 0, ignore), rangeMax(maxInnerEnd, ignore+1, count));
+		// ...And of those, a collision happens if any end after the range's start.
+		return max != NONE && max-1 >= start;
+	}
+
+	/**
+	 * Returns the index of the first section that ends at or after
+	 * the specified time, out of the first count sections.
+	 *
+	 * @param time the time (in time divisions).
+	 * @param count the number of sections (from the start of the timeline) to search.
+	 * @return the index of the section, or -1 if there isn't one.
+	 */
+	public int firstEndingAtOrAfter(int time, int count) {
+		if(count <= 0 || maxEnd[1] < time)
+			return -1;
+		// Walk down the tree, going left whenever the left subtree has a
+		// section that ends late enough.
+		return firstEndingAtOrAfter(1, 0, leaves, time, count);
+	}
+
+	private int firstEndingAtOrAfter(int node, int lo, int hi, int time, int count) {
+		if(lo >= count || maxEnd[node] < time)
+			return -1;
+		if(hi-lo == 1)
+			return lo;
+		int mid = (lo+hi)/2;
+		int i = firstEndingAtOrAfter(node*2, lo, mid, time, count);
+		return (i >= 0) ? i : firstEndingAtOrAfter(node*2+1, mid, hi, time, count);
+	}
+
+	/**
+	 * Returns the number of sections that start before the specified time.
+	 *
+	 * @param time the time (in time divisions).
+	 * @return the number of sections.
+	 */
+	public int countStartingBefore(int time) {
+		return store.countStartingBefore(timeline, time);
+	}
+
+	/**
+	 * Returns the max value in the tree between from (inclusive) and to (exclusive).
+	 */
+	private int rangeMax(int[] tree, int from, int to) {
+		int max = NONE;
+		for(int lo = from+leaves, hi = to+leaves; lo < hi; lo /= 2, hi /= 2) {
+			if((lo & 1) == 1)
+				max = Math.max(max, tree[lo++]);
+			if((hi & 1) == 1)
+				max = Math.max(max, tree[--hi]);
+		}
+		return max;
+	}
+
+	/**
+	 * Returns the section's end time if it can collide with other sections.
+	 */
+	private int getInnerEnd(int s) {
+		return (store.getEnd(timeline, s)-store.getStart(timeline, s) >= 2) ? store.getEnd(timeline, s) : NONE;
+	}
+}
@@ -0,0 +1,277 @@
+package cla.util;
+
+import java.util.Arrays;
+
+/**
+ * This class stores the sections that make up an animation.
+ *
+ * Instead of every section being its own object (in a list, in another list),
+ * each timeline (track) keeps its sections' start times, end times and modes
+ * in plain arrays, sorted by start time. This uses a fraction of the memory
+ * and means going through a timeline's sections is just reading arrays.
+ *
+ * A section is referred to by its timeline and its index in the timeline.
+ * Adding, removing or moving a section can change the indexes of the other
+ * sections in its timeline (they're kept sorted), so the methods that do
+ * that return the section's new index.
+ *
+ * @author Duncan Cowan
+ *
+ */
+public class SectionStore {
+	// How many sections a timeline has room for before its arrays grow.
+	private static final int INITIAL_CAPACITY = 8;
+
+	// The number of timelines, time divisions, etc.
+	private final AnimationSettings settings;
+	// The number of time divisions in a timeline (the latest a section can end).
+	private final int numOfDivisions;
+	// Each timeline's sections, start[timeline][section] etc.
+	private int[][] start;
+	private int[][] end;
+	private byte[][] mode;
+	// The number of sections in each timeline.
+	private int[] size;
+
+	/**
+	 * Constructor.
+	 *
+	 * Creates a store with empty timelines.
+	 *
+	 * @param settings the animation's settings (number of timelines, time divisions, etc.).
+	 */
+	public SectionStore(AnimationSettings settings) {
+		this.settings = settings;
+		int numOfTimelines = settings.getNumOfTimelines();
+		this.numOfDivisions = settings.getNumOfDivisions();
+		start = new int[numOfTimelines][INITIAL_CAPACITY];
+		end = new int[numOfTimelines][INITIAL_CAPACITY];
+		mode = new byte[numOfTimelines][INITIAL_CAPACITY];
+		size = new int[numOfTimelines];
+	}
+
+	/**
+	 * Returns the animation's settings.
+	 */
+	public AnimationSettings getSettings() {
+		return settings;
+	}
+
+	/**
+	 * Returns the number of timelines.
+	 */
+	public int getNumOfTimelines() {
+		return size.length;
+	}
+
+	/**
+	 * Returns the number of time divisions in a timeline.
+	 */
+	public int getNumOfDivisions() {
+		return numOfDivisions;
+	}
+
+	/**
+	 * Returns the number of sections in the specified timeline.
+	 *
+	 * @param tl the timeline.
+	 * @return the number of sections.
+	 */
+	public int size(int tl) {
+		return size[tl];
+	}
+
+	/* Getters for the s section in the tl timeline. */
+	public int getStart(int tl, int s) {
+		return start[tl][s];
+	}
+
+	public int getEnd(int tl, int s) {
+		return end[tl][s];
+	}
+
+	public int getMode(int tl, int s) {
+		return mode[tl][s];
+	}
+
+	public boolean isFade(int tl, int s) {
+		return Section.isFade(mode[tl][s]);
+	}
+
+	public boolean isStartOn(int tl, int s) {
+		return Section.isStartOn(mode[tl][s]);
+	}
+
+	/**
+	 * Returns a view of the specified section.
+	 *
+	 * @param tl the timeline.
+	 * @param s the index of the section in the timeline.
+	 * @return the section (only valid until the timeline is changed).
+	 */
+	public Section get(int tl, int s) {
+		return new Section(this, tl, s);
+	}
+
+	/**
+	 * Returns the time division the animation ends at (the latest end of any section).
+	 */
+	public int getEndTime() {
+		int endTime = 0;
+		for(int tl = 0; tl < size.length; tl++) {
+			for(int s = 0; s < size[tl]; s++)
+				endTime = Math.max(endTime, end[tl][s]);
+		}
+		return endTime;
+	}
+
+	/**
+	 * Adds a section to the specified timeline, after any sections with the same start time.
+	 *
+	 * @param tl the timeline.
+	 * @param start when to turn the LED on.
+	 * @param end when to turn the LED off.
+	 * @param mode the section's mode (see Section).
+	 * @return the index of the new section.
+	 */
+	public int add(int tl, int start, int end, int mode) {
+		if(size[tl] == this.start[tl].length) {
+			int capacity = size[tl]*2;
+			this.start[tl] = Arrays.copyOf(this.start[tl], capacity);
+			this.end[tl] = Arrays.copyOf(this.end[tl], capacity);
+			this.mode[tl] = Arrays.copyOf(this.mode[tl], capacity);
+		}
+		int s = countStartingBefore(tl, start+1);
+		shift(tl, s, size[tl], 1);
+		size[tl]++;
+		set(tl, s, start, end, mode);
+		return s;
+	}
+
+	/**
+	 * Removes the specified section.
+	 *
+	 * @param tl the timeline.
+	 * @param s the index of the section in the timeline.
+	 */
+	public void remove(int tl, int s) {
+		shift(tl, s+1, size[tl], -1);
+		size[tl]--;
+	}
+
+	/**
+	 * Moves (or resizes) the specified section, keeping the timeline sorted.
+	 *
+	 * The start is kept at or after 0 and the end at or before the last time division.
+	 *
+	 * @param tl the timeline.
+	 * @param s the index of the section in the timeline.
+	 * @param start the section's new start.
+	 * @param end the section's new end.
+	 * @return the section's new index.
+	 */
+	public int move(int tl, int s, int start, int end) {
+		start = clampStart(start);
+		end = clampEnd(end);
+		int mode = this.mode[tl][s];
+		// Slide the sections between the old and new positions over by one.
+		int to = s;
+		while(to > 0 && this.start[tl][to-1] > start)
+			to--;
+		while(to < size[tl]-1 && this.start[tl][to+1] < start)
+			to++;
+		if(to < s)
+			shift(tl, to, s, 1);
+		else if(to > s)
+			shift(tl, s+1, to+1, -1);
+		set(tl, to, start, end, mode);
+		return to;
+	}
+
+	/**
+	 * Changes the mode of the specified section.
+	 *
+	 * @param tl the timeline.
+	 * @param s the index of the section in the timeline.
+	 * @param mode the section's new mode (see Section).
+	 */
+	public void setMode(int tl, int s, int mode) {
+		this.mode[tl][s] = (byte)mode;
+	}
+
+	/**
+	 * Returns the number of sections in the specified timeline that start before the specified time.
+	 *
+	 * @param tl the timeline.
+	 * @param time the time (in time divisions).
+	 * @return the number of sections.
+	 */
+	public int countStartingBefore(int tl, int time) {
+		int lo = 0, hi = size[tl];
+		while(lo < hi) {
+			int mid = (lo+hi) >>> 1;
+			if(start[tl][mid] < time)
+				lo = mid+1;
+			else
+				hi = mid;
+		}
+		return lo;
+	}
+
+	/**
+	 * Creates a copy of this store (changing the copy doesn't change this store).
+	 *
+	 * @return the copy.
+	 */
+	public SectionStore copy() {
+		SectionStore copy = new SectionStore(settings);
+		for(int tl = 0; tl < size.length; tl++) {
+			copy.start[tl] = start[tl].clone();
+			copy.end[tl] = end[tl].clone();
+			copy.mode[tl] = mode[tl].clone();
+			copy.size[tl] = size[tl];
+		}
+		return copy;
+	}
+
+	/**
+	 * Creates a copy of this store with different settings.
+	 *
+	 * Timelines that don't fit are dropped, as are sections that start after
+	 * the last time division. Sections that end after the last time division are shortened.
+	 *
+	 * @param settings the new settings.
+	 * @return the copy.
+	 */
+	public SectionStore copy(AnimationSettings settings) {
+		SectionStore copy = new SectionStore(settings);
+		for(int tl = 0; tl < size.length && tl < copy.size.length; tl++) {
+			for(int s = 0; s < size[tl] && start[tl][s] < copy.numOfDivisions; s++)
+				copy.add(tl, start[tl][s], copy.clampEnd(end[tl][s]), mode[tl][s]);
+		}
+		return copy;
+	}
+
+	/**
+	 * Moves the sections from (inclusive) to to (exclusive) by the specified number of places.
+	 */
+	private void shift(int tl, int from, int to, int by) {
+		System.arraycopy(start[tl], from, start[tl], from+by, to-from);
+		System.arraycopy(end[tl], from, end[tl], from+by, to-from);
+		System.arraycopy(mode[tl], from, mode[tl], from+by, to-from);
+	}
+
+	private void set(int tl, int s, int start, int end, int mode) {
+		this.start[tl][s] = start;
+		this.end[tl][s] = end;
+		this.mode[tl][s] = (byte)mode;
+	}
+
+	private int clampStart(int start) {
+		return (start < 0) ? 0 : start;
+	}
+
+	private int clampEnd(int end) {
+		return (end > numOfDivisions) ? numOfDivisions : end;
+	}
+}
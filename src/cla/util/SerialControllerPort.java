@@ -0,0 +1,78 @@
+package cla.util;
+
+import java.io.IOException;
+import jssc.SerialPort;
+import jssc.SerialPortException;
+import jssc.SerialPortTimeoutException;
+
+/**
+ * A controller connected to a serial port.
+ *
+ * @author Duncan Cowan
+ *
+ */
+public class SerialControllerPort implements ControllerPort {
+	private final SerialPort serialPort;
+
+	/**
+	 * Opens the specified serial port at the controller's default baud rate.
+	 *
+	 * @param name the serial port's name.
+	 * @throws IOException if the port can't be opened.
+	 */
+	public SerialControllerPort(String name) throws IOException {
+		serialPort = new SerialPort(name);
+		try {
+			serialPort.openPort();
+		} catch (SerialPortException e) {
+			throw new IOException(e.getMessage(), e);
+		}
+		setBaudRate(ControllerUploader.DEFAULT_BAUD_RATE);
+	}
+
+	public String getName() {
+		return serialPort.getPortName();
+	}
+
+	public void setBaudRate(int baudRate) throws IOException {
+		try {
+			serialPort.setParams(baudRate, 8, 1, 0);
+		} catch (SerialPortException e) {
+			throw new IOException(e.getMessage(), e);
+		}
+	}
+
+	public void write(byte[] bytes) throws IOException {
+		try {
+			serialPort.writeBytes(bytes);
+		} catch (SerialPortException e) {
+			throw new IOException(e.getMessage(), e);
+		}
+	}
+
+	public byte[] read(int count, int timeout) throws IOException {
+		try {
+			return serialPort.readBytes(count, timeout);
+		} catch (SerialPortTimeoutException e) {
+			return null;
+		} catch (SerialPortException e) {
+			throw new IOException(e.getMessage(), e);
+		}
+	}
+
+	public void clearInput() throws IOException {
+		try {
+			serialPort.readBytes(serialPort.getInputBufferBytesCount());
+		} catch (SerialPortException e) {
+			throw new IOException(e.getMessage(), e);
+		}
+	}
+
+	public void close() throws IOException {
+		try {
+			serialPort.closePort();
+		} catch (SerialPortException e) {
+			throw new IOException(e.getMessage(), e);
+		}
+	}
+}
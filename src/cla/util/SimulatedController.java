@@ -0,0 +1,365 @@
+package cla.util;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import java.util.zip.CRC32;
+
+/**
+ * A stand-in for a controller, so uploads can be tried without one.
+ *
+ * It runs the same upload protocol as the firmware (ControllerLedFirmware.ino)
+ * on its own thread, and takes as long as a real serial link would to send
+ * each byte at the current baud rate. Bytes sent at a different baud rate
+ * than the receiver is using (or faster than the link can carry) arrive garbled,
+ * like they would on a real link. The uploaded animations are kept (by
+ * controller name) until the program exits.
+ *
+ * The stand-ins are listed in the upload dialog when the cla.simulators system
+ * property is set to how many there should be. How they behave can be changed with:
+ *   cla.simulator.firmware       the protocol version to speak (0 for firmware from before
+ *                                the ready banner, default: the latest).
+ *   cla.simulator.linkBaudRate   the fastest baud rate the link carries (default: any).
+ *   cla.simulator.errorRate      the chance of each byte being garbled on the way to the
+ *                                controller, as a fraction (default: 0).
+ *
+ * SimulatedControllerCheck uploads to stand-ins set up each of these ways and checks
+ * the results, so run it after changing the upload protocol.
+ *
+ * @author Duncan Cowan
+ *
+ */
+public class SimulatedController implements ControllerPort {
+	// The start of every simulated controller's name.
+	public static final String NAME_PREFIX = "Simulated controller ";
+	// The latest protocol version (what the firmware's ready banner says).
+	public static final int LATEST_VERSION = 4;
+	// How long the controller takes to start after a reset.
+	private static final long STARTUP_MILLIS = 100;
+	// The faster baud rates the firmware can switch to (sorted).
+	private static final int[] FIRMWARE_BAUD_RATES = {115200, 250000, 500000, 1000000};
+	// How often the controller checks if the port has been closed while waiting for a byte.
+	private static final long CLOSED_CHECK_NANOS = TimeUnit.MILLISECONDS.toNanos(20);
+	// What a byte sent at the wrong baud rate turns into.
+	private static final int GARBLE = 0x5A;
+
+	// The animation each simulated controller has saved (its EEPROM), by name.
+	private static final ConcurrentHashMap<String, byte[]> eeproms = new ConcurrentHashMap<String, byte[]>();
+
+	private final String name;
+	private final int version;
+	private final int linkBaudRate;
+	private final double errorRate;
+	private final Random random = new Random();
+	// The bytes on their way to the controller and to the animator.
+	private final LinkedBlockingQueue<int[]> toController = new LinkedBlockingQueue<int[]>();
+	private final LinkedBlockingQueue<int[]> toHost = new LinkedBlockingQueue<int[]>();
+	private volatile int hostBaudRate = ControllerUploader.DEFAULT_BAUD_RATE;
+	private volatile int controllerBaudRate = ControllerUploader.DEFAULT_BAUD_RATE;
+	private volatile boolean closed;
+	private final Thread firmware;
+
+	private SimulatedController(String name) {
+		this.name = name;
+		this.version = Integer.getInteger("cla.simulator.firmware", LATEST_VERSION);
+		this.linkBaudRate = Integer.getInteger("cla.simulator.linkBaudRate", Integer.MAX_VALUE);
+		this.errorRate = Double.parseDouble(System.getProperty("cla.simulator.errorRate", "0"));
+		firmware = new Thread(new Runnable() {
+			public void run() {
+				try {
+					runFirmware();
+				} catch (InterruptedException e) {
+					// The port was closed.
+				}
+			}
+		}, name);
+		firmware.setDaemon(true);
+		firmware.start();
+	}
+
+	/**
+	 * Returns the names of the simulated controllers (none unless the cla.simulators property is set).
+	 */
+	public static String[] getNames() {
+		String[] names = new String[Integer.getInteger("cla.simulators", 0)];
+		for(int i = 0; i < names.length; i++)
+			names[i] = NAME_PREFIX + (i+1);
+		return names;
+	}
+
+	/**
+	 * Returns true if the port name is a simulated controller's.
+	 */
+	public static boolean isSimulated(String name) {
+		return name.startsWith(NAME_PREFIX);
+	}
+
+	/**
+	 * Connects to the specified simulated controller, which resets it (like opening a serial port does).
+	 *
+	 * @param name the controller's name.
+	 * @return the controller's port.
+	 */
+	public static SimulatedController open(String name) {
+		return new SimulatedController(name);
+	}
+
+	/**
+	 * Returns the animation the specified simulated controller has saved (null if it hasn't got one).
+	 */
+	public static byte[] getSavedAnimation(String name) {
+		byte[] saved = eeproms.get(name);
+		return (saved == null) ? null : saved.clone();
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public void setBaudRate(int baudRate) {
+		hostBaudRate = baudRate;
+	}
+
+	public void write(byte[] bytes) throws IOException {
+		checkOpen();
+		byte[] sent = bytes.clone();
+		for(int i = 0; i < sent.length; i++) {
+			if(random.nextDouble() < errorRate)
+				sent[i] ^= GARBLE;
+		}
+		transmit(toController, sent, hostBaudRate);
+	}
+
+	public byte[] read(int count, int timeout) throws IOException {
+		checkOpen();
+		byte[] bytes = new byte[count];
+		long deadline = System.nanoTime()+TimeUnit.MILLISECONDS.toNanos(timeout);
+		try {
+			for(int i = 0; i < count; i++) {
+				int b = receive(toHost, hostBaudRate, deadline-System.nanoTime());
+				if(b < 0)
+					return null;
+				bytes[i] = (byte)b;
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while reading from " + name);
+		}
+		return bytes;
+	}
+
+	public void clearInput() {
+		toHost.clear();
+	}
+
+	public void close() {
+		// The controller stops once it has dealt with what was already sent.
+		closed = true;
+	}
+
+	private void checkOpen() throws IOException {
+		if(closed)
+			throw new IOException(name + " is closed");
+	}
+
+	/**
+	 * Sends bytes down the link, taking as long as the baud rate does (10 bits a byte).
+	 */
+	private void transmit(LinkedBlockingQueue<int[]> line, byte[] bytes, int baudRate) {
+		long nanosPerByte = 10*1000000000L/baudRate;
+		for(byte b : bytes) {
+			LockSupport.parkNanos(nanosPerByte);
+			line.add(new int[] {b & 0xFF, baudRate});
+		}
+	}
+
+	/**
+	 * Receives a byte from the link, garbled if it was sent at the wrong baud rate.
+	 *
+	 * @return the byte, or -1 if there wasn't one in time.
+	 */
+	private int receive(LinkedBlockingQueue<int[]> line, int baudRate, long timeoutNanos) throws InterruptedException {
+		int[] b = line.poll(Math.max(0, timeoutNanos), TimeUnit.NANOSECONDS);
+		if(b == null)
+			return -1;
+		return (b[1] == baudRate && b[1] <= linkBaudRate) ? b[0] : b[0] ^ GARBLE;
+	}
+
+	/**
+	 * Receives a byte sent to the controller.
+	 *
+	 * @return the byte, or -1 if there wasn't one in time.
+	 * @throws InterruptedException once the port is closed and everything sent has been received.
+	 */
+	private int receiveFromHost(long timeoutNanos) throws InterruptedException {
+		long deadline = System.nanoTime()+timeoutNanos;
+		while(true) {
+			long left = deadline-System.nanoTime();
+			int b = receive(toController, controllerBaudRate, Math.min(left, CLOSED_CHECK_NANOS));
+			if(b >= 0)
+				return b;
+			if(closed)
+				throw new InterruptedException();
+			if(left <= CLOSED_CHECK_NANOS)
+				return -1;
+		}
+	}
+
+	/**
+	 * The firmware's serialRead: a byte, or 255 if there wasn't one in time.
+	 */
+	private int serialRead(long timeoutMillis) throws InterruptedException {
+		int b = receiveFromHost(TimeUnit.MILLISECONDS.toNanos(timeoutMillis));
+		return (b < 0) ? 255 : b;
+	}
+
+	/**
+	 * The firmware's waitForByte: a byte, or -1 if there wasn't one in time.
+	 */
+	private int waitForByte(long timeoutMillis) throws InterruptedException {
+		return receiveFromHost(TimeUnit.MILLISECONDS.toNanos(timeoutMillis));
+	}
+
+	private void write(int b) {
+		transmit(toHost, new byte[] {(byte)b}, controllerBaudRate);
+	}
+
+	private void println(String line) {
+		transmit(toHost, (line + "\r\n").getBytes(), controllerBaudRate);
+	}
+
+	/**
+	 * Runs the firmware (setup() then loop()) until the port is closed.
+	 */
+	private void runFirmware() throws InterruptedException {
+		while(true) {
+			// setup()
+			controllerBaudRate = ControllerUploader.DEFAULT_BAUD_RATE;
+			Thread.sleep(STARTUP_MILLIS);
+			toController.clear();
+			if(version >= 1)
+				println("CLA READY " + version);
+
+			// loop(), until the controller resets.
+			while(!getAnimation());
+		}
+	}
+
+	/**
+	 * The firmware's getAnimation().
+	 *
+	 * @return true if the controller reset (after saving an animation).
+	 */
+	private boolean getAnimation() throws InterruptedException {
+		int command = receiveFromHost(Long.MAX_VALUE/2);
+		if(command == '?' && version >= 1) {
+			println("CLA READY " + version);
+		} else if(command == 'B' && version >= 2) {
+			int rate = 0;
+			for(int i = 0; i < 4; i++)
+				rate = (rate << 8) | serialRead(1000);
+			if(Arrays.binarySearch(FIRMWARE_BAUD_RATES, rate) < 0) {
+				transmit(toHost, new byte[] {'N'}, controllerBaudRate);
+				return false;
+			}
+			transmit(toHost, new byte[] {'K'}, controllerBaudRate);
+			controllerBaudRate = rate;
+			if(serialRead(1000) == '?')
+				println("CLA READY " + version);
+			else
+				controllerBaudRate = ControllerUploader.DEFAULT_BAUD_RATE;
+		} else if(command == 'H' && version >= 4) {
+			byte[] saved = eeproms.get(name);
+			int size = (saved == null) ? 0 : saved.length;
+			CRC32 crc = new CRC32();
+			if(saved != null)
+				crc.update(saved);
+			int value = (int)crc.getValue();
+			transmit(toHost, new byte[] {'H', (byte)(size >> 8), (byte)size,
+					(byte)(value >> 24), (byte)(value >> 16), (byte)(value >> 8), (byte)value}, controllerBaudRate);
+		} else if(command == 'U' && version >= 3) {
+			if(getChunkedAnimation())
+				return true;
+			controllerBaudRate = ControllerUploader.DEFAULT_BAUD_RATE;
+		} else if(command == 'R') {
+			int size = serialRead(3000);
+			byte[] received = new byte[size];
+			for(int i = 0; i < size; i++) {
+				int b = serialRead(3000);
+				if(b == 255)
+					break;
+				received[i] = (byte)b;
+			}
+			transmit(toHost, received, controllerBaudRate);
+			if(serialRead(10000) == '1') {
+				eeproms.put(name, received);
+				return true;
+			}
+			if(version >= 2)
+				controllerBaudRate = ControllerUploader.DEFAULT_BAUD_RATE;
+		}
+		return false;
+	}
+
+	/**
+	 * The firmware's getChunkedAnimation().
+	 *
+	 * @return true if the controller reset (after saving an animation), false if the upload failed.
+	 */
+	private boolean getChunkedAnimation() throws InterruptedException {
+		int size = (serialRead(1000) << 8) | serialRead(1000);
+		if(size == 0 || size > ControllerLimits.RECEIVE_BUFFER_SIZE) {
+			write('F');
+			return false;
+		}
+		byte[] received = new byte[size];
+		boolean[] chunksReceived = new boolean[(size+ControllerUploader.CHUNK_SIZE-1)/ControllerUploader.CHUNK_SIZE];
+		write('S');
+
+		while(true) {
+			int frame = waitForByte(5000);
+			if(frame < 0) {
+				return false;
+			} else if(frame == 'D') {
+				int chunk = serialRead(200);
+				int length = serialRead(200);
+				int start = chunk*ControllerUploader.CHUNK_SIZE;
+				if(length == 0 || length > ControllerUploader.CHUNK_SIZE || start+length > size)
+					continue;
+				byte[] frameBytes = new byte[length+2];
+				frameBytes[0] = (byte)chunk;
+				frameBytes[1] = (byte)length;
+				for(int i = 0; i < length; i++)
+					frameBytes[i+2] = (byte)serialRead(200);
+				int sentCrc = (serialRead(200) << 8) | serialRead(200);
+				if(chunksReceived[chunk] || ControllerUploader.crc16(0xFFFF, frameBytes, 0, frameBytes.length) == sentCrc) {
+					if(!chunksReceived[chunk])
+						System.arraycopy(frameBytes, 2, received, start, length);
+					chunksReceived[chunk] = true;
+					write('A');
+				} else {
+					write('X');
+				}
+				write(chunk);
+			} else if(frame == 'C') {
+				int sentCrc = (serialRead(200) << 8) | serialRead(200);
+				boolean complete = true;
+				for(boolean chunkReceived : chunksReceived)
+					complete = complete && chunkReceived;
+				if(!complete)
+					continue;
+				if(ControllerUploader.crc16(0xFFFF, received, 0, size) != sentCrc) {
+					write('F');
+					continue;
+				}
+				write('K');
+				eeproms.put(name, received);
+				return true;
+			}
+		}
+	}
+}
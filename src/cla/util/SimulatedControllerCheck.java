@@ -0,0 +1,167 @@
+package cla.util;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * This class checks that uploads to the simulated controller (see SimulatedController)
+ * work the way they should, so the upload protocol can be checked without a controller.
+ *
+ * Each case sets up a simulated controller (with the cla.simulator properties),
+ * uploads to it and checks that the animation it saved is the one that was uploaded
+ * and at what baud rate it was uploaded. The result of each case is printed, and the
+ * program exits with 1 if any of them failed (0 if they all passed).
+ *
+ * Usage: SimulatedControllerCheck
+ *
+ * @author Duncan Cowan
+ *
+ */
+public abstract class SimulatedControllerCheck {
+	// The latest firmware's protocol version.
+	private static final int LATEST = SimulatedController.LATEST_VERSION;
+	// Each case uses its own controller, so the uploader doesn't remember the rates that failed.
+	private static int cases = 0;
+
+	public static void main(String[] args) {
+		boolean passed = true;
+		// The latest firmware over a link that carries any rate uses the fastest rate.
+		passed &= check("clean upload", LATEST, Integer.MAX_VALUE, 0, 70, 1000000);
+		// A second upload of the same animation isn't sent again.
+		passed &= checkAlreadyUploaded();
+		// A link that can't carry the faster rates falls back to the fastest one it can.
+		passed &= check("link capped at 250000 baud", LATEST, 250000, 0, 70, 250000);
+		// Garbled bytes are sent again until they get through (the whole upload if it has to be).
+		passed &= check("2% of bytes garbled", LATEST, Integer.MAX_VALUE, 0.02, 70, -1);
+		// Firmware from before the ready banner is uploaded to the old way, at the default rate.
+		passed &= check("firmware 0", 0, Integer.MAX_VALUE, 0, 25, ControllerUploader.DEFAULT_BAUD_RATE);
+		// Firmware from before chunked uploads is too.
+		passed &= check("firmware 2", 2, Integer.MAX_VALUE, 0, 25, 1000000);
+		System.out.println(passed ? "All checks passed" : "Some checks FAILED");
+		System.exit(passed ? 0 : 1);
+	}
+
+	/**
+	 * Uploads an animation to a new simulated controller.
+	 *
+	 * @param name what is being checked (printed with the result).
+	 * @param firmware the protocol version the controller speaks.
+	 * @param linkBaudRate the fastest baud rate the link carries.
+	 * @param errorRate the chance of each byte being garbled.
+	 * @param sectionsPerLed how many sections the animation has on each LED.
+	 * @param expectedBaudRate the baud rate the animation should be uploaded at (-1 for any).
+	 * @return true if the controller saved the animation (at the expected rate).
+	 */
+	private static boolean check(String name, int firmware, int linkBaudRate, double errorRate, int sectionsPerLed, int expectedBaudRate) {
+		System.setProperty("cla.simulator.firmware", Integer.toString(firmware));
+		System.setProperty("cla.simulator.linkBaudRate", Integer.toString(linkBaudRate));
+		System.setProperty("cla.simulator.errorRate", Double.toString(errorRate));
+		String port = SimulatedController.NAME_PREFIX + "check " + (++cases);
+		byte[] bytes = createAnimation(sectionsPerLed);
+
+		List<String> statuses = new ArrayList<String>();
+		String problem = upload(port, bytes, statuses);
+		// A garbled link can make an upload fail, so it's tried again like the fleet upload does.
+		for(int attempt = 1; problem != null && errorRate > 0 && attempt < FleetUpload.MAX_ATTEMPTS; attempt++)
+			problem = upload(port, bytes, statuses);
+		if(problem == null && !isSaved(port, bytes))
+			problem = "the controller saved a different animation";
+		if(problem == null && expectedBaudRate > 0 && !statuses.contains("Uploading at " + expectedBaudRate + " baud"))
+			problem = "it wasn't uploaded at " + expectedBaudRate + " baud";
+		return report(name, problem, statuses);
+	}
+
+	/**
+	 * Uploads the same animation twice, the controller should say it already has it the second time.
+	 */
+	private static boolean checkAlreadyUploaded() {
+		System.setProperty("cla.simulator.firmware", Integer.toString(LATEST));
+		System.setProperty("cla.simulator.linkBaudRate", Integer.toString(Integer.MAX_VALUE));
+		System.setProperty("cla.simulator.errorRate", "0");
+		String port = SimulatedController.NAME_PREFIX + "check " + (++cases);
+		byte[] bytes = createAnimation(40);
+
+		List<String> statuses = new ArrayList<String>();
+		String problem = upload(port, bytes, statuses);
+		statuses.clear();
+		if(problem == null)
+			problem = upload(port, bytes, statuses);
+		if(problem == null && !statuses.contains("Controller already has this animation"))
+			problem = "the animation was uploaded again";
+		return report("same animation again", problem, statuses);
+	}
+
+	/**
+	 * Returns an animation (version 1 format) with the specified number of sections,
+	 * each one time division long, on each of the controller's LEDs.
+	 */
+	private static byte[] createAnimation(int sectionsPerLed) {
+		SectionStore sections = new SectionStore(AnimationSettings.DEFAULT);
+		for(int tl = 0; tl < sections.getNumOfTimelines(); tl++) {
+			for(int s = 0; s < sectionsPerLed; s++)
+				sections.add(tl, s, s+1, (tl+s) % 3);
+		}
+		try {
+			return AnimationCodec.encodeV1(new Animation(sections)).array();
+		} catch(IOException e) {
+			throw new IllegalArgumentException("Too many sections for the controller", e);
+		}
+	}
+
+	/**
+	 * Returns true once the simulated controller has saved the animation. The uploader
+	 * can finish just before the controller saves it, so it's given a second to.
+	 */
+	private static boolean isSaved(String port, byte[] bytes) {
+		for(int i = 0; i < 100; i++) {
+			if(Arrays.equals(bytes, SimulatedController.getSavedAnimation(port)))
+				return true;
+			try {
+				Thread.sleep(10);
+			} catch(InterruptedException e) {
+				return false;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Uploads to the simulated controller, keeping the statuses it goes through.
+	 *
+	 * @return why the upload failed, or null if it worked.
+	 */
+	private static String upload(String port, byte[] bytes, final List<String> statuses) {
+		try {
+			boolean uploaded = ControllerUploader.upload(ControllerUploader.open(port), bytes, new ControllerUploader.Listener() {
+				public void status(String status) {
+					statuses.add(status);
+				}
+
+				public void progress(int received, int total) {}
+
+				public void alreadyUploaded() {}
+			});
+			return uploaded ? null : "the upload failed";
+		} catch(IOException e) {
+			return "the upload failed (" + e.getMessage() + ")";
+		}
+	}
+
+	/**
+	 * Prints the result of a case (and the statuses the upload went through if it failed).
+	 *
+	 * @return true if the case passed.
+	 */
+	private static boolean report(String name, String problem, List<String> statuses) {
+		if(problem == null) {
+			System.out.println("PASS " + name);
+			return true;
+		}
+		System.out.println("FAIL " + name + ": " + problem);
+		for(String status : statuses)
+			System.out.println("    " + status);
+		return false;
+	}
+}